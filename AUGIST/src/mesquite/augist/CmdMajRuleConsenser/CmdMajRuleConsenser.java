@@ -2,8 +2,8 @@ package mesquite.augist.CmdMajRuleConsenser;
 
 import mesquite.lib.*;
 import mesquite.lib.duties.*;
+import mesquite.augist.lib.BipartitionTable;
 import mesquite.augist.lib.CmdTreeConsenser;
-import mesquite.consensus.lib.*;
 
 /* ======================================================================== */
 /** A slightly altered version of MajRuleTree for additional employer control.*/
@@ -24,7 +24,7 @@ public class CmdMajRuleConsenser extends CmdTreeConsenser{
 		return super.startJob(arguments, condition, hiredByName);
 	}
 	/*.................................................................................................................*/
-	public BipartitionVector getBipartitions(){
+	public BipartitionTable getBipartitions(){
 		return bipartitions;
 	}
 	/*.................................................................................................................*/
@@ -33,6 +33,8 @@ public class CmdMajRuleConsenser extends CmdTreeConsenser{
 		temp.addLine("toggleUseWeights " + useWeights.toOffOnString());
 		temp.addLine("toggleDumpTable " + dumpTable.toOffOnString());
 		temp.addLine("setFrequencyLimit " + MesquiteDouble.toString(frequencyLimit));
+		if (consenseThreadsChosen)
+			temp.addLine("setConsenseThreads " + numConsenseThreads);
 		return temp;
 	}
 	/*.................................................................................................................*/
@@ -51,6 +53,11 @@ public class CmdMajRuleConsenser extends CmdTreeConsenser{
 					frequencyLimit = tempLimit;
 				} else frequencyLimit = 0.5;
 			} else frequencyLimit = 0.5;
+		}
+		else if(checker.compare(this.getClass(), "Sets the number of threads among which the trees are divided for counting bipartitions (1 to count them in sequence)", "[number of threads]", commandName, "setConsenseThreads")){
+			int num = MesquiteInteger.fromFirstToken(arguments, new MesquiteInteger(0));
+			if(MesquiteInteger.isCombinable(num))
+				setConsenseThreads(num);
 		} else return super.doCommand(commandName, arguments, checker);
 		return null;
 	}
@@ -58,33 +65,37 @@ public class CmdMajRuleConsenser extends CmdTreeConsenser{
 	public void addTree(Tree t){
 		if (t==null)
 			return;
+		bipartitions.setUseWeights(useWeights.getValue());
+		bipartitions.addTree(t, getTreeWeight(t));
+	}
+	/*.................................................................................................................*/
+	protected double getTreeWeight(Tree t){
 		if (useWeights.getValue()) {
-			bipartitions.setUseWeights(useWeights.getValue());
 			MesquiteDouble md = (MesquiteDouble)((Attachable)t).getAttachment(TreesManager.WEIGHT);
-			if (md != null) {
-				if (md.isCombinable())
-					bipartitions.setWeight(md.getValue());
-				else
-					bipartitions.setWeight(1.0);
-			} else
-				bipartitions.setWeight(1.0);
+			if (md != null && md.isCombinable())
+				return md.getValue();
 		}
-		bipartitions.addTree(t);
+		return 1.0;
+	}
+	/*.................................................................................................................*/
+	protected boolean canConsenseInParallel(){
+		return true;
 	}
 	/*.................................................................................................................*/
 	public void initialize() {
-		if (bipartitions!=null) {
-			bipartitions.setMode(BipartitionVector.MAJRULEMODE);
-		}
+		if (bipartitions!=null)
+			bipartitions.setUseWeights(useWeights.getValue());
 	}
 	/*.................................................................................................................*/
  	public void afterConsensus() {
  		if (dumpTable.getValue())
-			bipartitions.dump();
+			logln(bipartitions.getFrequencyTable());
  	}
 	/*.................................................................................................................*/
 	public Tree getConsensus(){
 		Tree t = bipartitions.makeTree(getFrequencyLimit());
+		if (t == null && bipartitions.getUseWeights() && bipartitions.getWeightOverflow())
+			logln(getName() + ": the weights of the trees are too large to be summed exactly; no consensus tree was calculated.  Scale the weights down, or do not use them.");
 		afterConsensus();
 		return t;
 	}
@@ -0,0 +1,164 @@
+package mesquite.augist.CmdWindowConsenser;
+
+import java.util.Arrays;
+
+import mesquite.lib.*;
+import mesquite.augist.CmdMajRuleConsenser.CmdMajRuleConsenser;
+
+/* ======================================================================== */
+/** A majority rules consenser over a sliding window of the trees most recently added (e.g., the last trees of an MCMC run, as the run proceeds).
+ * The numbers of the bipartitions of each tree in the window are kept in a ring buffer, so that when a tree is added to a full window, the oldest
+ * tree is removed from the bipartition counts without being examined again.  Trees leave the window as newer trees are added, or when removed by removeTree.*/
+public class CmdWindowConsenser extends CmdMajRuleConsenser {
+	int windowSize = 1000;
+	int[][] windowSplits = new int[windowSize][];
+	double[] windowWeights = new double[windowSize];
+	int windowStart = 0;
+	int numInWindow = 0;
+
+	public String getName() {
+		return "Commandable Sliding Window Consenser";
+	}
+	public String getExplanation() {
+		return "Calculates the majority rules consensus tree of the trees most recently added, allowing more control by employer module.  For internal use only.";
+	}
+	/*.................................................................................................................*/
+	public Snapshot getSnapshot(MesquiteFile file) {
+		Snapshot temp = super.getSnapshot(file);
+		temp.addLine("setWindowSize " + windowSize);
+		return temp;
+	}
+	/*.................................................................................................................*/
+	public Object doCommand(String commandName, String arguments, CommandChecker checker){
+		if(checker.compare(this.getClass(), "Sets the number of trees most recently added from which the consensus is calculated", "[number of trees]", commandName, "setWindowSize")){
+			int num = MesquiteInteger.fromFirstToken(arguments, new MesquiteInteger(0));
+			if(MesquiteInteger.isCombinable(num))
+				setWindowSize(num);
+		}
+		else return super.doCommand(commandName, arguments, checker);
+		return null;
+	}
+	/*.................................................................................................................*/
+	public int getWindowSize(){
+		return windowSize;
+	}
+	/*.................................................................................................................*/
+	/**Sets the number of trees in the window; if the window holds more trees than this, the oldest are removed.*/
+	public void setWindowSize(int size){
+		if (size < 1 || size == windowSize)
+			return;
+		while (numInWindow > size)
+			removeOldestTree();
+		int[][] newSplits = new int[size][];
+		double[] newWeights = new double[size];
+		for (int i = 0; i < numInWindow; i++){
+			newSplits[i] = windowSplits[(windowStart + i) % windowSize];
+			newWeights[i] = windowWeights[(windowStart + i) % windowSize];
+		}
+		windowSplits = newSplits;
+		windowWeights = newWeights;
+		windowStart = 0;
+		windowSize = size;
+	}
+	/*.................................................................................................................*/
+	/**Returns the number of trees now in the window.*/
+	public int getNumTreesInWindow(){
+		return numInWindow;
+	}
+	/*.................................................................................................................*/
+	public void addTree(Tree t){
+		if (t==null)
+			return;
+		bipartitions.setUseWeights(getUseWeights());
+		double weight = getTreeWeight(t);
+		if (numInWindow == windowSize)
+			removeOldestTree();
+		int[] splits = bipartitions.addTreeAndGetSplits(t, weight);
+		if (splits == null)
+			return;
+		Arrays.sort(splits);  //so that removeTree can compare them with those of another tree of the same bipartitions
+		int slot = (windowStart + numInWindow) % windowSize;
+		windowSplits[slot] = splits;
+		windowWeights[slot] = weight;
+		numInWindow++;
+	}
+	/*.................................................................................................................*/
+	/**Removes from the window the oldest tree with the same bipartitions and weight as t; if there is none, t is not in the window, and nothing is removed.*/
+	public void removeTree(Tree t){
+		if (t == null || numInWindow == 0)
+			return;
+		bipartitions.setUseWeights(getUseWeights());
+		int[] splits = bipartitions.findSplits(t);
+		if (splits == null)
+			return;
+		Arrays.sort(splits);
+		double weight = getTreeWeight(t);
+		for (int i = 0; i < numInWindow; i++){
+			int slot = (windowStart + i) % windowSize;
+			if (windowWeights[slot] == weight && Arrays.equals(windowSplits[slot], splits)){
+				removeFromWindow(i);
+				return;
+			}
+		}
+	}
+	/*.................................................................................................................*/
+	/**Removes the tree at position i in the window (0 for the oldest) from the bipartition counts; the newer trees move down to fill its place.*/
+	void removeFromWindow(int i){
+		if (i == 0){
+			removeOldestTree();
+			return;
+		}
+		int slot = (windowStart + i) % windowSize;
+		bipartitions.removeSplits(windowSplits[slot], windowWeights[slot]);
+		for (int k = i + 1; k < numInWindow; k++){
+			int from = (windowStart + k) % windowSize;
+			windowSplits[slot] = windowSplits[from];
+			windowWeights[slot] = windowWeights[from];
+			slot = from;
+		}
+		windowSplits[slot] = null;
+		numInWindow--;
+	}
+	/*.................................................................................................................*/
+	/**Removes the oldest tree in the window from the bipartition counts.*/
+	void removeOldestTree(){
+		if (numInWindow == 0)
+			return;
+		bipartitions.removeSplits(windowSplits[windowStart], windowWeights[windowStart]);
+		windowSplits[windowStart] = null;
+		windowStart = (windowStart + 1) % windowSize;
+		numInWindow--;
+	}
+	/*.................................................................................................................*/
+	public void initialize() {
+		super.initialize();
+		for (int i = 0; i < windowSize; i++)
+			windowSplits[i] = null;
+		windowStart = 0;
+		numInWindow = 0;
+	}
+	/*.................................................................................................................*/
+	/**Trees must be added in order, so that the window holds the most recent.*/
+	protected boolean canConsenseInParallel(){
+		return false;
+	}
+
+	/*.................................................................................................................*/
+	/*  ====  For use with/by XMLUtil  ====  */
+	public void processMorePreferences (String tag, String content) {
+		if ("windowSize".equalsIgnoreCase(tag)){
+			int size = MesquiteInteger.fromString(content);
+			if (MesquiteInteger.isCombinable(size))
+				setWindowSize(size);
+		}
+		else
+			super.processMorePreferences(tag, content);
+	}
+	/*.................................................................................................................*/
+	public String prepareMorePreferencesForXML () {
+		StringBuffer buffer = new StringBuffer(200);
+		buffer.append(super.prepareMorePreferencesForXML());
+		StringUtil.appendXMLTag(buffer, 2, "windowSize", windowSize);
+		return buffer.toString();
+	}
+}
@@ -19,7 +19,6 @@ import mesquite.lib.*;
 import mesquite.lib.duties.*;
 import mesquite.augist.CmdMajRuleConsenser.*;
 import mesquite.augist.lib.*;
-import mesquite.consensus.lib.*;
 
 import java.util.Vector;
 
@@ -32,7 +31,7 @@ import mesquite.consensus.MajRuleTree.*;
  * halves of a user-defined tree block.  (Effectively the same as the MrBayes standard 
  * deviation of split frequencies, but calculated for variances, not standard deviations).
  * 
- * Because bipartition frequencies are harvested from the BipartitionVector.getDecimalFrequency 
+ * Because bipartition frequencies are harvested from the BipartitionTable.getFrequency 
  * method, which returns a double, there is a chance of imprecision around 10E-15 digits.  
  * For example, a bipartition found in 1 tree out of 50 may be reported as occurring at a frequency 
  * of 0.020000000000000007, instead of a frequency of 0.02.*/
@@ -102,116 +101,50 @@ public class PartitionVariance extends NumberForTreeBlock {
 				}
 			}//end of for loop filling the two TreeVectors
 
-			/*Get BipartitionVectors corresponding to each half of the TreeBlock.  Must use .clone() 
-			 * method because otherwise BipartitionVector firstBiVec would be accessing the 
-			 * bipartitions created when the second half of the tree block was used for consensus.*/
+			/*Get BipartitionTables corresponding to each half of the TreeBlock.  Must use .cloneTable() 
+			 * method because otherwise BipartitionTable firstTable would be accessing the 
+			 * bipartitions counted when the second half of the tree block was used for consensus.*/
 			
 			treeConsenserOne.consense(firstHalfTrees);
-			BipartitionVector firstBiVec = (BipartitionVector)treeConsenserOne.getBipartitions().clone();
+			BipartitionTable firstTable = treeConsenserOne.getBipartitions().cloneTable();
 
 			treeConsenserOne.reset(firstHalfTrees.getTaxa());
 
 			treeConsenserOne.consense(secondHalfTrees);
-			BipartitionVector secondBiVec = (BipartitionVector)treeConsenserOne.getBipartitions().clone();
+			BipartitionTable secondTable = treeConsenserOne.getBipartitions().cloneTable();
 
-			/*Booleans to make sure partitions aren't counted twice; will need to cycle 
-			 * through and include those partitions which exist in only one set (first 
-			 * or second half of TreeBlock) of trees.*/
-			boolean[] firstSet = new boolean[firstBiVec.size()];
-			for(int fs = 0; fs < firstSet.length; fs++){
-				firstSet[fs] = false;
-			}
-			boolean[] secondSet = new boolean[secondBiVec.size()];
-			for(int ss = 0; ss < secondSet.length; ss++){
-				secondSet[ss] = false;
-			}
-			//Two longs to keep track of the number of bipartitions found, could probably be ints
-			long firstFound = 0;
-			long secondFound = 0;
 			/*Temporary storage for each variance value to be added the the Vector of BipartitionInfo 
 			 * elements.  All variance calculations are performed by a simplification of the calculation 
 			 * for 2-sample variance: 0.5*x1^2 - x1*x2 + 0.5*x2^2, where x1 and x2 are the bipartition 
-			 * frequencies from the first and second set of trees, respectively.*/
+			 * frequencies from the first and second set of trees, respectively.  A bipartition found in 
+			 * only one set of trees has a frequency of 0 in the other.  Each bipartition of the first set 
+			 * is looked up in the second set's table, and then those of the second set not found in the 
+			 * first are added.*/
 			double varianceHolder = MesquiteDouble.unassigned;
-
-			//First, compare each bipartition from first set of trees to each bipartition of second set of trees
-			for(int firstSetCounter=0; firstSetCounter<firstBiVec.size(); firstSetCounter++){
-				for(int secondSetCounter=0; secondSetCounter<secondBiVec.size(); secondSetCounter++){
-					varianceHolder = MesquiteDouble.unassigned;
-					Bits bitsOne = firstBiVec.getBipart(firstSetCounter).getBits();
-					Bits bitsTwo = secondBiVec.getBipart(secondSetCounter).getBits();
-					if(bitsOne.equals(bitsTwo)){
-
-						firstSet[firstSetCounter] = true;
-						secondSet[secondSetCounter] = true;
-						firstFound++;
-						secondFound++;
-
-						//See note at top above concerning the precision of these variables.
-						double firstDecimalFreq = firstBiVec.getDecimalFrequency(firstBiVec.getBipart(firstSetCounter));
-						double secondDecimalFreq = secondBiVec.getDecimalFrequency(secondBiVec.getBipart(secondSetCounter));
-
-						if(MesquiteDouble.isCombinable(firstDecimalFreq) && MesquiteDouble.isCombinable(secondDecimalFreq)){
-							varianceHolder = (0.5)*Math.pow(firstDecimalFreq,2) - (firstDecimalFreq)*(secondDecimalFreq) + (0.5)*Math.pow(secondDecimalFreq,2);
-						}
-						else logln("Non-combinable number found.");
-						BipartitionInfo bipartInfo = new BipartitionInfo(bitsOne, varianceHolder);
-						varianceVector.addElement(bipartInfo);
-						
-					}
-				}
-			}
-
-			/*starting from last element in the first BipartitionVector, check for any bipartitions which were 
-			 * found in first set of trees, but not the second set.  Starting from last element should increase 
-			 * efficiency because high frequency bipartitions are more likely to be found in both sets 
-			 * of trees AND the BipartitionVector may have sorted bipartitions in descending order (depending 
-			 * on whether the group frequency table was printed via BipartitionVector.dump()).*/
-			int firstSetToCheck = firstBiVec.size() - 1;
-			while(firstSetToCheck >= 0 && firstFound < firstBiVec.size()){
+			for(int firstSetCounter=0; firstSetCounter<firstTable.getNumBipartitions(); firstSetCounter++){
+				//See note at top above concerning the precision of these variables.
+				double firstDecimalFreq = firstTable.getFrequency(firstSetCounter);
+				int secondSetCounter = secondTable.indexOf(firstTable, firstSetCounter);
+				double secondDecimalFreq = 0.0;
+				if(secondSetCounter >= 0)
+					secondDecimalFreq = secondTable.getFrequency(secondSetCounter);
 				varianceHolder = MesquiteDouble.unassigned;
-				if(firstSet[firstSetToCheck] == false){
-					Bits bitsOne = firstBiVec.getBipart(firstSetToCheck).getBits();
-
-					//See note at top above concerning the precision of this variable.
-					double firstDecimalFreq = firstBiVec.getDecimalFrequency(firstBiVec.getBipart(firstSetToCheck));
-
-					if(MesquiteDouble.isCombinable(firstDecimalFreq)){
-						varianceHolder = (0.5)*Math.pow(firstDecimalFreq,2);
-					}
-					else logln("Non-combinable number found.");
-					BipartitionInfo bipartInfo = new BipartitionInfo(bitsOne, varianceHolder);
-					varianceVector.addElement(bipartInfo);
-					firstFound++;
-					firstSet[firstSetToCheck] = true;
+				if(MesquiteDouble.isCombinable(firstDecimalFreq) && MesquiteDouble.isCombinable(secondDecimalFreq)){
+					varianceHolder = (0.5)*Math.pow(firstDecimalFreq,2) - (firstDecimalFreq)*(secondDecimalFreq) + (0.5)*Math.pow(secondDecimalFreq,2);
 				}
-				firstSetToCheck--;
+				else logln("Non-combinable number found.");
+				varianceVector.addElement(new BipartitionInfo(firstTable.getBits(firstSetCounter), varianceHolder));
 			}
-
-			/*Starting from last element in the second BipartitionVector, check for any bipartitions which were 
-			 * found in second set of trees, but not the first set.  Starting from last element should increase 
-			 * efficiency because high frequency bipartitions are more likely to be found in both sets 
-			 * of trees AND the BipartitionVector may have sorted bipartitions in descending order (depending 
-			 * on whether the group frequency table was printed via BipartitionVector.dump()).*/
-			int secondSetToCheck = secondBiVec.size() - 1;
-			while(secondSetToCheck >= 0 && secondFound < secondBiVec.size()){
+			for(int secondSetCounter=0; secondSetCounter<secondTable.getNumBipartitions(); secondSetCounter++){
+				if(firstTable.indexOf(secondTable, secondSetCounter) >= 0)
+					continue;
+				double secondDecimalFreq = secondTable.getFrequency(secondSetCounter);
 				varianceHolder = MesquiteDouble.unassigned;
-				if(secondSet[secondSetToCheck] == false){
-					Bits bitsTwo = secondBiVec.getBipart(secondSetToCheck).getBits();
-
-					//See note at top above concerning the precision of this variable.
-					double secondDecimalFreq = secondBiVec.getDecimalFrequency(secondBiVec.getBipart(secondSetToCheck));
-
-					if(MesquiteDouble.isCombinable(secondDecimalFreq)){
-						varianceHolder = (0.5)*Math.pow(secondDecimalFreq,2);
-					}
-					else logln("Non-combinable number found.");
-					BipartitionInfo bipartInfo = new BipartitionInfo(bitsTwo, varianceHolder);
-					varianceVector.addElement(bipartInfo);
-					secondFound++;
-					secondSet[secondSetToCheck] = true;
+				if(MesquiteDouble.isCombinable(secondDecimalFreq)){
+					varianceHolder = (0.5)*Math.pow(secondDecimalFreq,2);
 				}
-				secondSetToCheck--;
+				else logln("Non-combinable number found.");
+				varianceVector.addElement(new BipartitionInfo(secondTable.getBits(secondSetCounter), varianceHolder));
 			}
 
 			double aveVar = 0.0;
@@ -14,6 +14,9 @@ This source code and its compiled class files are free and modifiable under the
 GNU Lesser General Public License.  (http://www.gnu.org/copyleft/lesser.html)
 */
 
+import java.util.Random;
+
+import mesquite.augist.lib.TreeSamplingPlan;
 import mesquite.lib.*;
 import mesquite.trees.SampleManyTreesFromFile.*;
 
@@ -21,6 +24,7 @@ import mesquite.trees.SampleManyTreesFromFile.*;
  * (defaults to 1 if number is not provided).*/
 public class SampleManyTreesCmd extends SampleManyTreesFromFile {
 	MesquiteInteger pos = new MesquiteInteger(0);
+	Random sampleRandom = null;
 /*.................................................................................................................*/
 	protected boolean additionStartJobItems(){
 		addMenuItem("File for Sample Trees From Separate...", makeCommand("setFilePath",  this));
@@ -56,6 +60,28 @@ public class SampleManyTreesCmd extends SampleManyTreesFromFile {
 		setTreesToSample(numTreesToSample);
 	}
 	/*.................................................................................................................*/
+	/**Resets the trees to be sampled, drawing the new sample with rng (e.g., a stream from the employer's seed, so that the sample can be reproduced).*/
+	public void resetTreesToSample(Random rng){
+		sampleRandom = rng;
+		setTreesToSample(numTreesToSample);
+		sampleRandom = null;
+	}
+	/*.................................................................................................................*/
+	/**If a generator was supplied by the employer, samples the trees with it; otherwise samples them as the superclass does.*/
+	protected void setTreesToSample(int numTreesToSample) {
+		int availableTrees = numTreesInTreeBlock - numStartTreesToIgnore;
+		if (sampleRandom == null || !MesquiteInteger.isCombinable(numTreesToSample) || numTreesToSample >= availableTrees) {
+			super.setTreesToSample(numTreesToSample);
+			return;
+		}
+		TreeSamplingPlan plan = new TreeSamplingPlan();
+		plan.sample(numTreesToSample, numStartTreesToIgnore, numTreesInTreeBlock, sampleRandom);
+		treesToSample.resetSize(numTreesInTreeBlock);
+		treesToSample.clearAllBits();
+		for (int i = 0; i < plan.size(); i++)
+			treesToSample.setBit(plan.get(i));
+	}
+	/*.................................................................................................................*/
 //	public void additionalSnapshot(Snapshot snapshot) {
 //		snapshot.addLine("setFilePath " + getFilePath());//using getFilePath() method of superclass ManyTreesFromFileLib
 //	}
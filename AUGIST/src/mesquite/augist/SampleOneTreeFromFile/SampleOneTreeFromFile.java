@@ -13,9 +13,30 @@ This source code and its compiled class files are free and modifiable under the
 GNU Lesser General Public License.  (http://www.gnu.org/copyleft/lesser.html)
 */
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.Random;
 import java.util.Vector;
+import java.util.zip.GZIPInputStream;
 
+import mesquite.augist.lib.BgzfReader;
+import mesquite.augist.lib.NewickDecoder;
+import mesquite.augist.lib.ParallelTreeBlockScanner;
+import mesquite.augist.lib.ParsedTreeCache;
+import mesquite.augist.lib.RandomStreams;
+import mesquite.augist.lib.TreeBlockScanner;
+import mesquite.augist.lib.TreeFileIndex;
+import mesquite.augist.lib.TreeOffsetIndex;
+import mesquite.augist.lib.TreeReservoirSampler;
+import mesquite.augist.lib.TreeSamplingPlan;
 import mesquite.lib.*;
 import mesquite.lib.duties.FileCoordinator;
 import mesquite.lib.duties.TreeSource;
@@ -33,8 +54,7 @@ public class SampleOneTreeFromFile extends TreeSource implements MesquiteListene
 	TreesManager manager;
 	MesquiteFile file = null;
 	TreeVector trees = null;
-	Vector filePosVector;
-	int arraySize = 1000;
+	TreeOffsetIndex filePositions;
 	int highestTreeMarked = -1;
 	int lastTreeRead = -1;
 	String currentTreeName = null;
@@ -44,14 +64,42 @@ public class SampleOneTreeFromFile extends TreeSource implements MesquiteListene
 	protected MesquiteBoolean rereadWholeFileIfGrows = new MesquiteBoolean(true);
 	protected MesquiteBoolean live;
 	MesquiteCommand fileGrewCommand, fileChangedCommand;//TODO: could be omitted?
+	MesquiteCommand readAddedTreesCommand;
+	protected MesquiteBoolean followTail = new MesquiteBoolean(false);
 	boolean fileWasModified = false;
 	static MesquiteBoolean warningGiven = new MesquiteBoolean(false);
 	protected int numTreesInTreeBlock = 0;
-	protected Bits treesToSample = new Bits(0);
+	protected TreeSamplingPlan treesToSample = new TreeSamplingPlan();
 	protected boolean sampleTrees = true;
 	protected int numTreesToSample = 1; // MesquiteInteger.unassigned;
 	protected int numStartTreesToIgnore = 0; //TODO: consider getting rid of this
+	/*Chooses the trees sampled; made once, so that samples drawn within the same millisecond differ*/
+	Random sampleRandom = new RandomStreams(System.currentTimeMillis());
 	String highestSuccessfulDescription = null;
+	protected MesquiteBoolean useIndexFile = new MesquiteBoolean(true);
+	protected MesquiteBoolean useByteSurvey = new MesquiteBoolean(true);
+	protected MesquiteBoolean parallelSurvey = new MesquiteBoolean(false);
+	protected int numSurveyThreads = Runtime.getRuntime().availableProcessors();
+	boolean surveyThreadsChosen = false;  //whether numSurveyThreads was set, rather than taken from the number of processors of this computer
+	protected MesquiteBoolean streamSample = new MesquiteBoolean(false);
+	TreeReservoirSampler streamedTrees = null;
+	long streamStart = -1;
+	protected MesquiteBoolean useTreeCache = new MesquiteBoolean(true);
+	long fileModifiedTime = 0;
+	protected MesquiteBoolean decodeDirectly = new MesquiteBoolean(true);
+	NewickDecoder decoder = null;
+	Taxa decoderTaxa = null;
+	Vector decoderTable = null;
+	RandomAccessFile directAccess = null;
+	ByteBuffer statementBytes = null;
+	/*For files compressed with gzip: the path of the compressed file, a reader for it if it is BGZF, and the decompressed copy of its start*/
+	String compressedPath = null;
+	BgzfReader bgzfReader = null;
+	File headerCopy = null;
+	/*Information about the TREES block retained so that it can be stored in the index file*/
+	String linkedTaxaTitle = null;
+	Vector indexTable = null;
+	boolean surveyComplete = false;
 
 	/*.................................................................................................................*/
 	public String getName() {
@@ -68,9 +116,10 @@ public class SampleOneTreeFromFile extends TreeSource implements MesquiteListene
 				storePreferences();
 			}
 		}
-		filePosVector = new Vector();
+		filePositions = new TreeOffsetIndex();
 		fileGrewCommand = new MesquiteCommand("fileGrew", this);
 		fileChangedCommand = new MesquiteCommand("fileChanged", this);
+		readAddedTreesCommand = new MesquiteCommand("readAddedTrees", this);
 //		fileCheckingThread = new FIleCheckThread(this);
 /*TODO hiring of TreesManager previously occurred after the succeeding conditional which called obtainFile() 
  * and processFile() (it is commented out below in its original position).  The latter method called 
@@ -96,12 +145,7 @@ public class SampleOneTreeFromFile extends TreeSource implements MesquiteListene
 		FileCoordinator fCoord = getFileCoordinator();
 		if (fCoord == null)
 			return false;
-		for (int j = 0; j<filePosVector.size(); j++){
-			long[] filePosTrees = (long[])filePosVector.elementAt(j);
-
-			for (int i=0; i<arraySize; i++)
-				filePosTrees[i] = MesquiteLong.unassigned;
-		}
+		filePositions.clear();
 		currentTree=0;
 		highestTreeMarked = -1;
 		lastTreeRead = -1;
@@ -111,6 +155,7 @@ public class SampleOneTreeFromFile extends TreeSource implements MesquiteListene
 
 		MesquiteFile treeFile = fCoord.getNEXUSFileForReading(path, "Choose Tree File");
 		if (treeFile != null) {
+			closeDirectAccess();
 			if (file !=null) {
 				file.closeReading();
 				file.dispose();
@@ -142,6 +187,16 @@ public class SampleOneTreeFromFile extends TreeSource implements MesquiteListene
 		live = new MesquiteBoolean(canDoLiveUpdate());
 		addCheckMenuItem( null, "Respond to Tree File Changes", makeCommand("toggleLive",  this), live);
 		addCheckMenuItem( null, "Reread Whole File If Enlarged", makeCommand("toggleReread",  this), rereadWholeFileIfGrows);
+		addCheckMenuItem( null, "Read Only Trees Added to Enlarged File", makeCommand("toggleFollowTail",  this), followTail);
+		addMenuItem( "Read Trees Added to File", makeCommand("readAddedTrees",  this));
+		addCheckMenuItem( null, "Use Tree File Index", makeCommand("toggleUseIndex",  this), useIndexFile);
+		addCheckMenuItem( null, "Fast Survey of Tree File", makeCommand("toggleByteSurvey",  this), useByteSurvey);
+		addCheckMenuItem( null, "Survey Tree File with Multiple Threads", makeCommand("toggleParallelSurvey",  this), parallelSurvey);
+		addMenuItem( "Number of Threads for Survey...", makeCommand("setSurveyThreads",  this));
+		addCheckMenuItem( null, "Sample Trees in a Single Pass", makeCommand("toggleStreamSample",  this), streamSample);
+		addCheckMenuItem( null, "Cache Trees Read", makeCommand("toggleTreeCache",  this), useTreeCache);
+		addMenuItem( "Limits of Cache of Trees Read...", makeCommand("setTreeCacheLimits",  this));
+		addCheckMenuItem( null, "Read Trees Directly from File", makeCommand("toggleDirectDecoding",  this), decodeDirectly);
 		return true;
 	}
 	/*.................................................................................................................*/
@@ -159,42 +214,26 @@ public class SampleOneTreeFromFile extends TreeSource implements MesquiteListene
 
 	/*.................................................................................................................*/
 	public void resetTreesToSample(){
-		setTreesToSample(numTreesToSample);
+		if (streamedTrees != null && streamStart >= 0)
+			streamSampleTrees(streamStart, null);  //a new sample requires another pass through the file
+		else
+			setTreesToSample(numTreesToSample);
 	}
 	/*.................................................................................................................*/
-	protected void setTreesToSample(int numTreesToSample) {//TODO:  Can be much simpler, since only want 1
+	/**Resets the trees to be sampled, drawing the new sample with rng (e.g., a stream from the employer's seed, so that the sample can be reproduced).*/
+	public void resetTreesToSample(Random rng){
+		Random saved = sampleRandom;
+		sampleRandom = rng;
+		resetTreesToSample();
+		sampleRandom = saved;
+	}
+	/*.................................................................................................................*/
+	protected void setTreesToSample(int numTreesToSample) {
 		int availableTrees = numTreesInTreeBlock - numStartTreesToIgnore;
-		if (!MesquiteInteger.isCombinable(numTreesToSample)|| numTreesToSample>= availableTrees) {
-			treesToSample.setAllBits();
-			for (int i = 0; i<numStartTreesToIgnore; i++) {  //unset all of the initial ones (e.g., burnin ones)
-				treesToSample.setBit(i, false);
-			}
-		}
-		else {
-			Random rng = new Random(System.currentTimeMillis());
-			if (numTreesToSample<=availableTrees/2) {   // we set less than half
-				treesToSample.clearAllBits();
-				for (int i = 0; i<numTreesToSample; i++) {
-					int candidate=-1;
-					while (candidate<0 || treesToSample.isBitOn(candidate+numStartTreesToIgnore))
-						candidate = (int)(rng.nextDouble()*availableTrees);
-					treesToSample.setBit(candidate+numStartTreesToIgnore);
-				}
-			}
-			else {  //we set more than half; therefore, set them all, then unset the need amount
-				treesToSample.setAllBits();
-				for (int i = 0; i<numStartTreesToIgnore; i++) {  //unset all of the initial ones (e.g., burnin ones)
-					treesToSample.setBit(i, false);
-				}
-				int numTreesToUnSet = availableTrees -  - numTreesToSample;
-				for (int i = 0; i<numTreesToUnSet; i++) {
-					int candidate=-1;
-					while (candidate<0 || !treesToSample.isBitOn(candidate+numStartTreesToIgnore))
-						candidate = (int)(rng.nextDouble()*availableTrees);
-					treesToSample.setBit(candidate+numStartTreesToIgnore, false);
-				}
-			}
-		}
+		if (!MesquiteInteger.isCombinable(numTreesToSample)|| numTreesToSample>= availableTrees)
+			treesToSample.sampleAll(numStartTreesToIgnore, numTreesInTreeBlock); //all but the initial ones (e.g., burnin ones)
+		else 
+			treesToSample.sample(numTreesToSample, numStartTreesToIgnore, numTreesInTreeBlock, sampleRandom);
 	}
 	/*.................................................................................................................*/
 	protected String reportTreesSampled(){ //TODO: this can be omitted
@@ -209,17 +248,12 @@ public class SampleOneTreeFromFile extends TreeSource implements MesquiteListene
 		}
 		else {
 			sb.append("Trees sampled: \n");
-			int count = 1;
-			for (int i = 0; i<numTreesInTreeBlock; i++) {
-				if (treesToSample.isBitOn(i)) {
-					sb.append("  " + (i+1));
-					if (count % 10 == 0)
-						sb.append("\n");
-					count++;
-				}
+			for (int i = 0; i<treesToSample.size(); i++) {
+				sb.append("  " + (treesToSample.get(i)+1));
+				if ((i+1) % 10 == 0)
+					sb.append("\n");
 			}
-			count--;
-			sb.append("\n(" + count + " trees total)");
+			sb.append("\n(" + treesToSample.size() + " trees total)");
 
 		}
 		return sb.toString();
@@ -227,10 +261,9 @@ public class SampleOneTreeFromFile extends TreeSource implements MesquiteListene
 	/*.................................................................................................................*/
 	private int nextTreeToSample(int prevTree) {
 		if (getSampleTrees()) {
-			for (int i=prevTree+1; i<=numTreesInTreeBlock; i++) {
-				if (treesToSample.isBitOn(i))
-					return i;
-			}
+			int next = treesToSample.next(prevTree);
+			if (next >= 0)
+				return next;
 			return MesquiteInteger.unassigned;
 		}
 		return prevTree++;
@@ -238,14 +271,9 @@ public class SampleOneTreeFromFile extends TreeSource implements MesquiteListene
 	/*.................................................................................................................*/
 	private int findTreeNumber(int treeNum) {
 		if (getSampleTrees()) {
-			int count=0;
-			for (int i=0; i<=numTreesInTreeBlock; i++) {
-				if (treesToSample.isBitOn(i)) {
-					if (count==treeNum) 
-						return i;
-					count++;
-				}
-			}
+			int i = treesToSample.get(treeNum);
+			if (i >= 0)
+				return i;
 			return MesquiteInteger.unassigned;
 		}
 		return treeNum;
@@ -261,12 +289,7 @@ public class SampleOneTreeFromFile extends TreeSource implements MesquiteListene
 		if (fCoord == null)
 			return false;
 
-		for (int j = 0; j<filePosVector.size(); j++){
-			long[] filePosTrees = (long[])filePosVector.elementAt(j);
-
-			for (int i=0; i<arraySize; i++)
-				filePosTrees[i] = MesquiteLong.unassigned;
-		}
+		filePositions.clear();
 		currentTree=0;
 		highestTreeMarked = -1;
 		lastTreeRead = -1;
@@ -276,6 +299,7 @@ public class SampleOneTreeFromFile extends TreeSource implements MesquiteListene
 
 		MesquiteFile treeFile = fCoord.getNEXUSFileForReading(arguments, "Choose Tree File");
 		if (treeFile != null) {
+			closeDirectAccess();
 			if (file !=null) {
 				file.closeReading();
 				file.dispose();
@@ -308,16 +332,333 @@ public class SampleOneTreeFromFile extends TreeSource implements MesquiteListene
 		return (file != null);
 	}
 	public boolean processFile(){ // Was private
+		resetFileState();
+		if (file != null && file.getPath() != null && BgzfReader.isGzip(file.getPath()))
+			return processCompressedFile();
+		if (useIndexFile.getValue() && !streamSample.getValue() && readIndexFile()){
+			fileReady = true;
+			return true;
+		}
+		TreeFileIndex index = null;
+		if (useIndexFile.getValue() && file != null && file.getPath() != null){ //stamp the file before surveying it, so changes made during the survey make the index stale
+			index = new TreeFileIndex();
+			if (!index.setSource(new File(file.getPath())))
+				index = null;
+		}
 		if (!goToTreeBlock(file))  	 		
 			return false;
 		if (!processTreeBlock())
 			return false;
 		fileReady = true;
+		if (index != null && surveyComplete)
+			writeIndexFile(index);
+		return true;
+	}
+	/*.................................................................................................................*/
+	/**Processes a tree file compressed with gzip.  The start of the file, up to the end of the first tree, is decompressed into a temporary file,
+	 * which is read as usual to find the TREES block, its translation table, and so on; positions of trees are then positions in the uncompressed text.  
+	 * A BGZF file (as written by bgzip) is surveyed, and its trees read, by seeking within the compressed file.  Other gzip files can only be read from
+	 * the start, so trees are sampled from them in a single pass.*/
+	private boolean processCompressedFile(){
+		MesquiteFile compressedFile = file;
+		compressedPath = file.getPath();
+		try {
+			if (BgzfReader.isBgzf(compressedPath))
+				bgzfReader = new BgzfReader(compressedPath);
+			else if (!getSampleTrees()) {  //refused before the file is decompressed and surveyed, as its trees could not then be read
+				discreetAlert(getGzipSamplingMessage(compressedFile.getName()));
+				closeCompressedReader();
+				return false;
+			}
+			headerCopy = extractHeader(compressedFile.getName());
+		}
+		catch (IOException e){
+			discreetAlert("The compressed tree file " + compressedFile.getName() + " could not be read (" + e.getMessage() + ")");
+			closeCompressedReader();
+			return false;
+		}
+		MesquiteFile headerFile = MesquiteFile.open(headerCopy.getParent() + MesquiteFile.fileSeparator, headerCopy.getName());
+		if (headerFile == null) {
+			closeCompressedReader();
+			return false;
+		}
+		headerFile.useStandardizedTaxonNames = compressedFile.useStandardizedTaxonNames;
+		file = headerFile;
+		boolean success = goToTreeBlock(file) && processTreeBlock();
+		file = compressedFile;
+		headerFile.closeReading();
+		headerFile.dispose();
+		deleteHeaderCopy();  //trees are read from the compressed file itself
+		if (success && bgzfReader == null && streamedTrees == null) {
+			discreetAlert(getGzipSamplingMessage(compressedFile.getName()));
+			success = false;
+		}
+		if (!success) {
+			closeCompressedReader();
+			return false;
+		}
+		fileReady = true;
+		return true;
+	}
+	/*.................................................................................................................*/
+	private String getGzipSamplingMessage(String fileName){
+		return "Trees can be read from the file " + fileName + ", which is compressed with gzip, only by sampling a given number of trees.  To use all of the trees, compress the file with bgzip instead.";
+	}
+	/*.................................................................................................................*/
+	/**Decompresses the start of the compressed tree file, through the end of the first tree statement, into a temporary file with the given name 
+	 * (less any .gz suffix), and returns that file.  The file is put in a new temporary directory of its own, so that surveys of other files at the same
+	 * time do not share it.*/
+	private File extractHeader(String name) throws IOException {
+		if (name.toLowerCase().endsWith(".gz") || name.toLowerCase().endsWith(".bgz"))
+			name = name.substring(0, name.lastIndexOf('.'));
+		File dir = File.createTempFile("augist", "");
+		if (!dir.delete() || !dir.mkdir())
+			throw new IOException("temporary directory could not be made");
+		dir.deleteOnExit();
+		File header = new File(dir, name);
+		header.deleteOnExit();
+		InputStream in = openTreeStream(0);
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(header));
+		try {
+			FirstTreeReceiver receiver = new FirstTreeReceiver();
+			TreeBlockScanner scanner = new TreeBlockScanner(0);
+			byte[] chunk = new byte[1024*1024];
+			ByteBuffer buffer = ByteBuffer.wrap(chunk);
+			long base = 0;
+			int read;
+			while (receiver.firstTreeEnd < 0 && (read = in.read(chunk, 0, chunk.length)) > 0){
+				int from = 0;
+				while (from < read && !scanner.scan(buffer, from, read, base, receiver) && receiver.firstTreeEnd < 0){  //END of a block before the trees; continue after it
+					from = (int)(scanner.getPosition() - base);
+					scanner = new TreeBlockScanner(scanner.getPosition());
+				}
+				if (receiver.firstTreeEnd >= 0)
+					read = (int)(receiver.firstTreeEnd - base);
+				out.write(chunk, 0, read);
+				base += read;
+			}
+		}
+		finally {
+			out.close();
+			in.close();
+		}
+		return header;
+	}
+	/*.................................................................................................................*/
+	/**Stops a TreeBlockScanner at the end of the first tree statement.*/
+	static class FirstTreeReceiver implements TreeBlockScanner.Receiver {
+		long firstTreeEnd = -1;
+		public boolean statementEnded(int kind, long start, long end){
+			if (kind == TreeBlockScanner.TREE){
+				firstTreeEnd = end;
+				return false;
+			}
+			return true;
+		}
+	}
+	/*.................................................................................................................*/
+	/**Opens a stream of the (uncompressed) text of the tree file, starting at offset start.*/
+	private InputStream openTreeStream(long start) throws IOException {
+		if (compressedPath != null && bgzfReader != null) {
+			BgzfReader reader = new BgzfReader(compressedPath);
+			reader.seekUncompressed(start);
+			return reader;
+		}
+		else if (compressedPath != null) {
+			InputStream stream = new GZIPInputStream(new BufferedInputStream(new FileInputStream(compressedPath), 65536), 65536);
+			long toSkip = start;
+			while (toSkip > 0) {
+				long skipped = stream.skip(toSkip);
+				if (skipped <= 0)
+					throw new IOException("Unexpected end of compressed file");
+				toSkip -= skipped;
+			}
+			return stream;
+		}
+		FileInputStream stream = new FileInputStream(file.getPath());
+		stream.getChannel().position(start);
+		return stream;
+	}
+	/*.................................................................................................................*/
+	void closeCompressedReader(){
+		if (bgzfReader != null){
+			try {
+				bgzfReader.close();
+			}
+			catch (IOException e){
+			}
+			bgzfReader = null;
+		}
+		deleteHeaderCopy();
+		compressedPath = null;
+	}
+	/*.................................................................................................................*/
+	/**Deletes the decompressed start of the tree file made by extractHeader, and its directory.*/
+	private void deleteHeaderCopy(){
+		if (headerCopy != null){
+			headerCopy.delete();
+			headerCopy.getParentFile().delete();
+			headerCopy = null;
+		}
+	}
+	/*.................................................................................................................*/
+	/**Clears what was learned from the file previously processed.*/
+	private void resetFileState(){
+		closeDirectAccess();
+		decoder = null;
+		streamedTrees = null;
+		streamStart = -1;
+		closeCompressedReader();
+		if (file != null && file.getPath() != null)
+			fileModifiedTime = new File(file.getPath()).lastModified();
+	}
+	/*.................................................................................................................*/
+	/**Prepares the file for reading using the index file at indexPath, in place of processFile, on the word of an employer that has 
+	 * already checked that the file is unchanged since the index was written (e.g., from a manifest of a directory of tree files).  Only
+	 * the size and modification date of the file are checked again.  Returns false if the index could not be used, in which case processFile should be called.*/
+	public boolean processFileFromIndex(String indexPath){
+		resetFileState();
+		if (file == null || file.getPath() == null || streamSample.getValue() || !getSampleTrees())
+			return false;
+		TreeFileIndex index = TreeFileIndex.read(indexPath);
+		if (index == null || !index.matchesSizeAndDate(new File(file.getPath())) || index.getNumPositions() < 1)
+			return false;
+		if (!applyIndex(index))
+			return false;
+		fileReady = true;
 		return true;
 	}
+	/*.................................................................................................................*/
+	/**Returns the number of trees found in the TREES block of the file.*/
+	public int getNumTreesInFile(){
+		return numTreesInTreeBlock;
+	}
+	/*.................................................................................................................*/
+	/**Returns a signature of the taxa link and translation table of the TREES block, by which an employer can tell whether these have changed.*/
+	public String getTranslationSignature(){
+		return TreeFileIndex.makeSignature(linkedTaxaTitle, file != null && file.useStandardizedTaxonNames, indexTable);
+	}
+	/*.................................................................................................................*/
+	/**Returns the path of the index file for the file, or null if there is none.*/
+	public String getIndexFilePath(){
+		if (file == null || file.getPath() == null || compressedPath != null)
+			return null;
+		String indexPath = TreeFileIndex.getIndexPath(file.getPath());
+		if (!new File(indexPath).exists())
+			return null;
+		return indexPath;
+	}
+	/*.................................................................................................................*/
+	/**Reads the index file stored next to the tree file and, if it is still valid for the tree file, uses it 
+	 * in place of surveying the TREES block.  Returns false if no valid index was found.*/
+	private boolean readIndexFile(){
+		if (file == null || file.getPath() == null)
+			return false;
+		TreeFileIndex index = TreeFileIndex.read(TreeFileIndex.getIndexPath(file.getPath()));
+		if (index == null || !index.isValidFor(new File(file.getPath())) || index.getNumPositions() < 1)
+			return false;
+		return applyIndex(index);
+	}
+	/*.................................................................................................................*/
+	/**Takes the TREES block title, taxa, translation table and tree positions from the index, in place of surveying the TREES block.*/
+	private boolean applyIndex(TreeFileIndex index){
+		if (!file.openReading())
+			return false;
+		if (getProject().getNumberTaxas()==1)
+			taxaInBlock = getProject().getTaxa(0); //as default)
+		trees = new TreeVector(taxaInBlock);
+		trees.setTaxa(taxaInBlock);
+		trees.setName("Trees from \"" + file.getName() + "\"");
+		linkedTaxaTitle = index.getLinkedTaxaTitle();
+		if (linkedTaxaTitle != null){
+			taxaInBlock = findLinkedTaxa(linkedTaxaTitle);
+			trees.setTaxa(taxaInBlock);
+		}
+		if (index.getBlockTitle() != null)
+			trees.setName(index.getBlockTitle());
+		indexTable = index.getTranslationTable();
+		if (indexTable.size() > 0)
+			restoreTranslationTable(indexTable);
+		else if (index.getStandardizedNames()) {
+			if (taxaInBlock == null)
+				taxaInBlock = savedTaxa;
+			for (int it = 0; it<taxaInBlock.getNumTaxa(); it++)
+				trees.setTranslationLabel(Integer.toString(it+1), "t" + it, false);
+			trees.checkTranslationTable();
+		}
+		filePositions = index.getPositions(); //positions were stored as recorded, i.e. already less one
+		highestTreeMarked = filePositions.size()-1;
+		numTreesInTreeBlock = index.getNumTrees();
+		if (getSampleTrees() && treesToSample!=null) {
+			setTreesToSample(numTreesToSample);
+		}
+		surveyComplete = true;
+		if (!quietOperation)
+			logln("Tree file index used for " + file.getName() + " (" + numTreesInTreeBlock + " trees)");
+		return true;
+	}
+	/*.................................................................................................................*/
+	/**Restores the translation table of the tree block from entries of the form "taxonName label", as done when
+	 * the TRANSLATE command is read in processTreeBlock.*/
+	private void restoreTranslationTable(Vector entries){
+		Parser entryParser = new Parser();
+		if (taxaInBlock == null) {
+			Vector table = new Vector();
+			for (int i = 0; i < entries.size(); i++)
+				table.addElement(entries.elementAt(i));
+			taxaInBlock = manager.findTaxaMatchingTable(trees, getProject(), file, table);
+			if (taxaInBlock!=null) {
+				trees.setTaxa(taxaInBlock);
+				trees.setTranslationTable(table);
+			}
+			else
+				discreetAlert( "FAILED.");
+		}
+		else {
+			for (int i = 0; i < entries.size(); i++){
+				String taxonName = entryParser.getFirstToken((String)entries.elementAt(i));
+				String label = entryParser.getNextToken();
+				trees.setTranslationLabel(label, taxonName, false);
+			}
+		}
+		trees.checkTranslationTable();
+	}
+	/*.................................................................................................................*/
+	/**Writes the results of the survey of the TREES block to the index file next to the tree file; index already holds the size, date and header hash of the tree file as they were before the survey.*/
+	private void writeIndexFile(TreeFileIndex index){
+		if (file == null || file.getPath() == null)
+			return;
+		if (trees != null)
+			index.setBlockTitle(trees.getName());
+		index.setLinkedTaxaTitle(linkedTaxaTitle);
+		index.setStandardizedNames(file.useStandardizedTaxonNames);
+		index.setTranslationTable(indexTable);
+		index.setNumTrees(numTreesInTreeBlock);
+		index.setPositions(filePositions);
+		if (!index.write(TreeFileIndex.getIndexPath(file.getPath())) && !quietOperation)
+			logln("Tree file index could not be written for " + file.getName());
+	}
+	/*.................................................................................................................*/
+	/**Finds the taxa block named in a LINK command of the TREES block.*/
+	private Taxa findLinkedTaxa(String taxaTitle){
+		Taxa linked = getProject().getTaxa(file, taxaTitle);
+		if (linked == null)
+			linked = getProject().getTaxaLastFirst(taxaTitle);
+		if (linked == null) {
+			if (getProject().getNumberTaxas(file)==1) //if translation table should search for match
+				linked = getProject().getTaxa(file, 0);
+			else if (getProject().getNumberTaxas(file)==0 && getProject().getNumberTaxas()==1) //if translation table should search for match
+				linked = getProject().getTaxa(0);
+			else
+				discreetAlert( "Taxa block not found for tree block");
+		}
+		return linked;
+	}
 	boolean ended = false;
 	/*.................................................................................................................*/
 	public void endJob(){
+		closeDirectAccess();
+		closeCompressedReader();
 		if (file !=null){
 			file.closeReading();
 			file.dispose();
@@ -332,8 +673,18 @@ public class SampleOneTreeFromFile extends TreeSource implements MesquiteListene
 		if (this.file == null)
 			return null;
 		Snapshot temp = new Snapshot();
+		/*settings for how the file is processed come before setFilePath, which processes the file*/
+		temp.addLine("toggleUseIndex " + useIndexFile.toOffOnString());
+		temp.addLine("toggleByteSurvey " + useByteSurvey.toOffOnString());
+		temp.addLine("toggleParallelSurvey " + parallelSurvey.toOffOnString());
+		if (surveyThreadsChosen)  //otherwise the default is left to the computer on which the file is next opened
+			temp.addLine("setSurveyThreads " + numSurveyThreads);
+		temp.addLine("toggleStreamSample " + streamSample.toOffOnString());
+		temp.addLine("toggleTreeCache " + useTreeCache.toOffOnString());
+		temp.addLine("toggleDirectDecoding " + decodeDirectly.toOffOnString());
 		temp.addLine("setFilePath " + StringUtil.tokenize(MesquiteFile.decomposePath(getProject().getHomeFile().getDirectoryName(), this.file.getPath())));  //quote //todo: should parse name relative to path to home file!!!!!
 		temp.addLine("toggleReread " + rereadWholeFileIfGrows.toOffOnString());
+		temp.addLine("toggleFollowTail " + followTail.toOffOnString());
 		if (canDoLiveUpdate())
 			temp.addLine("toggleLive " + live.toOffOnString());
 		additionalSnapshot(temp);
@@ -372,6 +723,75 @@ public class SampleOneTreeFromFile extends TreeSource implements MesquiteListene
 			if (current!=rereadWholeFileIfGrows.getValue() && !MesquiteThread.isScripting())
 				parametersChanged();
 		}
+		else if (checker.compare(this.getClass(), "Sets whether or not, when the file enlarges, to read only the trees added to the end of the file (e.g., as an analysis runs), rather than the whole file", "[on or off]", commandName, "toggleFollowTail")) {
+			followTail.toggleValue(parser.getFirstToken(arguments));
+		}
+		else if (checker.compare(this.getClass(), "Reads trees added to the end of the file since it was last read, and adds them to the trees sampled", null, commandName, "readAddedTrees")) {
+			int oldNumSampled = treesToSample.size();
+			int added = readAppendedTrees();
+			if (added < 0) {
+				numTrees = MesquiteInteger.finite;
+				parametersChanged();
+			}
+			else if (added > 0 || treesToSample.size() != oldNumSampled)
+				parametersChanged(new Notification(MesquiteListener.NUM_ITEMS_CHANGED, new int[]{oldNumSampled, treesToSample.size() - oldNumSampled}));
+		}
+		else if (checker.compare(this.getClass(), "Sets whether or not to use (and write) an index file stored next to the tree file", "[on or off]", commandName, "toggleUseIndex")) {
+			boolean current = useIndexFile.getValue();
+			useIndexFile.toggleValue(parser.getFirstToken(arguments));
+			if (current!=useIndexFile.getValue())
+				reprocessFile();
+		}
+		else if (checker.compare(this.getClass(), "Sets whether or not to survey the trees in the file by scanning its bytes directly, rather than reading each command", "[on or off]", commandName, "toggleByteSurvey")) {
+			boolean current = useByteSurvey.getValue();
+			useByteSurvey.toggleValue(parser.getFirstToken(arguments));
+			if (current!=useByteSurvey.getValue())
+				reprocessFile();
+		}
+		else if (checker.compare(this.getClass(), "Sets whether or not the survey of the trees in the file (by scanning its bytes) is divided among several threads", "[on or off]", commandName, "toggleParallelSurvey")) {
+			boolean current = parallelSurvey.getValue();
+			parallelSurvey.toggleValue(parser.getFirstToken(arguments));
+			if (current!=parallelSurvey.getValue())
+				reprocessFile();
+		}
+		else if (checker.compare(this.getClass(), "Sets the number of threads used to survey the trees in the file", "[number of threads]", commandName, "setSurveyThreads")) {
+			int num = MesquiteInteger.fromFirstToken(arguments, pos);
+			if (!MesquiteInteger.isCombinable(num) && !MesquiteThread.isScripting())
+				num = MesquiteInteger.queryInteger(containerOfModule(), "Threads for Survey", "Number of threads used to survey the trees in the file:", numSurveyThreads, 1, 256, true);
+			if (MesquiteInteger.isCombinable(num) && num >= 1){
+				surveyThreadsChosen = true;
+				if (num != numSurveyThreads){
+					numSurveyThreads = num;
+					if (parallelSurvey.getValue())
+						reprocessFile();
+				}
+			}
+		}
+		else if (checker.compare(this.getClass(), "Sets whether or not to sample trees while reading the file once, without first counting the trees in the file", "[on or off]", commandName, "toggleStreamSample")) {
+			boolean current = streamSample.getValue();
+			streamSample.toggleValue(parser.getFirstToken(arguments));
+			if (current!=streamSample.getValue())
+				reprocessFile();
+		}
+		else if (checker.compare(this.getClass(), "Sets whether or not to keep trees read from the file in a cache for reuse", "[on or off]", commandName, "toggleTreeCache")) {
+			useTreeCache.toggleValue(parser.getFirstToken(arguments));
+		}
+		else if (checker.compare(this.getClass(), "Sets the maximum number of trees, and the maximum size in megabytes, of the cache of trees read from files (shared by all modules reading trees from files)", "[number of trees] [megabytes]", commandName, "setTreeCacheLimits")) {
+			ParsedTreeCache cache = ParsedTreeCache.getSharedCache();
+			pos.setValue(0);
+			int maxEntries = MesquiteInteger.fromString(arguments, pos);
+			int maxMB = MesquiteInteger.fromString(arguments, pos);
+			if (!MesquiteInteger.isCombinable(maxEntries) && !MesquiteThread.isScripting())
+				maxEntries = MesquiteInteger.queryInteger(containerOfModule(), "Trees in Cache", "Maximum number of trees kept in the cache of trees read from files:", cache.getMaxEntries(), 0, MesquiteInteger.infinite, true);
+			if (!MesquiteInteger.isCombinable(maxMB) && !MesquiteThread.isScripting())
+				maxMB = MesquiteInteger.queryInteger(containerOfModule(), "Size of Cache", "Maximum size (in megabytes) of the cache of trees read from files:", (int)(cache.getMaxBytes()/(1024*1024)), 0, MesquiteInteger.infinite, true);
+			if (MesquiteInteger.isCombinable(maxEntries) && MesquiteInteger.isCombinable(maxMB))
+				cache.setLimits(maxEntries, maxMB*1024L*1024L);
+		}
+		else if (checker.compare(this.getClass(), "Sets whether or not to build trees directly from the bytes of the file, rather than first reading tree descriptions as text", "[on or off]", commandName, "toggleDirectDecoding")) {
+			decodeDirectly.toggleValue(parser.getFirstToken(arguments));
+			decoder = null;  //built again, when next needed, by decodeTree; the survey of the file does not depend on how trees are built
+		}
 		else if (checker.compare(this.getClass(), "Sets whether or not to listen to changes in the file", "[on or off]", commandName, "toggleLive")) {
 			if (canDoLiveUpdate()) {
 				boolean current = live.getValue();
@@ -403,8 +823,21 @@ public class SampleOneTreeFromFile extends TreeSource implements MesquiteListene
 			super.doCommand(commandName, arguments, checker);
 		return null;
 	}
+	/*.................................................................................................................*/
+	/**Processes the file again, as setFilePath does, after a change to a setting for how it is processed.  Not done when scripting, as the settings are then
+	 * read before setFilePath (see getSnapshot).*/
+	private void reprocessFile(){
+		if (file == null || MesquiteThread.isScripting())
+			return;
+		doCommand("setFilePath", StringUtil.tokenize(file.getPath()) + " remain", CommandChecker.defaultChecker);
+	}
 	boolean quietOperation = false;
 	/*.................................................................................................................*/
+	/**Sets whether to work quietly (no progress indicators, few messages), e.g., when many files are processed at once by an employer.*/
+	public void setQuietOperation(boolean quiet){
+		quietOperation = quiet;
+	}
+	/*.................................................................................................................*/
 	/** finds the ith block of a given type and returns it raw.*/
 	private boolean goToTreeBlock(MesquiteFile mNF){
 		ProgressIndicator progIndicator = null;
@@ -485,12 +918,15 @@ public class SampleOneTreeFromFile extends TreeSource implements MesquiteListene
 		MesquiteInteger status = new MesquiteInteger(0);
 		ProgressIndicator surveyTreesIndicator=null;
 
-		if (getSampleTrees()) {
+		if (getSampleTrees() && !quietOperation) {
 			surveyTreesIndicator =  new ProgressIndicator(getProject(),"Processing File "+ file.getName() + " to survey trees", file.existingLength());
 			surveyTreesIndicator.start();
 			//	surveyTreesIndicator.startTimer();
 		}
 		boolean treesEncountered=false;
+		surveyComplete = false;
+		linkedTaxaTitle = null;
+		indexTable = new Vector();
 
 		file.goToFilePosition(file.getFilePosition()-1);  //needed because of where file pos last left
 		if (file.getFilePosition()<0)
@@ -505,18 +941,25 @@ public class SampleOneTreeFromFile extends TreeSource implements MesquiteListene
 			if (status.getValue() == 2) { //end of block reached
 				numTreesInTreeBlock = treeNum;
 				if (getSampleTrees() && treesToSample!=null) {
-					treesToSample.resetSize(numTreesInTreeBlock);
-					if (MesquiteInteger.isCombinable(numTreesToSample))//TODO: omit numTreesToSample should always equal 1
-						setTreesToSample(numTreesToSample);
+					setTreesToSample(numTreesToSample);
 				}
 				if (surveyTreesIndicator!=null)
 					surveyTreesIndicator.goAway();
+				surveyComplete = true;
 				return true;
 			}
 			String punc = ",";
 			String commandName = parser.getFirstToken(s);
 
 			if (commandName.equalsIgnoreCase("TREE") || commandName.equalsIgnoreCase("UTREE") || commandName.equalsIgnoreCase("RTREE"))  {
+				if (!treesEncountered && (streamSample.getValue() || (compressedPath != null && bgzfReader == null)) && getSampleTrees() && MesquiteInteger.isCombinable(numTreesToSample) && posExists(treeNum)) {
+					//sample trees from here on as the file is read, rather than counting them first
+					if (streamSampleTrees(getFilePos(treeNum)+1, surveyTreesIndicator)){
+						if (surveyTreesIndicator!=null)
+							surveyTreesIndicator.goAway();
+						return true;
+					}
+				}
 				treesEncountered=true;
 				if (getSampleTrees()) {
 					if (surveyTreesIndicator != null) {
@@ -525,9 +968,7 @@ public class SampleOneTreeFromFile extends TreeSource implements MesquiteListene
 							if (response==2) {
 								numTreesInTreeBlock = treeNum;
 								if (treesToSample!=null) {
-									treesToSample.resetSize(numTreesInTreeBlock);
-									if (MesquiteInteger.isCombinable(numTreesToSample))//TODO: omit numTreesToSample should always equal 1
-										setTreesToSample(numTreesToSample);
+									setTreesToSample(numTreesToSample);
 								}
 								surveyTreesIndicator.goAway();
 								return true;
@@ -544,6 +985,30 @@ public class SampleOneTreeFromFile extends TreeSource implements MesquiteListene
 					}
 					recordFilePos(treeNum+1, file.getFilePosition());
 					treeNum++;
+					if (useByteSurvey.getValue() || compressedPath != null) {  //the remaining trees are found by scanning bytes, rather than reading commands
+						MesquiteInteger surveyCount = new MesquiteInteger(treeNum);
+						int surveyResult = surveyRemainingTrees(file.getFilePosition(), surveyCount, surveyTreesIndicator);
+						if (surveyResult == SURVEY_END || surveyResult == SURVEY_PARTIAL) {
+							numTreesInTreeBlock = surveyCount.getValue();
+							if (treesToSample!=null) {
+								setTreesToSample(numTreesToSample);
+							}
+							if (surveyTreesIndicator!=null)
+								surveyTreesIndicator.goAway();
+							surveyComplete = (surveyResult == SURVEY_END);
+							return true;
+						}
+						else if (surveyResult == SURVEY_CANCELLED) {
+							if (surveyTreesIndicator!=null)
+								surveyTreesIndicator.goAway();
+							return true;
+						}
+						else if (surveyResult == SURVEY_EOF) {
+							treeNum = surveyCount.getValue();
+							break;
+						}
+						//if SURVEY_FAILED, continue reading commands
+					}
 				}
 				else {
 					recordFilePos(treeNum+1, file.getFilePosition());
@@ -581,6 +1046,7 @@ public class SampleOneTreeFromFile extends TreeSource implements MesquiteListene
 						table.addElement(StringUtil.tokenize(taxonName) + " " + StringUtil.tokenize(label));
 					else
 						trees.setTranslationLabel(label, taxonName, false);
+					indexTable.addElement(StringUtil.tokenize(taxonName) + " " + StringUtil.tokenize(label));
 					punc =  parser.getNextToken(); 
 					if (punc !=null && !punc.equals(";")) {
 						label =  parser.getNextToken();
@@ -620,17 +1086,8 @@ public class SampleOneTreeFromFile extends TreeSource implements MesquiteListene
 					MesquiteMessage.println("Warning: LINK command encountered after trees were found in TREES block; there may be a problem with processing this file");
 				if ("taxa".equalsIgnoreCase(parser.getTokenNumber(2))) {
 					String taxaTitle = parser.getTokenNumber(4);
-					taxaInBlock = getProject().getTaxa(file, taxaTitle);
-					if (taxaInBlock == null)
-						taxaInBlock = getProject().getTaxaLastFirst(taxaTitle);
-					if (taxaInBlock == null) {
-						if (getProject().getNumberTaxas(file)==1) //if translation table should search for match
-							taxaInBlock = getProject().getTaxa(file, 0);
-						else if (getProject().getNumberTaxas(file)==0 && getProject().getNumberTaxas()==1) //if translation table should search for match
-							taxaInBlock = getProject().getTaxa(0);
-						else
-							discreetAlert( "Taxa block not found for tree block");
-					}
+					linkedTaxaTitle = taxaTitle;
+					taxaInBlock = findLinkedTaxa(taxaTitle);
 					trees.setTaxa(taxaInBlock);
 					if (!nameSet)
 						trees.setName("Trees block from " + file.getName());
@@ -653,12 +1110,192 @@ public class SampleOneTreeFromFile extends TreeSource implements MesquiteListene
 				surveyTreesIndicator.goAway();
 		}
 		if (getSampleTrees() && treesToSample!=null) {
-			treesToSample.resetSize(numTreesInTreeBlock);
 			setTreesToSample(numTreesToSample);
 		}
+		surveyComplete = true;
+		return true;
+	}
+	static final int SURVEY_FAILED = 0;
+	static final int SURVEY_END = 1;
+	static final int SURVEY_EOF = 2;
+	static final int SURVEY_PARTIAL = 3;
+	static final int SURVEY_CANCELLED = 4;
+	/*.................................................................................................................*/
+	/**Finds the remaining trees of the TREES block, starting at file position start, by scanning the bytes of the file with a TreeBlockScanner.  
+	 * The position of each tree found is recorded as it would be by processTreeBlock.  On entry treeCount holds the number of trees already
+	 * found; on exit it holds the number found in total.  Returns SURVEY_FAILED if the file could not be scanned; otherwise indicates whether the
+	 * END of the block was found, the end of the file was reached, or the user stopped the survey.*/
+	private int surveyRemainingTrees(long start, MesquiteInteger treeCount, ProgressIndicator surveyTreesIndicator){
+		if (file == null || file.getPath() == null || start < 0)
+			return SURVEY_FAILED;
+		SurveyReceiver receiver = new SurveyReceiver(treeCount.getValue(), surveyTreesIndicator);
+		if (compressedPath != null)
+			return surveyCompressedTrees(start, treeCount, receiver);
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file.getPath(), "r");
+			TreeBlockScanner scanner;
+			if (parallelSurvey.getValue() && numSurveyThreads > 1)
+				scanner = ParallelTreeBlockScanner.scanFile(raf.getChannel(), start, raf.length(), numSurveyThreads, receiver);
+			else
+				scanner = TreeBlockScanner.scanFile(raf.getChannel(), start, raf.length(), receiver);
+			treeCount.setValue(receiver.treeNum);
+			if (receiver.response == 2)
+				return SURVEY_PARTIAL;
+			if (receiver.response == 3)
+				return SURVEY_CANCELLED;
+			if (scanner.isEndReached())
+				return SURVEY_END;
+			return SURVEY_EOF;
+		}
+		catch (IOException e){
+			MesquiteMessage.warnProgrammer("Tree file could not be scanned in " + getName() + " (" + e.getMessage() + "); reading commands instead.");
+			return SURVEY_FAILED;
+		}
+		finally {
+			if (raf != null){
+				try {
+					raf.close();
+				}
+				catch (IOException e){
+				}
+			}
+		}
+	}
+	/*.................................................................................................................*/
+	/**Finds the remaining trees in a compressed file, as does surveyRemainingTrees, by reading the decompressed text in sequence.*/
+	private int surveyCompressedTrees(long start, MesquiteInteger treeCount, SurveyReceiver receiver){
+		InputStream stream = null;
+		try {
+			stream = openTreeStream(start);
+			TreeBlockScanner scanner = TreeBlockScanner.scanStream(stream, start, receiver);
+			treeCount.setValue(receiver.treeNum);
+			if (receiver.response == 2)
+				return SURVEY_PARTIAL;
+			if (receiver.response == 3)
+				return SURVEY_CANCELLED;
+			if (scanner.isEndReached())
+				return SURVEY_END;
+			return SURVEY_EOF;
+		}
+		catch (IOException e){
+			MesquiteMessage.warnProgrammer("Compressed tree file could not be scanned in " + getName() + " (" + e.getMessage() + ")");
+			return SURVEY_FAILED;
+		}
+		finally {
+			if (stream != null){
+				try {
+					stream.close();
+				}
+				catch (IOException e){
+				}
+			}
+		}
+	}
+	/*.................................................................................................................*/
+	/**Samples numTreesToSample trees (after skipping numStartTreesToIgnore trees) in a single sequential read of the file from position start, 
+	 * which should be the start of the first tree command.  The sample is held in memory, so getTreeDescription need not return to the file.*/
+	private boolean streamSampleTrees(long start, ProgressIndicator progIndicator){
+		if (file == null || file.getPath() == null || start < 0)
+			return false;
+		TreeReservoirSampler sampler = new TreeReservoirSampler(numTreesToSample, numStartTreesToIgnore, sampleRandom);
+		InputStream stream = null;
+		boolean ownIndicator = false;
+		try {
+			stream = openTreeStream(start);
+			if (progIndicator == null && !quietOperation) {
+				ownIndicator = true;
+				progIndicator = new ProgressIndicator(getProject(),"Sampling trees from file "+ file.getName(), file.existingLength());
+				progIndicator.start();
+			}
+			if (progIndicator != null)
+				progIndicator.setText("Sampling trees from file " + file.getName());
+			sampler.sampleStream(stream, start);
+		}
+		catch (IOException e){
+			MesquiteMessage.warnProgrammer("Trees could not be sampled from file in " + getName() + " (" + e.getMessage() + ")");
+			return false;
+		}
+		finally {
+			if (stream != null){
+				try {
+					stream.close();
+				}
+				catch (IOException e){
+				}
+			}
+			if (ownIndicator)
+				progIndicator.goAway();
+		}
+		streamedTrees = sampler;
+		streamStart = start;
+		numTreesInTreeBlock = sampler.getNumTreesSeen();
+		treesToSample.setSample(sampler.getTreeIndices());
+		lastTreeRead = -1;
+		if (!quietOperation)
+			logln(sampler.getNumSampled() + " trees sampled from the " + numTreesInTreeBlock + " trees in file " + file.getName());
 		return true;
 	}
 	/*.................................................................................................................*/
+	/**Returns whether trees added to the end of the file can be read without reading the file again from the start.*/
+	private boolean canReadAppendedTrees(){
+		return file != null && fileReady && streamedTrees == null && compressedPath == null && getSampleTrees() && highestTreeMarked > 0 && highestTreeMarked == numTreesInTreeBlock
+				&& MesquiteLong.isCombinable(filePositions.get(highestTreeMarked));
+	}
+	/*.................................................................................................................*/
+	/**Scans the file from the end of the last tree known for trees appended since, records their positions, and extends the sample of trees to
+	 * include them.  Returns the number of trees added, or -1 if the file could not be scanned this way (in which case it should be read again
+	 * from the start).*/
+	public int readAppendedTrees(){
+		if (!canReadAppendedTrees())
+			return -1;
+		int oldNumTrees = numTreesInTreeBlock;
+		MesquiteInteger treeCount = new MesquiteInteger(oldNumTrees);
+		int surveyResult = surveyRemainingTrees(getFilePos(oldNumTrees)+1, treeCount, null);
+		if (surveyResult == SURVEY_FAILED)
+			return -1;
+		int added = treeCount.getValue() - oldNumTrees;
+		if (added <= 0)
+			return 0;
+		numTreesInTreeBlock = treeCount.getValue();
+		int toSample = -1;
+		if (MesquiteInteger.isCombinable(numTreesToSample))
+			toSample = numTreesToSample;
+		treesToSample.extend(toSample, numStartTreesToIgnore, oldNumTrees, numTreesInTreeBlock, sampleRandom);
+		if (!quietOperation)
+			logln(added + " trees added to file " + file.getName() + " (" + numTreesInTreeBlock + " trees in total)");
+		return added;
+	}
+	/*.................................................................................................................*/
+	/**Records the positions of trees found by a TreeBlockScanner, and reports progress.*/
+	class SurveyReceiver implements TreeBlockScanner.Receiver {
+		int treeNum;
+		int response = 1;
+		ProgressIndicator surveyTreesIndicator;
+		public SurveyReceiver(int treeNum, ProgressIndicator surveyTreesIndicator){
+			this.treeNum = treeNum;
+			this.surveyTreesIndicator = surveyTreesIndicator;
+		}
+		public boolean statementEnded(int kind, long start, long end){
+			if (kind != TreeBlockScanner.TREE)
+				return true;
+			if (surveyTreesIndicator != null) {
+				if (surveyTreesIndicator.isAborted()) {
+					response = AlertDialog.query(containerOfModule(), "Continue with tree file processing?", "Continue with tree file processing?", "Continue", "Use Only Trees Processed", "Cancel", 1);
+					if (response==2 || response==3)
+						return false;
+				}
+				if (treeNum % 50 == 0) {
+					surveyTreesIndicator.setText("Counting trees in file " + treeNum);
+					surveyTreesIndicator.setCurrentValue(end);
+				}
+			}
+			recordFilePos(treeNum+1, end);
+			treeNum++;
+			return true;
+		}
+	}
+	/*.................................................................................................................*/
 	/* Note: this returns a file position only if the tree index is within the range in the file AND the tree reading has already passed
 	that point.  It does not force a scan to find that tree if file reading has yet to proceed that far */
 	public long getFilePos(int iTree){
@@ -669,34 +1306,21 @@ public class SampleOneTreeFromFile extends TreeSource implements MesquiteListene
 				MesquiteMessage.warnProgrammer("NO POS RECORDED in " + getName() + " ( tree " + iTree + ")");
 			return MesquiteLong.unassigned;
 		}
-		int vec = iTree / arraySize;
-		int loc = iTree % arraySize;
-		long[] filePosTrees = (long[])filePosVector.elementAt(vec);
-		if (loc <0 || loc > filePosTrees.length)
-			return -1;
-		return filePosTrees[loc];
+		return filePositions.get(iTree);
 	}
 	boolean posExists(int iTree){
-		return (iTree < arraySize*filePosVector.size()) ;
+		return (iTree >= 0 && iTree < filePositions.size()) ;
 	}
 	/*.................................................................................................................*/
 	void recordFilePos(int iTree, long pos){
-		if (pos<0 || pos > 100000000000L) {
+		if (pos<0 || iTree<0) {
 			if (!quietOperation)
 				MesquiteMessage.warnProgrammer("illegal file pos in " + getName());
 			return;
 		}
-		long[] filePosTrees;
-		while (!posExists(iTree)) {
-			filePosTrees = new long[arraySize];
-			for (int i=0; i<arraySize; i++)
-				filePosTrees[i] = MesquiteLong.unassigned;
-			filePosVector.addElement(filePosTrees);
-		}
-		int vec = iTree / arraySize;
-		int loc = iTree % arraySize;
-		filePosTrees = (long[])filePosVector.elementAt(vec);
-		filePosTrees[loc] = pos-1; //-1 to ensure not too far
+		while (filePositions.size() < iTree)  //positions of trees skipped over are not known
+			filePositions.add(MesquiteLong.unassigned);
+		filePositions.set(iTree, pos-1); //-1 to ensure not too far
 		if (iTree > highestTreeMarked)
 			highestTreeMarked = iTree;
 	}
@@ -733,8 +1357,18 @@ public class SampleOneTreeFromFile extends TreeSource implements MesquiteListene
 		MesquiteInteger status = new MesquiteInteger(0);
 		if (file==null)
 			return null;
+		if (streamedTrees != null) {  //trees were sampled in a single pass through the file, and are held in memory
+			command = streamedTrees.getStatement(currentTree, comment);
+			if (command != null && currentTree>highestSuccessfulTree){
+				highestSuccessfulTree = currentTree;
+				highestSuccessfulDescription = command;
+			}
+			lastTreeRead = currentTree;
+			return command;
+		}
+		if (bgzfReader != null)  //compressed file; MesquiteFile cannot read it, and so the text of the tree is read directly
+			return getCompressedTreeDescription(currentTree, comment);
 		if (getSampleTrees()) {
-			int treeSelected = treesToSample.numBitsOn();
 			long fPos = getFilePos(findTreeNumber(currentTree));
 			if (!MesquiteLong.isCombinable(fPos))
 				return null;
@@ -847,6 +1481,50 @@ public class SampleOneTreeFromFile extends TreeSource implements MesquiteListene
 		return command;
 	}
 	/*.................................................................................................................*/
+	/**Returns the tree statement for the sampled tree currentTree, read from a BGZF file using the positions found in the survey.*/
+	String getCompressedTreeDescription(int currentTree, StringBuffer comment){
+		int fileTreeIndex = findTreeNumber(currentTree);
+		if (!MesquiteInteger.isCombinable(fileTreeIndex) || !posExists(fileTreeIndex) || !posExists(fileTreeIndex+1))
+			return null;
+		long start = filePositions.get(fileTreeIndex)+1;
+		long end = filePositions.get(fileTreeIndex+1)+1;
+		if (!MesquiteLong.isCombinable(start) || !MesquiteLong.isCombinable(end) || end <= start || !readStatementBytes(start, (int)(end - start)))
+			return null;
+		String command = TreeReservoirSampler.cleanStatement(new String(statementBytes.array(), 0, (int)(end - start)), comment);
+		if (currentTree>highestSuccessfulTree){
+			highestSuccessfulTree = currentTree;
+			highestSuccessfulDescription = command;
+		}
+		lastTreeRead = currentTree;
+		return command;
+	}
+	/*.................................................................................................................*/
+	/**Reads length bytes of the (uncompressed) text of the tree file, starting at offset start, into statementBytes.  Returns false if they could not be read.*/
+	boolean readStatementBytes(long start, int length){
+		if (statementBytes == null || statementBytes.capacity() < length)
+			statementBytes = ByteBuffer.allocate(Math.max(length, 8192));
+		statementBytes.clear();
+		statementBytes.limit(length);
+		try {
+			if (bgzfReader != null) {
+				bgzfReader.seekUncompressed(start);
+				bgzfReader.readFully(statementBytes.array(), 0, length);
+				return true;
+			}
+			if (directAccess == null)
+				directAccess = new RandomAccessFile(file.getPath(), "r");
+			while (statementBytes.hasRemaining()) {
+				if (directAccess.getChannel().read(statementBytes, start + statementBytes.position()) < 0)
+					return false;
+			}
+		}
+		catch (IOException e){
+			closeDirectAccess();
+			return false;
+		}
+		return true;
+	}
+	/*.................................................................................................................*/
 	private Tree getCurrentTree(Taxa taxa, boolean processTree, MesquiteTree t) {
 		if (!fileReady)
 			return null;
@@ -865,6 +1543,33 @@ public class SampleOneTreeFromFile extends TreeSource implements MesquiteListene
 		if (taxa == null)
 			taxa = taxaInBlock;
 
+		int fileTreeIndex = MesquiteInteger.unassigned;  //index of the tree within the file, used to look up and store trees in the cache
+		if (processTree && t == null && useTreeCache.getValue() && file != null) {
+			fileTreeIndex = findTreeNumber(currentTree);
+			if (MesquiteInteger.isCombinable(fileTreeIndex)){
+				MesquiteTree cachedTree = ParsedTreeCache.getSharedCache().get(file.getPath(), fileModifiedTime, fileTreeIndex, taxa);
+				if (cachedTree != null) {
+					cachedTree.setFileIndex(currentTree);
+					currentTreeName = cachedTree.getName();
+					lastTreeRead = currentTree;
+					return cachedTree;
+				}
+			}
+		}
+		if (processTree && t == null && decodeDirectly.getValue()) {
+			MesquiteTree decodedTree = decodeTree(taxa, findTreeNumber(currentTree));
+			if (decodedTree != null) {
+				decodedTree.setFileIndex(currentTree);
+				currentTreeName = decodedTree.getName();
+				lastTreeRead = currentTree;
+				if (currentTree > highestSuccessfulTree)
+					highestSuccessfulTree = currentTree;
+				if (MesquiteInteger.isCombinable(fileTreeIndex))
+					ParsedTreeCache.getSharedCache().put(file.getPath(), fileModifiedTime, fileTreeIndex, decodedTree);
+				return decodedTree;
+			}
+		}
+
 		MesquiteInteger status = new MesquiteInteger(0);
 		StringBuffer comment = new StringBuffer();
 		String treeCommand = getTreeDescription(currentTree, comment);
@@ -933,10 +1638,60 @@ public class SampleOneTreeFromFile extends TreeSource implements MesquiteListene
 			trees.removeElement(thisTree, false);
 			if (!success)
 				return null;
+			if (MesquiteInteger.isCombinable(fileTreeIndex))
+				ParsedTreeCache.getSharedCache().put(file.getPath(), fileModifiedTime, fileTreeIndex, thisTree);
 		}
 		return thisTree;
 	}
 	/*.................................................................................................................*/
+	/**Builds the tree with index fileTreeIndex in the file directly from the bytes of its TREE statement, whose bounds are known
+	 * from the survey of the file.  Returns null if the bounds are not known or the statement is not one the decoder can read,
+	 * in which case the tree should be read from its description as usual.*/
+	private MesquiteTree decodeTree(Taxa taxa, int fileTreeIndex){
+		if (file == null || file.getPath() == null || taxa == null || streamedTrees != null || !getSampleTrees())
+			return null;
+		if (!MesquiteInteger.isCombinable(fileTreeIndex) || !posExists(fileTreeIndex) || !posExists(fileTreeIndex+1))
+			return null;
+		long start = filePositions.get(fileTreeIndex)+1;
+		long end = filePositions.get(fileTreeIndex+1)+1;
+		if (!MesquiteLong.isCombinable(start) || !MesquiteLong.isCombinable(end) || end <= start || end - start > MAXDIRECTSTATEMENT)
+			return null;
+		int length = (int)(end - start);
+		if (!readStatementBytes(start, length))
+			return null;
+		if (decoder == null || decoderTaxa != taxa || decoderTable != indexTable){
+			if (file.useStandardizedTaxonNames && (indexTable == null || indexTable.size() == 0))
+				return null;
+			decoder = new NewickDecoder(taxa, indexTable);
+			decoderTaxa = taxa;
+			decoderTable = indexTable;
+		}
+		if (!decoder.decode(statementBytes, 0, length))
+			return null;
+		MesquiteTree tree = new MesquiteTree(taxa);
+		tree.setTreeVector(trees);
+		decoder.fillTree(tree);
+		double w = decoder.getWeight();
+		if (MesquiteDouble.isCombinable(w)) {
+			MesquiteDouble d = new MesquiteDouble(w);
+			d.setName(TreesManager.WEIGHT);
+			tree.attachIfUniqueName(d);
+		}
+		return tree;
+	}
+	static final long MAXDIRECTSTATEMENT = 16*1024*1024;
+	/*.................................................................................................................*/
+	void closeDirectAccess(){
+		if (directAccess != null){
+			try {
+				directAccess.close();
+			}
+			catch (IOException e){
+			}
+			directAccess = null;
+		}
+	}
+	/*.................................................................................................................*/
 	public Tree getTree(Taxa taxa, int itree) {
 		setPreferredTaxa(taxa);
 		currentTree=itree;
@@ -1007,6 +1762,12 @@ public class SampleOneTreeFromFile extends TreeSource implements MesquiteListene
 		if (!live.getValue())
 			return;
 		fileWasModified = false;
+		if (longer>0 && followTail.getValue() && canReadAppendedTrees()) {  //earlier trees are unchanged, so only the new ones need be read
+			readAddedTreesCommand.doItMainThread(null, null, false, false);
+			return;
+		}
+		if (file != null && file.getPath() != null)
+			fileModifiedTime = new File(file.getPath()).lastModified();  //so that trees cached from the earlier file are not used
 		int s = numTrees;
 		numTrees = MesquiteInteger.finite;
 		highestSuccessfulTree = -1;
@@ -1031,6 +1792,8 @@ public class SampleOneTreeFromFile extends TreeSource implements MesquiteListene
 			return null;
 		String s = "Trees obtained from file " + file.getName();
 		s += "\n" + reportTreesSampled();
+		if (useTreeCache.getValue())
+			s += "\n" + ParsedTreeCache.getSharedCache().getReport();
 		return s;
 	}
 }
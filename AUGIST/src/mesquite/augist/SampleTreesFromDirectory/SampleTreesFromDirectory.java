@@ -14,9 +14,16 @@ package mesquite.augist.SampleTreesFromDirectory;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 //import mesquite.augist.SampleManyTreesCmd.*;
 import mesquite.augist.SampleManyTreesCmd.SampleManyTreesCmd;
 import mesquite.augist.SampleOneTreeFromFile.SampleOneTreeFromFile;
+import mesquite.augist.lib.RandomStreams;
+import mesquite.augist.lib.TreeDirectoryManifest;
+import mesquite.augist.lib.TreeFileIndex;
+import mesquite.augist.lib.TreeFileReader;
+import mesquite.augist.lib.TreeFileReaderPool;
 import mesquite.lib.*;
 import mesquite.lib.duties.*;
 import mesquite.trees.lib.*;
@@ -31,6 +38,20 @@ public class SampleTreesFromDirectory extends TreeBlockSource{
 	File directory;
 	static String previousDirectory = null;
 	Vector fillerTasks;
+	int numSurveyThreads = Math.min(8, Runtime.getRuntime().availableProcessors());
+	boolean surveyThreadsChosen = false;  //whether numSurveyThreads was set, rather than taken from the number of processors of this computer
+	MesquiteBoolean useManifest = new MesquiteBoolean(true);
+	MesquiteBoolean usePooledReaders = new MesquiteBoolean(true);
+	TreeFileReaderPool readerPool = new TreeFileReaderPool();
+	/*Each block is sampled with its own stream from the master seed, and each file within the block with its own stream from that*/
+	long masterSeed = System.currentTimeMillis();
+	long blockNumber = 0;
+	/**Number of files surveyed by hired modules before they are replaced by readers*/
+	static final int SURVEYBATCH = 64;
+	int numFillThreads = Math.min(8, Runtime.getRuntime().availableProcessors());
+	boolean fillThreadsChosen = false;  //whether numFillThreads was set, rather than taken from the number of processors of this computer
+	ExecutorService fillPool = null;
+	int fillPoolThreads = 0;
 
 	public String getName() {
 		return "Sample Trees from Directory";
@@ -47,6 +68,9 @@ public class SampleTreesFromDirectory extends TreeBlockSource{
 	/*................................................................................................*/
 	public boolean startJob(String arguments, Object condition, boolean hiredByName) {
 		addMenuItem("Directory for Sample Trees From Directory...", makeCommand("setDirPath",  this));
+		addCheckMenuItem(null, "Keep Manifest of Tree Files in Directory", makeCommand("toggleManifest",  this), useManifest);
+		addCheckMenuItem(null, "Use Pooled Readers for Tree Files", makeCommand("togglePooledReaders",  this), usePooledReaders);
+		addMenuItem("Maximum Number of Open Tree Files...", makeCommand("setMaxOpenFiles",  this));
 		fillerTasks = new Vector();
 		if(!MesquiteThread.isScripting()){//enclosed in conditional to avoid hiring query when opening file; should be handled by snapshot/doCommand when file is opened.
 			String directoryPath = MesquiteFile.chooseDirectory("Choose directory containing tree files:", previousDirectory); //MesquiteFile.saveFileAsDialog("Base name for files (files will be named <name>1.nex, <name>2.nex, etc.)", baseName);
@@ -64,12 +88,73 @@ public class SampleTreesFromDirectory extends TreeBlockSource{
 		return true;//Add something to make sure directory paths are set up correctly, when not scripting...
 	}
 
+	/*................................................................................................*/
+	public Snapshot getSnapshot(MesquiteFile file) {
+		Snapshot temp = new Snapshot();
+		if (surveyThreadsChosen)  //otherwise the default is left to the computer on which the file is next opened
+			temp.addLine("setSurveyThreads " + numSurveyThreads);
+		temp.addLine("toggleManifest " + useManifest.toOffOnString());
+		temp.addLine("togglePooledReaders " + usePooledReaders.toOffOnString());
+		temp.addLine("setMaxOpenFiles " + readerPool.getMaxOpenFiles());
+		if (fillThreadsChosen)
+			temp.addLine("setFillThreads " + numFillThreads);
+		temp.addLine("setSeed " + masterSeed);
+		return temp;
+	}
 	/*................................................................................................*/
 	public Object doCommand(String commandName, String arguments, CommandChecker checker) {
 		//TODO: add setDirPath commands here
+		if (checker.compare(this.getClass(), "Sets the number of tree files surveyed at the same time when the directory is opened", "[number of threads]", commandName, "setSurveyThreads")) {
+			int num = MesquiteInteger.fromFirstToken(arguments, new MesquiteInteger(0));
+			if (MesquiteInteger.isCombinable(num) && num >= 1){
+				numSurveyThreads = num;
+				surveyThreadsChosen = true;
+			}
+			return null;
+		}
+		else if (checker.compare(this.getClass(), "Sets whether or not to keep a manifest of the tree files in the directory, so that unchanged files need not be surveyed again when the directory is next used", "[on or off]", commandName, "toggleManifest")) {
+			useManifest.toggleValue(parser.getFirstToken(arguments));
+			return null;
+		}
+		else if (checker.compare(this.getClass(), "Sets whether or not trees are read from the tree files by lightweight pooled readers, rather than by a module for each file", "[on or off]", commandName, "togglePooledReaders")) {
+			usePooledReaders.toggleValue(parser.getFirstToken(arguments));
+			return null;
+		}
+		else if (checker.compare(this.getClass(), "Sets the maximum number of tree files held open at once by the pooled readers", "[number of files]", commandName, "setMaxOpenFiles")) {
+			int num = MesquiteInteger.fromFirstToken(arguments, new MesquiteInteger(0));
+			if (!MesquiteInteger.isCombinable(num) && !MesquiteThread.isScripting())
+				num = MesquiteInteger.queryInteger(containerOfModule(), "Open Tree Files", "Maximum number of tree files held open at once:", readerPool.getMaxOpenFiles(), 1, 100000, true);
+			if (MesquiteInteger.isCombinable(num) && num >= 1)
+				readerPool.setMaxOpenFiles(num);
+			return null;
+		}
+		else if (checker.compare(this.getClass(), "Sets the number of threads reading trees from the tree files when a block of trees is filled", "[number of threads]", commandName, "setFillThreads")) {
+			int num = MesquiteInteger.fromFirstToken(arguments, new MesquiteInteger(0));
+			if (MesquiteInteger.isCombinable(num) && num >= 1){
+				numFillThreads = num;
+				fillThreadsChosen = true;
+			}
+			return null;
+		}
+		else if (checker.compare(this.getClass(), "Sets the seed from which the trees are drawn from the files; the sequence of blocks starts again from the first", "[seed]", commandName, "setSeed")) {
+			long seed = MesquiteLong.fromString(parser.getFirstToken(arguments));
+			if (MesquiteLong.isCombinable(seed)){
+				masterSeed = seed;
+				blockNumber = 0;
+				currentTreeBlockIndex = -1;  //the next block requested is drawn with the new seed, even if it has the number of the current one
+			}
+			return null;
+		}
 		return super.doCommand(commandName, arguments, checker);
 	}
 	/*................................................................................................*/
+	public void endJob(){
+		if (fillPool != null)
+			fillPool.shutdownNow();
+		readerPool.closeAll();
+		super.endJob();
+	}
+	/*................................................................................................*/
 	@Override
 	public void initialize(Taxa taxa) {
 		setPreferredTaxa(taxa);
@@ -88,40 +173,292 @@ public class SampleTreesFromDirectory extends TreeBlockSource{
 		}
 	}
 	/*................................................................................................*/
+	/**Sets up a source of trees for each tree file in the directory.  Files that the manifest of the directory shows to be unchanged since they were
+	 * last surveyed, and whose indexes are still those recorded in the manifest, are read by TreeFileReaders from the pool, without being surveyed again.  The others are surveyed by SampleOneTreeFromFile modules,
+	 * hired in turn on this thread (as Mesquite requires) in batches, each batch surveyed concurrently by up to numSurveyThreads threads.  If pooled readers
+	 * are used, each module whose file was indexed is then replaced by a TreeFileReader and fired, so that few modules are held at once; otherwise the modules are kept.*/
 	private boolean hireFillers(String directoryPath){
 		String[] files = directory.list();
-		String treePath;
+		Vector treePaths = new Vector();
+		Vector failures = new Vector();
 		for(int i = 0; i < files.length; i++){
 			if(files[i] != null){
 				String fileLowerCase = files[i].toLowerCase();
 				if(fileLowerCase.endsWith(".nex") || fileLowerCase.endsWith(".nexus")){
-					treePath = directoryPath + MesquiteFile.fileSeparator + files[i];
-					File treeFile = new File(treePath);
-					String treeFileName = treeFile.getName();
-					if (StringUtil.blank(treeFileName)) {
+					if (StringUtil.blank(new File(directoryPath + MesquiteFile.fileSeparator + files[i]).getName())) {
 						return false;
 					}
-					TreeBlockFiller newFiller;
-					newFiller = (TreeBlockFiller)hireNamedEmployee(TreeBlockFiller.class, "#SampleOneTreeFromFile");// treePath);
-					if(newFiller != null){
-						if(((SampleOneTreeFromFile)newFiller).setFilePath(treePath) && ((SampleOneTreeFromFile)newFiller).processFile()){
-							fillerTasks.addElement(newFiller);
+					treePaths.addElement(directoryPath + MesquiteFile.fileSeparator + files[i]);
+				}
+			} 
+		}
+		int numFiles = treePaths.size();
+		Object[] sources = new Object[numFiles];
+		TreeDirectoryManifest manifest = null;
+		if (useManifest.getValue())
+			manifest = TreeDirectoryManifest.read(directory);
+		Vector fileNames = new Vector();
+		for (int i = 0; i < numFiles; i++)
+			fileNames.addElement(new File((String)treePaths.elementAt(i)).getName());
+		int numUnchanged = 0;
+		int batchSize = numFiles;
+		if (usePooledReaders.getValue()){
+			batchSize = Math.max(SURVEYBATCH, numSurveyThreads*4);
+			if (manifest != null){
+				for (int i = 0; i < numFiles; i++){
+					TreeDirectoryManifest.Entry entry = manifest.getCurrentEntry(new File((String)treePaths.elementAt(i)));
+					if (entry != null && entry.getIndexPath().equals(TreeFileIndex.getIndexPath((String)treePaths.elementAt(i)))){
+						TreeFileReader reader = new TreeFileReader((String)treePaths.elementAt(i), entry.getNumTrees(), entry.getSignature());
+						TreeFileIndex index = TreeFileIndex.read(entry.getIndexPath());
+						if (index != null && index.matchesSizeAndDate(new File(reader.getPath())) && reader.matches(index)){
+							sources[i] = reader;
+							numUnchanged++;
 						}
-						else Debugg.println("Filler " + i + " processFile = " + ((SampleOneTreeFromFile)newFiller).processFile());
+						else
+							manifest.removeEntry((String)fileNames.elementAt(i));  //the index is missing or out of date; the file is surveyed again
 					}
 				}
-			} 
+			}
+		}
+		for (int batchStart = 0; batchStart < numFiles; batchStart += batchSize){
+			int batchEnd = Math.min(numFiles, batchStart + batchSize);
+			Vector hired = new Vector();
+			Vector hiredFiles = new Vector();
+			for (int i = batchStart; i < batchEnd; i++){
+				if (sources[i] != null)
+					continue;
+				SampleOneTreeFromFile newFiller = hireFiller((String)treePaths.elementAt(i));
+				if (newFiller != null){
+					hired.addElement(newFiller);
+					hiredFiles.addElement(new Integer(i));
+				}
+				else
+					failures.addElement(fileNames.elementAt(i));
+			}
+			boolean[] ready = new boolean[hired.size()];
+			if (manifest != null && !usePooledReaders.getValue()){
+				for (int i = 0; i < hired.size(); i++){
+					SampleOneTreeFromFile filler = (SampleOneTreeFromFile)hired.elementAt(i);
+					TreeDirectoryManifest.Entry entry = manifest.getCurrentEntry(new File(filler.getFilePath()));
+					if (entry != null && filler.processFileFromIndex(entry.getIndexPath()) && filler.getNumTreesInFile() == entry.getNumTrees()
+							&& filler.getTranslationSignature().equals(entry.getSignature())){
+						ready[i] = true;
+						numUnchanged++;
+					}
+				}
+			}
+			surveyFiles(hired, ready);
+			for (int i = 0; i < hired.size(); i++){
+				SampleOneTreeFromFile filler = (SampleOneTreeFromFile)hired.elementAt(i);
+				int fileNumber = ((Integer)hiredFiles.elementAt(i)).intValue();
+				File treeFile = new File(filler.getFilePath());
+				if (ready[i]) {
+					String indexPath = filler.getIndexFilePath();
+					if (manifest != null && manifest.getCurrentEntry(treeFile) == null)
+						manifest.setEntry(treeFile, filler.getNumTreesInFile(), filler.getTranslationSignature(), indexPath);
+					if (usePooledReaders.getValue() && indexPath != null){
+						sources[fileNumber] = new TreeFileReader(filler.getFilePath(), filler.getNumTreesInFile(), filler.getTranslationSignature());
+						fireEmployee(filler);
+					}
+					else
+						sources[fileNumber] = filler;  //no index (e.g., a compressed file, or a directory that cannot be written); the module itself is kept
+				}
+				else {
+					failures.addElement(treeFile.getName());
+					if (manifest != null)
+						manifest.removeEntry(treeFile.getName());
+					fireEmployee(filler);
+				}
+			}
+		}
+		for (int i = 0; i < numFiles; i++)
+			if (sources[i] != null)
+				fillerTasks.addElement(sources[i]);
+		if (numUnchanged > 0)
+			logln("" + numUnchanged + " of " + numFiles + " tree files in " + directory.getName() + " unchanged since last surveyed");
+		if (manifest != null){
+			manifest.retainOnly(fileNames);
+			if (manifest.isChanged() && !manifest.write(directory))
+				logln("Manifest of tree files could not be written in " + directory.getName());
+		}
+		if (failures.size() > 0){
+			StringBuffer sb = new StringBuffer();
+			sb.append("" + failures.size() + " of the tree files in " + directory.getName() + " could not be processed, and will not be used:");
+			for (int i = 0; i < failures.size(); i++)
+				sb.append("\n  " + failures.elementAt(i));
+			if (!MesquiteThread.isScripting())
+				discreetAlert(sb.toString());
+			else
+				logln(sb.toString());
 		}
-		
 		return true;
 	}
 	/*................................................................................................*/
+	/**Hires a SampleOneTreeFromFile for the tree file at treePath; returns null if it could not be hired or could not find the file.*/
+	private SampleOneTreeFromFile hireFiller(String treePath){
+		TreeBlockFiller newFiller = (TreeBlockFiller)hireNamedEmployee(TreeBlockFiller.class, "#SampleOneTreeFromFile");
+		if (newFiller == null)
+			return null;
+		if (!((SampleOneTreeFromFile)newFiller).setFilePath(treePath)){
+			fireEmployee(newFiller);
+			return null;
+		}
+		((SampleOneTreeFromFile)newFiller).setQuietOperation(true);
+		return (SampleOneTreeFromFile)newFiller;
+	}
+	/*................................................................................................*/
+	/**Has each of the hired SampleOneTreeFromFile modules not yet ready process its file, on a pool of threads.  The threads run as if scripting, so that no module
+	 * asks the user about its file (several might otherwise ask at once).  On return, ready indicates which succeeded; those that failed, or were not processed because
+	 * the user stopped the survey, remain not ready.*/
+	private void surveyFiles(Vector hired, boolean[] ready){
+		int numFiles = 0;
+		for (int i = 0; i < hired.size(); i++)
+			if (!ready[i])
+				numFiles++;
+		if (numFiles == 0)
+			return;
+		ProgressIndicator progIndicator = new ProgressIndicator(getProject(), "Surveying Tree Files", "Surveying tree files in " + directory.getName(), numFiles, "Stop Survey");
+		progIndicator.start();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(numSurveyThreads, numFiles)), new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				return new MesquiteThread(r);
+			}
+		});
+		CompletionService completion = new ExecutorCompletionService(pool);
+		Future[] results = new Future[hired.size()];
+		final AtomicBoolean stopSurvey = new AtomicBoolean(false);
+		for (int i = 0; i < hired.size(); i++){
+			if (ready[i])
+				continue;
+			final SampleOneTreeFromFile filler = (SampleOneTreeFromFile)hired.elementAt(i);
+			results[i] = completion.submit(new Callable(){
+				public Object call(){
+					if (stopSurvey.get())
+						return Boolean.FALSE;
+					MesquiteThread.setCurrentCommandRecord(CommandRecord.scriptingRecord);
+					return new Boolean(filler.processFile());
+				}
+			});
+		}
+		boolean stopped = false;
+		try {
+			for (int done = 0; done < numFiles && !stopped; ){
+				Future finished = completion.poll(250, TimeUnit.MILLISECONDS);
+				if (finished != null){
+					done++;
+					progIndicator.setText("Surveyed " + done + " of " + numFiles + " tree files");
+					progIndicator.setCurrentValue(done);
+				}
+				if (progIndicator.isAborted())
+					stopped = true;
+			}
+		}
+		catch (InterruptedException e){
+			stopped = true;
+		}
+		finally {
+			stopSurvey.set(true);  //surveys not yet begun are dropped; those under way are allowed to finish, as interrupting them would close the files they are reading
+			pool.shutdown();
+			try {
+				while (!pool.awaitTermination(1, TimeUnit.SECONDS))
+					;
+			}
+			catch (InterruptedException e){
+			}
+			progIndicator.goAway();
+		}
+		for (int i = 0; i < hired.size(); i++){
+			if (results[i] != null && results[i].isDone() && !results[i].isCancelled()){
+				try {
+					ready[i] = ((Boolean)results[i].get()).booleanValue();
+				}
+				catch (Exception e){  //the survey threw an exception; treated as a failure
+				}
+			}
+		}
+	}
+	/*................................................................................................*/
+	/**Draws a tree from the file of each TreeFileReader among the fillers, on up to numFillThreads threads.  The tree from each file is chosen with the stream
+	 * for that file from the seed of the block, so the trees chosen do not depend on the order in which the threads finish.  Returns the trees
+	 * in the order of the fillers (null for fillers that are not readers, or whose file gave no tree).*/
+	private Tree[] drawFromReaders(final Taxa taxa, long blockSeed){
+		int numFillers = fillerTasks.size();
+		Tree[] drawn = new Tree[numFillers];
+		Vector tasks = new Vector();
+		for (int i = 0; i < numFillers; i++){
+			if (fillerTasks.get(i) instanceof TreeFileReader)
+				tasks.addElement(new Integer(i));
+		}
+		if (numFillThreads <= 1 || tasks.size() < 2){
+			for (int t = 0; t < tasks.size(); t++){
+				int i = ((Integer)tasks.elementAt(t)).intValue();
+				drawn[i] = drawFromReader((TreeFileReader)fillerTasks.get(i), taxa, RandomStreams.deriveSeed(blockSeed, i));
+			}
+			return drawn;
+		}
+		if (fillPool == null || fillPoolThreads != numFillThreads){
+			if (fillPool != null)
+				fillPool.shutdown();
+			fillPool = Executors.newFixedThreadPool(numFillThreads);
+			fillPoolThreads = numFillThreads;
+		}
+		Future[] results = new Future[numFillers];
+		for (int t = 0; t < tasks.size(); t++){
+			final int i = ((Integer)tasks.elementAt(t)).intValue();
+			final TreeFileReader reader = (TreeFileReader)fillerTasks.get(i);
+			final long seed = RandomStreams.deriveSeed(blockSeed, i);
+			results[i] = fillPool.submit(new Callable(){
+				public Object call(){
+					return drawFromReader(reader, taxa, seed);
+				}
+			});
+		}
+		for (int i = 0; i < numFillers; i++){
+			if (results[i] == null)
+				continue;
+			try {
+				drawn[i] = (Tree)results[i].get();
+			}
+			catch (InterruptedException e){  //draws not yet begun are dropped; those under way are not interrupted, as interrupting a thread reading a file channel closes the channel
+				for (int k = i; k < numFillers; k++)
+					if (results[k] != null)
+						results[k].cancel(false);
+				Thread.currentThread().interrupt();
+				break;
+			}
+			catch (ExecutionException e){  //treated as a file that gave no tree
+			}
+		}
+		return drawn;
+	}
+	/*................................................................................................*/
+	/**Chooses a tree at random from the file of the reader and reads it.*/
+	Tree drawFromReader(TreeFileReader reader, Taxa taxa, long seed){
+		if (reader.getNumTrees() < 1)
+			return null;
+		return reader.readTree(taxa, reader.sample(1, new RandomStreams(seed)).get(0), readerPool);
+	}
+	/*................................................................................................*/
 	private TreeVector fillBlock(Taxa taxa){ //TODO: fill in
 		TreeVector filledVector = new TreeVector(taxa);
 		int vectorTreeCount=0;
+		long blockSeed = RandomStreams.deriveSeed(masterSeed, blockNumber++);
+		Tree[] drawn = drawFromReaders(taxa, blockSeed);
 			for(int fillers = 0; fillers < fillerTasks.size(); fillers++){
-				if(fillerTasks.get(fillers) instanceof SampleOneTreeFromFile){
-					((SampleOneTreeFromFile)fillerTasks.get(fillers)).resetTreesToSample(); //One unnecessary resetting of bits on first call
+				if(fillerTasks.get(fillers) instanceof TreeFileReader){
+					TreeFileReader reader = (TreeFileReader)fillerTasks.get(fillers);
+					Tree tree = drawn[fillers];
+					if(tree == null)
+						logln("Not enough trees were supplied by " + reader.getName() + "; 0 provided, one requested.");
+					else {
+						filledVector.addElement(tree, false);
+						vectorTreeCount++;
+						if(tree.getName()!=null)
+							logln(tree.getName() + " added from " + reader.getName());
+					}
+				}
+				else if(fillerTasks.get(fillers) instanceof SampleOneTreeFromFile){
+					((SampleOneTreeFromFile)fillerTasks.get(fillers)).resetTreesToSample(new RandomStreams(RandomStreams.deriveSeed(blockSeed, fillers))); //One unnecessary resetting of bits on first call
 					TreeVector tempTreeVector = new TreeVector(taxa);
 					((TreeBlockFiller)fillerTasks.get(fillers)).fillTreeBlock(tempTreeVector, 1);
 					if(tempTreeVector.getNumberOfTrees() < 1){
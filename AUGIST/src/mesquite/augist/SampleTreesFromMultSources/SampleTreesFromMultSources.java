@@ -13,13 +13,22 @@ This source code and its compiled class files are free and modifiable under the
 GNU Lesser General Public License.  (http://www.gnu.org/copyleft/lesser.html)
  */
 
-import java.util.Random;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import mesquite.lib.*;
 import mesquite.lib.duties.*;
 import mesquite.trees.*;
 import mesquite.trees.SampleManyTreesFromFile.SampleManyTreesFromFile;
 import mesquite.augist.SampleManyTreesCmd.*;
+import mesquite.augist.lib.RandomStreams;
+import mesquite.augist.lib.TreeSamplingPlan;
 
 /**Supplies trees randomly selected from a user-defined TreeBlockFillers.*/
 public class SampleTreesFromMultSources extends TreeBlockSource{
@@ -32,6 +41,15 @@ public class SampleTreesFromMultSources extends TreeBlockSource{
 	TreeVector lastUsedTreeBlock = null;
 	int currentTreeBlockIndex = -1;
 	MesquiteInteger pos = new MesquiteInteger(0); //For doCommand navigation
+	/*Blocks being filled in the background, in order, for the calls to getNextBlock to come*/
+	int prefetchDepth = 0;
+	ExecutorService prefetcher = null;
+	LinkedList prefetched = new LinkedList();
+	Taxa prefetchTaxa = null;
+	/*Each block is sampled with its own stream from the master seed, numbered in the order in which blocks are requested; each source within a block has its own stream from that*/
+	long masterSeed = System.currentTimeMillis();
+	long blockNumber = 0;
+	MesquiteBoolean sampleWithReplacement = new MesquiteBoolean(true);
 
 	public void getEmployeeNeeds(){  //This gets called on startup to harvest information; override this and inside, call registerEmployeeNeed
 		EmployeeNeed e1 = registerEmployeeNeed(TreeBlockFiller.class, getName() + " needs a source of trees.", "The source of trees is indicated initially.");
@@ -44,6 +62,8 @@ public class SampleTreesFromMultSources extends TreeBlockSource{
 		return "Supplies trees randomly selected from user-defined tree sources.";
 	}
 	public boolean startJob(String arguments, Object condition, boolean hiredByName) {
+		addMenuItem("Number of Tree Blocks to Prepare in Advance...", makeCommand("setPrefetchDepth",  this));
+		addCheckMenuItem(null, "Sample Trees with Replacement", makeCommand("toggleReplacement",  this), sampleWithReplacement);
 		if (!MesquiteThread.isScripting()){
 			int n = MesquiteInteger.queryInteger(containerOfModule(), "Number of Tree Sources?", "How many sources of trees to sample trees from?", numSources);
 			if (!MesquiteInteger.isCombinable(n) || n<=0)
@@ -94,15 +114,39 @@ public class SampleTreesFromMultSources extends TreeBlockSource{
 		if(checker.compare(this.getClass(), "Sets the number of tree sources", "[number]", commandName, "setNumSources")){
 			int tempNumSources = MesquiteInteger.fromString(arguments);
 			if(MesquiteInteger.isCombinable(tempNumSources)){
+				cancelPrefetch();
 				numSources = tempNumSources;
 			}
 		}
 		else if(checker.compare(this.getClass(), "Sets the number of trees to sample from each source", "[number]", commandName, "setNumPerSource")){
 			int tempPerSource = MesquiteInteger.fromString(arguments);
 			if(MesquiteInteger.isCombinable(tempPerSource)){
+				cancelPrefetch();
 				numPerSource = tempPerSource;
 			}
 		}
+		else if(checker.compare(this.getClass(), "Sets the seed from which the random samples of trees are drawn; the sequence of blocks starts again from the first", "[seed]", commandName, "setSeed")){
+			long seed = MesquiteLong.fromString(parser.getFirstToken(arguments));
+			if(MesquiteLong.isCombinable(seed)){
+				cancelPrefetch();
+				masterSeed = seed;
+				blockNumber = 0;
+				currentTreeBlockIndex = -1;  //the next block requested is drawn with the new seed, even if it has the number of the current one
+			}
+		}
+		else if(checker.compare(this.getClass(), "Sets whether trees are sampled from each source with replacement (for sources other than Randomly Sample Trees from Separate NEXUS File)", "[on or off]", commandName, "toggleReplacement")){
+			cancelPrefetch();
+			sampleWithReplacement.toggleValue(parser.getFirstToken(arguments));
+		}
+		else if(checker.compare(this.getClass(), "Sets the number of tree blocks filled in the background, while the current block is in use, ready for the next requests (0 for none)", "[number]", commandName, "setPrefetchDepth")){
+			int depth = MesquiteInteger.fromFirstToken(arguments, new MesquiteInteger(0));
+			if(!MesquiteInteger.isCombinable(depth) && !MesquiteThread.isScripting())
+				depth = MesquiteInteger.queryInteger(containerOfModule(), "Tree Blocks Prepared in Advance", "Number of tree blocks to fill in the background, ready for later requests (0 for none):", prefetchDepth, 0, 64, true);
+			if(MesquiteInteger.isCombinable(depth) && depth >= 0){
+				cancelPrefetch();
+				prefetchDepth = depth;
+			}
+		}
 		else if(checker.compareStart(this.getClass(), "Sets module to fill tree block", "[name of module]", commandName, "hireSource")){
 			String disposable = ParseUtil.getFirstToken(commandName, pos);  //A string used only to move the parser position.
 			/*numSources MUST be set before this hiring command occurs, else the fillerTasks array has issues...*/
@@ -110,27 +154,32 @@ public class SampleTreesFromMultSources extends TreeBlockSource{
 			if(fillerTasks==null){
 				fillerTasks = new TreeBlockFiller[numSources];
 			}
+			cancelPrefetch();
 			TreeBlockFiller tempFiller = (TreeBlockFiller)replaceEmployee(TreeBlockFiller.class, arguments, "Tree Block Filler", fillerTasks[tempSourceNum]);
 			if(tempFiller!=null){
 				fillerTasks[tempSourceNum] = tempFiller;
 				return fillerTasks[tempSourceNum];
 			}
 		}
+		else
+			cancelPrefetch();  //the command may be passed on to a source (e.g., by getEmployee), which must not be changed while a block is being filled from it
 		return super.doCommand(commandName, arguments, checker);
 	}
 	
 /*.................................................................................................................*/
-	/**Fills a block of trees from the multiple sources defined by user*/
-	private TreeVector fillBlock(Taxa taxa){
+	/**Fills a block of trees from the multiple sources defined by user.  The trees are drawn with stream number blockNum of the master seed, so the block is the
+	 * same whenever, and on whatever thread, it is filled.*/
+	private TreeVector fillBlock(Taxa taxa, long blockNum){
 		TreeVector filledVector = new TreeVector(taxa);
 		int vectorTreeCount=0;
-		Random rng = new Random(System.currentTimeMillis());
+		RandomStreams blockStream = new RandomStreams(masterSeed).stream(blockNum);
 		for(int sourceCount = 0; sourceCount < numSources; sourceCount++){
+			RandomStreams rng = blockStream.stream(sourceCount);
 			/*First part of conditional avoids nested randomization; SampleManyTreesCmd takes care of the random sample, so this 
 			 * part of the module does not.  If use does not choose SampleManyTreesCmd, the else part of the conditional is used (and
 			 * the randomization is covered by this module).*/
 			if(fillerTasks[sourceCount] instanceof SampleManyTreesCmd){
-				((SampleManyTreesCmd)fillerTasks[sourceCount]).resetTreesToSample(); //One unnecessary resetting of bits on first call
+				((SampleManyTreesCmd)fillerTasks[sourceCount]).resetTreesToSample(rng); //One unnecessary resetting of bits on first call
 				TreeVector tempTreeVector = new TreeVector(taxa);
 				fillerTasks[sourceCount].fillTreeBlock(tempTreeVector, numPerSource);
 				if(tempTreeVector.getNumberOfTrees() < numPerSource){
@@ -152,6 +201,9 @@ public class SampleTreesFromMultSources extends TreeBlockSource{
 				}
 				tempTreeVector.dispose(); //disposed to reduce memory demands
 			}
+			else if (sampleByIndex(fillerTasks[sourceCount], taxa, rng, filledVector)) {
+				vectorTreeCount = filledVector.getNumberOfTrees();
+			}
 			else {
 			TreeVector tempTreeVector = new TreeVector(taxa);
 			fillerTasks[sourceCount].fillTreeBlock(tempTreeVector, numPerSource); //TBF
@@ -179,10 +231,45 @@ public class SampleTreesFromMultSources extends TreeBlockSource{
 		return filledVector;
 	}
 	/*.................................................................................................................*/
+	/**If the source is a TreeSource that knows how many trees it has, chooses numPerSource of them at random and gets only those trees from it, adding them
+	 * to filledVector.  Returns false if the source does not know how many trees it has, in which case its trees must be obtained as a block.*/
+	private boolean sampleByIndex(TreeBlockFiller filler, Taxa taxa, RandomStreams rng, TreeVector filledVector){
+		if (!(filler instanceof TreeSource))
+			return false;
+		TreeSource source = (TreeSource)filler;
+		int numTrees = source.getNumberOfTrees(taxa);
+		if (!MesquiteInteger.isCombinable(numTrees) || numTrees <= 0)
+			return false;
+		int[] chosen;
+		if (sampleWithReplacement.getValue()){
+			chosen = new int[numPerSource];
+			for (int it = 0; it < numPerSource; it++)
+				chosen[it] = rng.nextInt(numTrees);
+		}
+		else {
+			TreeSamplingPlan plan = new TreeSamplingPlan();
+			plan.sample(numPerSource, 0, numTrees, rng);
+			chosen = new int[plan.size()];
+			for (int it = 0; it < chosen.length; it++)
+				chosen[it] = plan.get(it);
+			if (chosen.length < numPerSource)
+				logln("Not enough trees were supplied by " + filler.getName() + "; " + chosen.length + " provided, " + numPerSource + " requested.");
+		}
+		for (int it = 0; it < chosen.length; it++){
+			Tree tree = source.getTree(taxa, chosen[it]);
+			if (tree != null)
+				filledVector.addElement(tree.cloneTree(), false);  //cloned, as a source may reuse the tree it returns
+		}
+		return true;
+	}
+	/*.................................................................................................................*/
 	public Snapshot getSnapshot(MesquiteFile file) {
 		Snapshot temp = new Snapshot();
 		temp.addLine("setNumSources " + numSources);
 		temp.addLine("setNumPerSource " + numPerSource);
+		temp.addLine("setSeed " + masterSeed);
+		temp.addLine("setPrefetchDepth " + prefetchDepth);
+		temp.addLine("toggleReplacement " + sampleWithReplacement.toOffOnString());
 		if(MesquiteInteger.isCombinable(numSources)){
 			for(int is = 0; is < numSources; is++){
 				temp.addLine("hireSource_" + is + " ", fillerTasks[is]);
@@ -226,10 +313,110 @@ public class SampleTreesFromMultSources extends TreeBlockSource{
 	/*.................................................................................................................*/
 	public TreeVector getNextBlock(Taxa taxa) {
    		setPreferredTaxa(taxa);
-   		currentTreeBlock = fillBlock(taxa);
+   		currentTreeBlock = takePrefetchedBlock(taxa);
+   		if (currentTreeBlock == null)
+   			currentTreeBlock = fillBlock(taxa, blockNumber++);
+   		startPrefetch(taxa);
    		return currentTreeBlock;
 	}
 	/*.................................................................................................................*/
+	/**Returns the first block filled in the background, waiting for it if it is not yet done, or null if there is none for these taxa.*/
+	private TreeVector takePrefetchedBlock(Taxa taxa){
+		if (prefetched.isEmpty())
+			return null;
+		if (taxa != prefetchTaxa) {
+			cancelPrefetch();
+			return null;
+		}
+		Future next = (Future)prefetched.removeFirst();
+		try {
+			return (TreeVector)next.get();
+		}
+		catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException e){  //fill failed in the background; the block is filled here instead
+			logln("Tree block could not be filled in the background: " + e.getCause());
+		}
+		next.cancel(false);
+		cancelPrefetch();
+		blockNumber--;  //the block taken is filled again, with the same number
+		return null;
+	}
+	/*.................................................................................................................*/
+	/**Starts filling blocks in the background, on a single thread so that the fillers are used by one thread at a time, until prefetchDepth blocks are done or under way.
+	 * The thread is a MesquiteThread, running as if scripting, so the fillers do not query the user.*/
+	private void startPrefetch(final Taxa taxa){
+		if (prefetchDepth <= 0 || fillerTasks == null)
+			return;
+		if (prefetcher == null)
+			prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory(){
+				public Thread newThread(Runnable r){
+					return new MesquiteThread(r);
+				}
+			});
+		prefetchTaxa = taxa;
+		while (prefetched.size() < prefetchDepth){
+			final long number = blockNumber++;
+			prefetched.addLast(prefetcher.submit(new Callable(){
+				public Object call(){
+					MesquiteThread.setCurrentCommandRecord(CommandRecord.scriptingRecord);
+					return fillBlock(taxa, number);
+				}
+			}));
+		}
+	}
+	/*.................................................................................................................*/
+	/**Stops the filling of blocks in the background, waits for any fill under way to finish (so that no other thread is using the fillers), and discards the blocks filled.
+	 * A fill under way is not interrupted, as interrupting a thread reading a file channel closes the channel.*/
+	private void cancelPrefetch(){
+		if (prefetcher == null)
+			return;
+		for (int i = 0; i < prefetched.size(); i++)
+			((Future)prefetched.get(i)).cancel(false);
+		prefetcher.shutdown();
+		try {
+			while (!prefetcher.awaitTermination(1, TimeUnit.SECONDS))
+				;
+		}
+		catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		blockNumber -= prefetched.size();  //blocks discarded are filled again, with the same numbers, when next requested
+		while (!prefetched.isEmpty()){
+			Future f = (Future)prefetched.removeFirst();
+			if (f.isDone() && !f.isCancelled()){
+				try {
+					TreeVector discarded = (TreeVector)f.get();
+					if (discarded != null)
+						discarded.dispose();
+				}
+				catch (Exception e){
+				}
+			}
+		}
+		prefetcher = null;
+		prefetchTaxa = null;
+	}
+	/*.................................................................................................................*/
+	public void changed(Object caller, Object obj, Notification notification){
+		if (obj == currentTaxa)  //blocks filled in advance may no longer fit the taxa
+			cancelPrefetch();
+		super.changed(caller, obj, notification);
+	}
+	/*.................................................................................................................*/
+	/**Called after a source has changed; blocks filled in advance may no longer fit the sources, so they are discarded before the change is passed on.
+	 * (Commands to the sources that pass through doCommand stop the filling in advance before the source is changed.)*/
+	public void employeeParametersChanged(MesquiteModule employee, MesquiteModule source, Notification notification) {
+		cancelPrefetch();
+		super.employeeParametersChanged(employee, source, notification);
+	}
+	/*.................................................................................................................*/
+	public void endJob(){
+		cancelPrefetch();
+		super.endJob();
+	}
+	/*.................................................................................................................*/
 	public int getNumberOfTreeBlocks(Taxa taxa) {
    		setPreferredTaxa(taxa);
    		return MesquiteInteger.infinite;
@@ -250,6 +437,7 @@ public class SampleTreesFromMultSources extends TreeBlockSource{
 	/*.................................................................................................................*/
 	public void setPreferredTaxa(Taxa taxa) {
 		if (taxa !=currentTaxa) {
+			cancelPrefetch();
 			if (currentTaxa!=null)
 				currentTaxa.removeListener(this);
 			currentTaxa = taxa;
@@ -13,8 +13,24 @@ This source code and its compiled class files are free and modifiable under the
 GNU Lesser General Public License.  (http://www.gnu.org/copyleft/lesser.html)
  */
 
+import java.io.File;
+import java.io.UnsupportedEncodingException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 import java.awt.*;
+import mesquite.augist.SampleTreesFromDirectory.SampleTreesFromDirectory;
+import mesquite.augist.SampleTreesFromMultSources.SampleTreesFromMultSources;
+import mesquite.augist.lib.FileBackedTreeVector;
+import mesquite.augist.lib.ParsedTreeCache;
+import mesquite.augist.lib.RandomStreams;
+import mesquite.augist.lib.TreeBlockCache;
+import mesquite.augist.lib.TreeBlockCheckpoint;
+import mesquite.augist.lib.TreeBlockFileWriter;
+import mesquite.augist.lib.TreeFileReader;
+import mesquite.augist.lib.TreeFileReaderPool;
 import mesquite.lib.*;
 import mesquite.lib.duties.*;
 //TODO: would be nice to turn off the TreeOptimizer notification, if possible
@@ -36,6 +52,21 @@ public class TreeBlockCombiner extends TreeBlockSource {
 	Taxa currentTaxa = null;
 	Taxa preferredTaxa = null;
 	MesquiteBoolean useWeights = new MesquiteBoolean(false);
+	/*Blocks already combined, so that a block requested again is not made again by another set of searches*/
+	TreeBlockCache blockCache = new TreeBlockCache(64L*1024L*1024L);
+	boolean fillCompleted = false;
+	/*For searches run at the same time: copies of fillerTask (hired from its snapshot), one per thread beyond the first, and the seed from which each search gets its own stream*/
+	int numSearchThreads = 1;
+	Vector searchClones = new Vector();
+	long masterSeed = System.currentTimeMillis();
+	/*For writing combined blocks to NEXUS files as their trees are made, rather than holding them in memory: the files are named <base>1.nex, <base>2.nex, etc.
+	 * after the block index, and the blocks returned read their trees from the files*/
+	MesquiteBoolean streamToFile = new MesquiteBoolean(false);
+	String streamFileBase = null;
+	TreeFileReaderPool streamPool = new TreeFileReaderPool();
+	/*For keeping each search, as it is finished, in a checkpoint directory, so that a run cancelled or stopped can be resumed without repeating them*/
+	MesquiteBoolean useCheckpoints = new MesquiteBoolean(false);
+	String checkpointDirectory = null;
 	public String getName(){
 		return "Tree Block Combiner";
 	}
@@ -49,6 +80,14 @@ public class TreeBlockCombiner extends TreeBlockSource {
 	/*.................................................................................................................*/
 	public boolean startJob(String arguments, Object condition, boolean hiredByName) {
     	currentTreeBlockIndex = 0;
+		addMenuItem("Memory for Combined Tree Blocks...", makeCommand("setBlockCacheSize",  this));
+		addMenuItem("Number of Tree Blocks Filled at Once...", makeCommand("setSearchThreads",  this));
+		addCheckMenuItem(null, "Write Combined Trees to File", makeCommand("toggleStreamToFile",  this), streamToFile);
+		addMenuItem("File for Combined Trees...", makeCommand("setStreamFile",  this));
+		addCheckMenuItem(null, "Keep Checkpoints of Searches", makeCommand("toggleCheckpoints",  this), useCheckpoints);
+		addMenuItem("Checkpoint Directory...", makeCommand("setCheckpointDirectory",  this));
+		addMenuItem("Resume from Checkpoint...", makeCommand("resumeFromCheckpoint",  this));
+		streamPool.setMaxOpenFiles(4);
     	if(arguments!=null){
     		fillerTask = (TreeBlockSource)hireNamedEmployee(TreeBlockSource.class, arguments);
     		if(fillerTask==null){
@@ -85,6 +124,15 @@ public class TreeBlockCombiner extends TreeBlockSource {
 	public Snapshot getSnapshot(MesquiteFile file){
 		Snapshot temp = new Snapshot();
 		temp.addLine("getTreeBlock ", fillerTask);
+		temp.addLine("setBlockCacheSize " + blockCache.getMaxBytes()/(1024*1024));
+		temp.addLine("setSearchThreads " + numSearchThreads);
+		temp.addLine("setSeed " + masterSeed);
+		if (streamFileBase != null)
+			temp.addLine("setStreamFile " + StringUtil.tokenize(streamFileBase));
+		temp.addLine("toggleStreamToFile " + streamToFile.toOffOnString());
+		if (checkpointDirectory != null)
+			temp.addLine("setCheckpointDirectory " + StringUtil.tokenize(checkpointDirectory));
+		temp.addLine("toggleCheckpoints " + useCheckpoints.toOffOnString());
 		return temp;
 	}
 	
@@ -94,10 +142,101 @@ public class TreeBlockCombiner extends TreeBlockSource {
 			TreeBlockSource temp = (TreeBlockSource)replaceEmployee(TreeBlockSource.class, arguments, "Tree Block Source", fillerTask);
 			if(temp!=null){
 				fillerTask = temp;
+				fireSearchClones();
+				blockCache.clear();
 				parametersChanged(null); //?
 			}
 			return fillerTask;
 		}
+		else if(checker.compare(this.getClass(), "Sets the memory (in megabytes) used to keep combined tree blocks, so that a block requested again is not made again (0 to keep none)", "[megabytes]", commandName, "setBlockCacheSize")){
+			int mb = MesquiteInteger.fromFirstToken(arguments, new MesquiteInteger(0));
+			if(!MesquiteInteger.isCombinable(mb) && !MesquiteThread.isScripting())
+				mb = MesquiteInteger.queryInteger(containerOfModule(), "Memory for Combined Tree Blocks", "Memory (in megabytes) used to keep combined tree blocks (0 to keep none):", (int)(blockCache.getMaxBytes()/(1024*1024)), 0, MesquiteInteger.infinite, true);
+			if(MesquiteInteger.isCombinable(mb) && mb >= 0)
+				blockCache.setMaxBytes(mb*1024L*1024L);
+			return null;
+		}
+		else if(checker.compare(this.getClass(), "Sets the number of tree blocks filled at the same time, each by its own copy of the source of trees (1 to fill them in sequence)", "[number]", commandName, "setSearchThreads")){
+			int num = MesquiteInteger.fromFirstToken(arguments, new MesquiteInteger(0));
+			if(!MesquiteInteger.isCombinable(num) && !MesquiteThread.isScripting())
+				num = MesquiteInteger.queryInteger(containerOfModule(), "Tree Blocks Filled at Once", "Number of tree blocks to fill at the same time, each by its own copy of the source of trees (1 to fill them in sequence):", numSearchThreads, 1, 256, true);
+			if(MesquiteInteger.isCombinable(num) && num >= 1 && num != numSearchThreads){
+				numSearchThreads = num;
+				if (searchClones.size() > numSearchThreads - 1)
+					fireSearchClones();
+				blockCache.clear();
+			}
+			return null;
+		}
+		else if(checker.compare(this.getClass(), "Sets the seed from which each tree block filled at the same time as others gets its own random stream", "[seed]", commandName, "setSeed")){
+			long seed = MesquiteLong.fromString(parser.getFirstToken(arguments));
+			if(MesquiteLong.isCombinable(seed)){
+				masterSeed = seed;
+				blockCache.clear();
+			}
+			return null;
+		}
+		else if(checker.compare(this.getClass(), "Sets whether or not combined trees are written to a NEXUS file as they are made, rather than held in memory", "[on or off]", commandName, "toggleStreamToFile")){
+			streamToFile.toggleValue(parser.getFirstToken(arguments));
+			if (streamToFile.getValue() && streamFileBase == null && !MesquiteThread.isScripting())
+				streamFileBase = queryStreamFileBase();
+			blockCache.clear();
+			return null;
+		}
+		else if(checker.compare(this.getClass(), "Sets the base name of the files to which combined trees are written (files will be named <name>1.nex, <name>2.nex, etc.)", "[path]", commandName, "setStreamFile")){
+			String path = parser.getFirstToken(arguments);
+			if (StringUtil.blank(path) && !MesquiteThread.isScripting())
+				path = queryStreamFileBase();
+			if (!StringUtil.blank(path)){
+				streamFileBase = path;
+				blockCache.clear();
+			}
+			return null;
+		}
+		else if(checker.compare(this.getClass(), "Sets whether or not each search is kept in the checkpoint directory as it is finished, so that the run can be resumed if cancelled or stopped", "[on or off]", commandName, "toggleCheckpoints")){
+			useCheckpoints.toggleValue(parser.getFirstToken(arguments));
+			if (useCheckpoints.getValue() && checkpointDirectory == null && !MesquiteThread.isScripting())
+				checkpointDirectory = MesquiteFile.chooseDirectory("Choose directory in which to keep checkpoints of searches:", null);
+			blockCache.clear();
+			return null;
+		}
+		else if(checker.compare(this.getClass(), "Sets the directory in which searches are kept as they are finished", "[path of directory]", commandName, "setCheckpointDirectory")){
+			String path = parser.getFirstToken(arguments);
+			if (StringUtil.blank(path) && !MesquiteThread.isScripting())
+				path = MesquiteFile.chooseDirectory("Choose directory in which to keep checkpoints of searches:", checkpointDirectory);
+			if (!StringUtil.blank(path))
+				checkpointDirectory = path;
+			return null;
+		}
+		else if(checker.compare(this.getClass(), "Resumes the run most recently started in the checkpoint directory, so that the searches already finished there are not repeated", "[path of directory]", commandName, "resumeFromCheckpoint")){
+			String path = parser.getFirstToken(arguments);
+			if (StringUtil.blank(path))
+				path = checkpointDirectory;
+			if (StringUtil.blank(path) && !MesquiteThread.isScripting())
+				path = MesquiteFile.chooseDirectory("Choose checkpoint directory of run to resume:", null);
+			if (StringUtil.blank(path))
+				return null;
+			TreeBlockCheckpoint checkpoint = TreeBlockCheckpoint.read(new File(path));
+			if (checkpoint == null){
+				discreetAlert("No checkpoint of a run was found in " + path);
+				return null;
+			}
+			if (fillerTask != null && !checkpoint.getSettings().startsWith(fillerTask.getClass().getName() + " ")){
+				discreetAlert("The run kept in " + path + " used another source of trees, and cannot be resumed with " + fillerTask.getName());
+				return null;
+			}
+			if (fillerTask != null && !checkpoint.getSettings().startsWith(fillerTask.getClass().getName() + " " + getSourceSettingsHash() + " ")){
+				discreetAlert("The run kept in " + path + " used other settings of " + fillerTask.getName() + ", and cannot be resumed with its current settings");
+				return null;
+			}
+			checkpointDirectory = path;
+			useCheckpoints.setValue(true);
+			masterSeed = checkpoint.getMasterSeed();
+			blockCache.clear();
+			logln(getName() + ": resuming run kept in " + path);
+			parametersChanged(null);
+			return null;
+		}
 		else
 			return super.doCommand(commandName, arguments, checker);
 	}
@@ -105,6 +244,7 @@ public class TreeBlockCombiner extends TreeBlockSource {
 	/** passes which object changed*/
 	public void disposing(Object obj){ //TODO: necessary?
 		if (obj == currentTaxa) {
+			blockCache.clear();
 			setHiringCommand(null); //since there is no rehiring
 			iQuit();
 		}
@@ -134,11 +274,197 @@ public class TreeBlockCombiner extends TreeBlockSource {
 			}
 		}
 	}
+	/**Names the trees of block i of the numSearches combined, after the block and the source, and weights them if useWeights is set.*/
+	private void prepareSubBlock(TreeVector subBlock, int i){
+		int numInBlock = subBlock.getNumberOfTrees();
+		for (int nT = 0; nT < numInBlock; nT++){
+			String nameAppend = ((i + 1) + " of " + numSearches + " " + fillerTask.getName());
+			String origName = subBlock.getTree(nT).getName();
+			MesquiteString newTreeName = new MesquiteString(origName);
+			newTreeName.append(" (" + nameAppend + ")");
+			((MesquiteTree)subBlock.getTree(nT)).setName(newTreeName.getValue());
+		}
+		if(useWeights.getValue()){
+			subBlock.setWriteWeights(true);
+			assignWeights(subBlock);
+		}
+	}
+	/*.................................................................................................................*/
+	/**Adds the trees of a prepared sub-block to the combined block treeList, or to the file being written, if writer is not null.  If treeList is null,
+	 * the sub-block itself becomes the combined block; it must therefore be a block of this module's own (see getSubBlock), not one of the source's.  Returns the combined block, or null if the trees could not be written to the file.*/
+	private TreeVector combineSubBlock(TreeVector treeList, TreeVector subBlock, TreeBlockFileWriter writer){
+		int numTrees = subBlock.getNumberOfTrees();
+		if (writer != null){
+			String weight = null;
+			if (useWeights.getValue())
+				weight = "1/" + numTrees;
+			for(int iTreeToAppend = 0; iTreeToAppend < numTrees; iTreeToAppend++){
+				Tree tree = subBlock.getTree(iTreeToAppend);
+				if (!writer.writeTree(tree, tree.getName(), weight))
+					return null;
+			}
+			return treeList;
+		}
+		if (treeList == null)
+			return subBlock;
+		for(int iTreeToAppend = 0; iTreeToAppend < numTrees; iTreeToAppend++){
+			treeList.addElement(subBlock.getTree(iTreeToAppend), false);
+			if(useWeights.getValue())
+				treeList.setWriteWeights(true);
+		}
+		return treeList;
+	}
+	/*.................................................................................................................*/
+	/**Starts the file to which the trees of the combined block are written, or returns null (having said why) if they are to be held in memory.*/
+	private TreeBlockFileWriter startStreamFile(Taxa taxa){
+		if (!streamToFile.getValue())
+			return null;
+		if (streamFileBase == null){
+			logln(getName() + ": no file has been chosen for combined trees; trees will be held in memory.");
+			return null;
+		}
+		String path = streamFileBase + (currentTreeBlockIndex + 1) + ".nex";
+		forgetStreamFile(path);
+		TreeBlockFileWriter writer = new TreeBlockFileWriter(path, taxa, "Trees from " + fillerTask.getName());
+		if (writer.getError() != null){
+			logln(getName() + ": combined trees could not be written to " + path + " (" + writer.getError() + "); trees will be held in memory.");
+			return null;
+		}
+		return writer;
+	}
+	/*.................................................................................................................*/
+	/**Finishes the file being written and returns a block that reads its trees from the file.  If the file could not be finished, or filling was cut short,
+	 * returns an empty block.*/
+	private TreeVector finishStreamFile(TreeBlockFileWriter writer, Taxa taxa, boolean completed){
+		if (!completed){
+			writer.abandon();
+			return new TreeVector(taxa);
+		}
+		TreeFileReader reader = writer.finish();
+		forgetStreamFile(writer.getPath());  //in case trees of the earlier file were read while this one was written
+		if (reader == null){
+			discreetAlert(getName() + ": combined trees could not be written to " + writer.getPath() + (writer.getError() == null ? "" : " (" + writer.getError() + ")"));
+			return new TreeVector(taxa);
+		}
+		FileBackedTreeVector block = new FileBackedTreeVector(taxa, reader, streamPool);
+		if(useWeights.getValue())
+			block.setWriteWeights(true);
+		return block;
+	}
+	/*.................................................................................................................*/
+	/**Drops the trees and the open file kept for an earlier file of combined trees at path, which is being written again.  Trees are kept by path and
+	 * modification time, which may not change when the file is rewritten soon after.*/
+	private void forgetStreamFile(String path){
+		ParsedTreeCache.getSharedCache().removeFile(path);
+		streamPool.releasePath(path);
+	}
+	/*.................................................................................................................*/
+	/**Returns the base name of the files for combined trees chosen by the user, or the current one if none is chosen.*/
+	private String queryStreamFileBase(){
+		String path = MesquiteFile.saveFileAsDialog("Base name for files of combined trees (files will be named <name>1.nex, <name>2.nex, etc.)");
+		if (StringUtil.blank(path))
+			return streamFileBase;
+		if (path.toLowerCase().endsWith(".nex"))
+			path = path.substring(0, path.length()-4);
+		return path;
+	}
+	/*.................................................................................................................*/
+	/**Returns a description of the source of trees, its settings and the taxa, recorded with a checkpoint so that a run is not resumed, nor searches kept
+	 * reused, with another source or other settings of the source.*/
+	private String getCheckpointSettings(Taxa taxa){
+		return fillerTask.getClass().getName() + " " + getSourceSettingsHash() + " " + taxa.getNumTaxa() + " " + taxa.getName();
+	}
+	/*.................................................................................................................*/
+	/**Returns a hash (in hexadecimal) of the snapshot of the source of trees, less its seed, which is set for each search.*/
+	private String getSourceSettingsHash(){
+		String commands = Snapshot.getSnapshotCommands(fillerTask, getProject().getHomeFile(), "");
+		StringBuffer settings = new StringBuffer();
+		StringTokenizer lines = new StringTokenizer(commands == null ? "" : commands, "\r\n");
+		while (lines.hasMoreTokens()){
+			String line = lines.nextToken().trim();
+			if (!line.startsWith("setSeed "))
+				settings.append(line).append('\n');
+		}
+		CRC32 crc = new CRC32();
+		try {
+			crc.update(settings.toString().getBytes("UTF-8"));
+		}
+		catch (UnsupportedEncodingException e){
+			crc.update(settings.toString().getBytes());
+		}
+		return Long.toHexString(crc.getValue());
+	}
+	/*.................................................................................................................*/
+	/**Records the run in the checkpoint directory and returns the checkpoint, or returns null (having said why) if searches are not to be kept.*/
+	private TreeBlockCheckpoint startCheckpoint(Taxa taxa){
+		if (!useCheckpoints.getValue())
+			return null;
+		if (checkpointDirectory == null){
+			logln(getName() + ": no checkpoint directory has been chosen; searches will not be kept.");
+			return null;
+		}
+		TreeBlockCheckpoint checkpoint = new TreeBlockCheckpoint(new File(checkpointDirectory), masterSeed, getCheckpointSettings(taxa));
+		if (!checkpoint.write()){
+			logln(getName() + ": the run could not be recorded in " + checkpointDirectory + "; searches will not be kept.");
+			return null;
+		}
+		int numFinished = 0;
+		for (int i = 0; i < numSearches; i++)
+			if (checkpoint.isFinished(currentTreeBlockIndex, i))
+				numFinished++;
+		if (numFinished > 0)
+			logln(getName() + ": " + numFinished + " of " + numSearches + " searches for block " + (currentTreeBlockIndex+1) + " were finished earlier, and will be read from " + checkpointDirectory);
+		return checkpoint;
+	}
+	/*.................................................................................................................*/
+	/**Returns sub-block i of the combined block blockIndex: from the checkpoint, if it was finished earlier, and otherwise from source, keeping it in the checkpoint.
+	 * If alwaysSeed, or if searches are kept, the source is first given the seed of the stream for sub-block i of the block (see seedSearch), so that the sub-block
+	 * does not depend on what was filled before it.  The source is asked for a block whose number differs for each search of each combined block, and the block
+	 * returned is a copy of the source's, with copies of its trees, so that neither the source's block nor the trees in it are changed when the sub-block is
+	 * named, weighted and combined.*/
+	private TreeVector getSubBlock(TreeBlockSource source, Taxa taxa, int blockIndex, int i, TreeBlockCheckpoint checkpoint, boolean alwaysSeed){
+		if (checkpoint != null){
+			TreeVector subBlock = checkpoint.readSubBlock(taxa, blockIndex, i);
+			if (subBlock != null)
+				return subBlock;
+		}
+		if (alwaysSeed || checkpoint != null)
+			seedSearch(source, blockIndex, i);
+		TreeVector sourceBlock = source.getBlock(taxa, blockIndex*numSearches + i);
+		if (sourceBlock == null)
+			return null;
+		TreeVector subBlock = new TreeVector(taxa);
+		for (int nT = 0; nT < sourceBlock.getNumberOfTrees(); nT++){
+			Tree tree = sourceBlock.getTree(nT);
+			if (tree != null)
+				subBlock.addElement(tree.cloneTree(), false);
+		}
+		if (checkpoint != null && !checkpoint.writeSubBlock(subBlock, taxa, blockIndex, i))
+			logln(getName() + ": search " + (i+1) + " could not be kept in " + checkpointDirectory);
+		return subBlock;
+	}
+	/*.................................................................................................................*/
+	/**Says where the searches finished before filling was cancelled are kept.*/
+	private void reportCheckpoint(TreeBlockCheckpoint checkpoint){
+		if (checkpoint != null)
+			logln("The searches finished are kept in " + checkpointDirectory + "; choose Resume from Checkpoint to continue the run.");
+	}
+	/*.................................................................................................................*/
 	/**Fills and returns a TreeVector for a given set of taxa.  The TreeBlockSource fillerTask determines
-	 * the source of the trees.*/
+	 * the source of the trees.  If streamToFile is set, the trees are written to a file as each block is filled, and the TreeVector
+	 * returned reads them from the file.*/
 	private TreeVector fillBlock(Taxa taxa){
-		TreeVector treeList = new TreeVector(taxa);
-		TreeVector tempTreeVector = new TreeVector(taxa);
+		TreeBlockFileWriter writer = startStreamFile(taxa);
+		TreeBlockCheckpoint checkpoint = startCheckpoint(taxa);
+		if (numSearchThreads > 1 && numSearches > 1){
+			TreeVector combined = fillBlockInParallel(taxa, writer, checkpoint);
+			if (combined != null){
+				if (checkpoint != null)
+					checkpoint.close();
+				return combined;
+			}
+		}
+		TreeVector treeList = null;
 
 		ProgressIndicator progIndicator = new ProgressIndicator(getProject(), "Combining Tree Blocks" , "Combining Tree Blocks", numSearches, "Stop Filling");
 		if (progIndicator!=null){
@@ -149,6 +475,7 @@ public class TreeBlockCombiner extends TreeBlockSource {
 			progIndicator.start();
 		}
 		boolean keepFilling = true;
+		fillCompleted = false;
 		int i = 0;
 		while(keepFilling && i < numSearches){
 			if (progIndicator != null) {
@@ -158,6 +485,7 @@ public class TreeBlockCombiner extends TreeBlockSource {
 						alert(getName() + " cancelled by user.  Tree blocks not saved.");
 					}
 					else logln(getName() + " cancelled by user.  Tree blocks not saved.");
+					reportCheckpoint(checkpoint);
 					keepFilling = false;
 				}
 				int current = i+1;
@@ -166,49 +494,196 @@ public class TreeBlockCombiner extends TreeBlockSource {
 				progIndicator.setCurrentValue(i);
 			}
 
-			if(i == 0 && keepFilling){
+			if (keepFilling){
 				//fillerTask used to be a TreeBlockFiller, but there were random seed issues, so it is currently a TreeBlockFiller
-				treeList = fillerTask.getBlock(taxa, i);
-				int numInBlock = treeList.getNumberOfTrees();
-				for (int nT = 0; nT < numInBlock; nT++){
-					String nameAppend = ((i + 1) + " of " + numSearches + " " + fillerTask.getName());
-					String origName = treeList.getTree(nT).getName();
-					MesquiteString newTreeName = new MesquiteString(origName);
-					newTreeName.append(" (" + nameAppend + ")");
-					((MesquiteTree)treeList.getTree(nT)).setName(newTreeName.getValue());
-				}
-				if(useWeights.getValue()){
-					treeList.setWriteWeights(true);
-					assignWeights(treeList);
+				TreeVector subBlock = getSubBlock(fillerTask, taxa, currentTreeBlockIndex, i, checkpoint, false);
+				prepareSubBlock(subBlock, i);
+				treeList = combineSubBlock(treeList, subBlock, writer);
+				if (writer != null && writer.getError() != null){
+					discreetAlert(getName() + ": combined trees could not be written to " + writer.getPath() + " (" + writer.getError() + ")");
+					keepFilling = false;
 				}
 			}
-			else if (keepFilling){
-				tempTreeVector = fillerTask.getBlock(taxa, i);
-				int numTrees = tempTreeVector.getNumberOfTrees();
-				for (int nT = 0; nT < numTrees; nT++){
-					String nameAppend = ((i + 1) + " of " + numSearches + " " + fillerTask.getName());
-					String origName = tempTreeVector.getTree(nT).getName();
-					MesquiteString newTreeName = new MesquiteString(origName);
-					newTreeName.append(" (" + nameAppend + ")");
-					((MesquiteTree)tempTreeVector.getTree(nT)).setName(newTreeName.getValue());
+			i++;
+		}
+		if (writer != null)
+			treeList = finishStreamFile(writer, taxa, keepFilling);
+		else if (treeList == null)
+			treeList = new TreeVector(taxa);
+		treeList.setName("Trees from " + fillerTask.getName());
+		if (progIndicator!=null) 
+			progIndicator.goAway();
+		if (checkpoint != null)
+			checkpoint.close();
+		fillCompleted = keepFilling;
+		return treeList;
+	}
+	
+	/*.................................................................................................................*/
+	/**Fills the numSearches tree blocks on up to numSearchThreads threads, each thread with its own copy of fillerTask, and combines them in order,
+	 * naming and weighting the trees as fillBlock does.  Before each block is filled, the copy filling it is given the seed of the stream for that block (for
+	 * sources that take a seed), so the blocks do not depend on which thread fills them.  If writer is not null, blocks are written to its file, in order,
+	 * as they are finished.  If checkpoint is not null, blocks finished earlier are read from it, and others are kept in it as they are finished.
+	 * Returns null if copies of fillerTask could not be made.*/
+	private TreeVector fillBlockInParallel(final Taxa taxa, TreeBlockFileWriter writer, final TreeBlockCheckpoint checkpoint){
+		final int numWorkers = Math.min(numSearchThreads, numSearches);
+		final TreeBlockSource[] workers = getSearchWorkers(numWorkers, taxa);
+		if (workers == null){
+			logln(getName() + ": separate copies of " + fillerTask.getName() + " could not be made; tree blocks will be filled in sequence.");
+			return null;
+		}
+		final TreeVector[] blocks = new TreeVector[numSearches];
+		final int blockIndex = currentTreeBlockIndex;
+		final AtomicBoolean stop = new AtomicBoolean(false);
+		final AtomicInteger numDone = new AtomicInteger(0);
+		ExecutorService pool = Executors.newFixedThreadPool(numWorkers);
+		Future[] results = new Future[numWorkers];
+		for (int w = 0; w < numWorkers; w++){
+			final int worker = w;
+			results[w] = pool.submit(new Callable(){
+				public Object call(){
+					for (int i = worker; i < numSearches && !stop.get(); i += numWorkers){
+						TreeVector block = getSubBlock(workers[worker], taxa, blockIndex, i, checkpoint, true);
+						synchronized (blocks){
+							blocks[i] = block;
+						}
+						numDone.incrementAndGet();
+					}
+					return null;
 				}
-				if(useWeights.getValue()){
-					tempTreeVector.setWriteWeights(true);
-					assignWeights(tempTreeVector);
+			});
+		}
+		pool.shutdown();
+
+		ProgressIndicator progIndicator = new ProgressIndicator(getProject(), "Combining Tree Blocks" , "Combining Tree Blocks", numSearches, "Stop Filling");
+		progIndicator.setButtonMode(ProgressIndicator.OFFER_CONTINUE);
+		progIndicator.setStopButtonName("Stop Filling");
+		progIndicator.setOfferContinueMessageString("Are you sure you want to cancel?");
+		progIndicator.setTertiaryMessage("Combining " + taxa.getName() + " trees, " + numWorkers + " blocks at a time.");
+		progIndicator.start();
+		boolean keepFilling = true;
+		TreeVector treeList = null;
+		int numCombined = 0;
+		try {
+			while (!pool.awaitTermination(250, TimeUnit.MILLISECONDS)){
+				if (writer != null && keepFilling){  //write the blocks finished so far, so they need not be held
+					numCombined = writeFinishedBlocks(blocks, numCombined, writer);
+					if (writer.getError() != null){
+						stop.set(true);
+						discreetAlert(getName() + ": combined trees could not be written to " + writer.getPath() + " (" + writer.getError() + ")");
+						keepFilling = false;
+					}
 				}
-				for(int iTreeToAppend = 0; iTreeToAppend < numTrees; iTreeToAppend++){
-					treeList.addElement(tempTreeVector.getTree(iTreeToAppend), false);
-					if(useWeights.getValue())
-						treeList.setWriteWeights(true);
+				if (keepFilling && progIndicator.isAborted()){
+					stop.set(true);  //searches under way are allowed to finish
+					if(!MesquiteThread.isScripting())
+						alert(getName() + " cancelled by user.  Tree blocks not saved.");
+					else logln(getName() + " cancelled by user.  Tree blocks not saved.");
+					reportCheckpoint(checkpoint);
+					keepFilling = false;
 				}
+				progIndicator.setText("Tree blocks filled: " + numDone.get());
+				progIndicator.setSecondaryMessage("Filled " + numDone.get() + " of " + numSearches + " blocks.");
+				progIndicator.setCurrentValue(numDone.get());
+			}
+		}
+		catch (InterruptedException e){
+			stop.set(true);
+			keepFilling = false;
+		}
+		progIndicator.goAway();
+		for (int w = 0; w < numWorkers; w++){
+			try {
+				results[w].get();
+			}
+			catch (Exception e){
+				logln(getName() + ": filling of tree blocks failed (" + e + ")");
+				keepFilling = false;
 			}
-			i++;
+		}
+
+		if (writer != null){
+			if (keepFilling)
+				numCombined = writeFinishedBlocks(blocks, numCombined, writer);
+			treeList = finishStreamFile(writer, taxa, keepFilling && writer.getError() == null);
+		}
+		else {
+			for (int i = 0; i < numSearches && blocks[i] != null; i++){
+				prepareSubBlock(blocks[i], i);
+				treeList = combineSubBlock(treeList, blocks[i], null);
+			}
+			if (treeList == null)
+				treeList = new TreeVector(taxa);
 		}
 		treeList.setName("Trees from " + fillerTask.getName());
-		if (progIndicator!=null) 
-			progIndicator.goAway();
+		fillCompleted = keepFilling;
 		return treeList;
 	}
+	/*.................................................................................................................*/
+	/**Writes the blocks finished, from block next on, until one not yet finished is reached; each block written is dropped.  Returns the number of the
+	 * next block to be written.*/
+	private int writeFinishedBlocks(TreeVector[] blocks, int next, TreeBlockFileWriter writer){
+		while (next < blocks.length && writer.getError() == null){
+			TreeVector subBlock;
+			synchronized (blocks){
+				subBlock = blocks[next];
+				blocks[next] = null;
+			}
+			if (subBlock == null)
+				break;
+			prepareSubBlock(subBlock, next);
+			combineSubBlock(null, subBlock, writer);
+			next++;
+		}
+		return next;
+	}
+	/*.................................................................................................................*/
+	/**Returns fillerTask followed by numWorkers-1 copies of it, hiring the copies needed from the snapshot of fillerTask.  Returns null if a copy could not be hired,
+	 * or if fillerTask cannot be copied so that each copy draws its own trees: a source that cannot be given a seed would be copied in the same random state
+	 * as fillerTask, so that the copies would fill the same blocks, and SampleTreesFromDirectory is not fully restored by its snapshot, which does not record its directory.*/
+	private TreeBlockSource[] getSearchWorkers(int numWorkers, Taxa taxa){
+		if (!takesSeed(fillerTask) || fillerTask instanceof SampleTreesFromDirectory)
+			return null;
+		while (searchClones.size() < numWorkers - 1){
+			String commands = Snapshot.getSnapshotCommands(fillerTask, getProject().getHomeFile(), "");
+			CommandRecord previous = MesquiteThread.getCurrentCommandRecord();
+			MesquiteThread.setCurrentCommandRecord(CommandRecord.scriptingRecord);  //the copy is set up by its snapshot, without queries to the user
+			TreeBlockSource clone = (TreeBlockSource)hireNamedEmployee(TreeBlockSource.class, "#" + fillerTask.getClass().getName());
+			if (clone != null && commands != null){
+				Puppeteer puppeteer = new Puppeteer(this);
+				puppeteer.execute(clone, commands, new MesquiteInteger(0), null, false);
+			}
+			MesquiteThread.setCurrentCommandRecord(previous);
+			if (clone == null)
+				return null;
+			clone.initialize(taxa);
+			searchClones.addElement(clone);
+		}
+		TreeBlockSource[] workers = new TreeBlockSource[numWorkers];
+		workers[0] = fillerTask;
+		for (int w = 1; w < numWorkers; w++)
+			workers[w] = (TreeBlockSource)searchClones.elementAt(w-1);
+		return workers;
+	}
+	/*.................................................................................................................*/
+	/**Fires the copies of fillerTask, e.g. because fillerTask has been replaced or its parameters changed.*/
+	private void fireSearchClones(){
+		for (int w = 0; w < searchClones.size(); w++)
+			fireEmployee((MesquiteModule)searchClones.elementAt(w));
+		searchClones.removeAllElements();
+	}
+	/*.................................................................................................................*/
+	/**Returns true if the source can be given a seed from which to draw its trees.*/
+	private boolean takesSeed(TreeBlockSource source){
+		return source instanceof SampleTreesFromMultSources || source instanceof SampleTreesFromDirectory;
+	}
+	/*.................................................................................................................*/
+	/**Gives the source filling sub-block i of the combined block blockIndex the seed of the stream for that sub-block, if it is a source that takes a seed.
+	 * The stream is derived from the stream of the combined block, so that each sub-block of each combined block has its own.*/
+	private void seedSearch(TreeBlockSource source, int blockIndex, int i){
+		if (takesSeed(source))
+			source.doCommand("setSeed", Long.toString(RandomStreams.deriveSeed(RandomStreams.deriveSeed(masterSeed, blockIndex), i)), CommandChecker.defaultChecker);
+	}
 	
 	/*=====  For TreeBlockSource =====*/
 	public TreeVector getBlock(Taxa taxa, int ic) {
@@ -217,7 +692,19 @@ public class TreeBlockCombiner extends TreeBlockSource {
    		return getCurrentBlock(taxa);
 	}
 	public TreeVector getCurrentBlock(Taxa taxa) {
-		return fillBlock(taxa);
+		String parameters = getBlockParameters();
+		TreeVector block = blockCache.get(currentTreeBlockIndex, taxa, parameters);
+		if (block != null)
+			return block;
+		block = fillBlock(taxa);
+		if (fillCompleted)  //blocks cut short by the user are not kept
+			blockCache.put(currentTreeBlockIndex, taxa, parameters, block);
+		return block;
+	}
+	/*.................................................................................................................*/
+	/**Returns a description of the settings that determine a combined block, used with the block index to identify blocks kept.*/
+	private String getBlockParameters(){
+		return numSearches + " " + useWeights.getValue() + " " + useCheckpoints.getValue() + " " + streamToFile.getValue() + " " + streamFileBase + " " + numSearchThreads + " " + masterSeed + " " + (fillerTask == null ? "none" : fillerTask.getClass().getName() + "@" + System.identityHashCode(fillerTask));
 	}
 	public TreeVector getFirstBlock(Taxa taxa) {
    		setPreferredTaxa(taxa);
@@ -241,9 +728,12 @@ public class TreeBlockCombiner extends TreeBlockSource {
    		setPreferredTaxa(taxa);
    		if (fillerTask!=null)
    			fillerTask.initialize(taxa);
+   		for (int w = 0; w < searchClones.size(); w++)
+   			((TreeBlockSource)searchClones.elementAt(w)).initialize(taxa);
 	}
 	public void setPreferredTaxa(Taxa taxa) {
 		if (taxa !=currentTaxa) {
+			blockCache.clear();
 			if (currentTaxa!=null)
 				currentTaxa.removeListener(this);
 			currentTaxa = taxa;
@@ -271,6 +761,7 @@ public class TreeBlockCombiner extends TreeBlockSource {
 	}
 	/*.................................................................................................................*/
 	public void endJob(){
+		streamPool.closeAll();
 		if (currentTaxa!=null)
 			currentTaxa.removeListener(this);
 		super.endJob();
@@ -282,8 +773,20 @@ public class TreeBlockCombiner extends TreeBlockSource {
 			return;
 		int code = Notification.getCode(notification);
 		if (obj == currentTaxa && !(code == MesquiteListener.SELECTION_CHANGED)) {
+				blockCache.clear();
 				parametersChanged(notification);
 		}
 	}
+	/*.................................................................................................................*/
+	/** called when the source of trees has changed its parameters, so that the blocks kept may no longer be the blocks it would supply*/
+	public void employeeParametersChanged(MesquiteModule employee, MesquiteModule source, Notification notification) {
+		if (searchClones.indexOf(employee) >= 0)  //copies are set up from fillerTask, and speak for it only through it
+			return;
+		if (!Notification.appearsCosmetic(notification)){
+			blockCache.clear();
+			fireSearchClones();  //copied again, with the new parameters, when next needed
+		}
+		super.employeeParametersChanged(employee, source, notification);
+	}
 }
 
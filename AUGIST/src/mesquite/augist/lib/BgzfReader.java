@@ -0,0 +1,280 @@
+package mesquite.augist.lib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**Reads a BGZF file (gzip in independently compressed blocks of at most 64 KB, as written by bgzip), allowing it to be read from any point
+ * without decompressing what precedes it.  A point in the file is given by a virtual offset: the offset of the compressed block in the
+ * file, shifted left 16 bits, plus the offset within the uncompressed block.  The reader keeps a table of the sizes of the blocks from the start of the
+ * file up to the furthest point sought, so that offsets in the uncompressed text can also be converted to virtual offsets.*/
+public class BgzfReader extends InputStream {
+	static final int MAXBLOCK = 65536;
+
+	RandomAccessFile raf;
+	long fileLength;
+	Inflater inflater = new Inflater(true);
+	byte[] compressed = new byte[MAXBLOCK];
+	byte[] block = new byte[MAXBLOCK];
+	int blockLength = 0;
+	int blockPos = 0;
+	long blockOffset = -1;  //compressed offset of the current block
+	long blockStart = 0;  //uncompressed offset of the current block
+	long nextBlockOffset = 0;
+	/*Blocks whose sizes are known (those from the start of the file up to some point), in order: compressed offsets and uncompressed starts*/
+	long[] knownOffsets = new long[1024];
+	long[] knownStarts = new long[1024];
+	int numKnown = 0;
+	long knownEnd = 0;  //uncompressed offset of the end of the last block known
+	long nextUnknownOffset = 0;
+	byte[] header = new byte[12];
+	byte[] extra = new byte[64];
+
+	/*.................................................................................................................*/
+	public BgzfReader(String path) throws IOException {
+		raf = new RandomAccessFile(path, "r");
+		fileLength = raf.length();
+	}
+	/*.................................................................................................................*/
+	/**Returns true if the file at path is compressed with gzip (including BGZF).*/
+	public static boolean isGzip(String path){
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(path, "r");
+			return file.length() >= 2 && file.read() == 31 && file.read() == 139;
+		}
+		catch (IOException e){
+			return false;
+		}
+		finally {
+			if (file != null){
+				try {
+					file.close();
+				}
+				catch (IOException e){
+				}
+			}
+		}
+	}
+	/*.................................................................................................................*/
+	/**Returns true if the file at path begins with a BGZF block.*/
+	public static boolean isBgzf(String path){
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(path, "r");
+			byte[] header = new byte[12];
+			file.readFully(header);
+			if ((header[0] & 0xFF) != 31 || (header[1] & 0xFF) != 139 || header[2] != 8 || (header[3] & 4) == 0)
+				return false;
+			int xlen = (header[10] & 0xFF) | ((header[11] & 0xFF) << 8);
+			byte[] extra = new byte[xlen];
+			file.readFully(extra);
+			return findBlockSize(extra, xlen) >= 0;
+		}
+		catch (IOException e){
+			return false;
+		}
+		finally {
+			if (file != null){
+				try {
+					file.close();
+				}
+				catch (IOException e){
+				}
+			}
+		}
+	}
+	/*.................................................................................................................*/
+	/**Returns the BSIZE field (total block size less one) of the BC subfield of a gzip extra field, or -1 if there is none.*/
+	static int findBlockSize(byte[] extra, int xlen){
+		int i = 0;
+		while (i + 4 <= xlen){
+			int slen = (extra[i+2] & 0xFF) | ((extra[i+3] & 0xFF) << 8);
+			if (extra[i] == 66 && extra[i+1] == 67 && slen == 2 && i + 6 <= xlen)
+				return (extra[i+4] & 0xFF) | ((extra[i+5] & 0xFF) << 8);
+			i += 4 + slen;
+		}
+		return -1;
+	}
+	/*.................................................................................................................*/
+	/**Reads and decompresses the block at compressed offset offset; returns false if there is no block there.*/
+	boolean loadBlock(long offset) throws IOException {
+		if (offset >= fileLength)
+			return false;
+		if (offset == blockOffset) {
+			blockPos = 0;
+			return true;
+		}
+		int known = findKnownOffset(offset);
+		if (known < 0) {
+			extendKnownBlocks(offset, -1);
+			known = findKnownOffset(offset);
+			if (known < 0)
+				throw new IOException("No BGZF block at offset " + offset);
+		}
+		int xlen = readHeader(offset);
+		int totalSize = findBlockSize(extra, xlen) + 1;
+		int dataLength = totalSize - 12 - xlen - 8;
+		raf.readFully(compressed, 0, dataLength + 8);
+		int isize = readIntLE(compressed, dataLength+4);
+		inflater.reset();
+		inflater.setInput(compressed, 0, dataLength);
+		try {
+			int length = 0;
+			while (length < isize && !inflater.finished()){
+				int n = inflater.inflate(block, length, isize - length);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				length += n;
+			}
+			blockLength = length;
+		}
+		catch (DataFormatException e){
+			throw new IOException("Corrupt BGZF block at offset " + offset);
+		}
+		blockOffset = offset;
+		blockStart = knownStarts[known];
+		blockPos = 0;
+		nextBlockOffset = offset + totalSize;
+		return true;
+	}
+	/*.................................................................................................................*/
+	/**Reads the gzip header of the block at offset, leaving the extra field in extra and the file positioned at the compressed data.  Returns the length of the extra field.*/
+	int readHeader(long offset) throws IOException {
+		raf.seek(offset);
+		raf.readFully(header, 0, 12);
+		if ((header[0] & 0xFF) != 31 || (header[1] & 0xFF) != 139 || (header[3] & 4) == 0)
+			throw new IOException("Not a BGZF block at offset " + offset);
+		int xlen = (header[10] & 0xFF) | ((header[11] & 0xFF) << 8);
+		if (extra.length < xlen)
+			extra = new byte[xlen];
+		raf.readFully(extra, 0, xlen);
+		if (findBlockSize(extra, xlen) < 0)
+			throw new IOException("Not a BGZF block at offset " + offset);
+		return xlen;
+	}
+	/*.................................................................................................................*/
+	static int readIntLE(byte[] bytes, int i){
+		return (bytes[i] & 0xFF) | ((bytes[i+1] & 0xFF) << 8) | ((bytes[i+2] & 0xFF) << 16) | ((bytes[i+3] & 0xFF) << 24);
+	}
+	/*.................................................................................................................*/
+	/**Adds blocks to those known, reading only their headers and trailers, until the block at compressed offset untilOffset and the block holding
+	 * uncompressed offset untilUncompressed are known (or the end of the file is reached).*/
+	void extendKnownBlocks(long untilOffset, long untilUncompressed) throws IOException {
+		while (nextUnknownOffset < fileLength && (nextUnknownOffset <= untilOffset || knownEnd <= untilUncompressed)){
+			long offset = nextUnknownOffset;
+			int xlen = readHeader(offset);
+			int totalSize = findBlockSize(extra, xlen) + 1;
+			raf.seek(offset + totalSize - 4);
+			raf.readFully(header, 0, 4);
+			int isize = readIntLE(header, 0);
+			if (numKnown == knownOffsets.length){
+				long[] temp = new long[numKnown*2];
+				System.arraycopy(knownOffsets, 0, temp, 0, numKnown);
+				knownOffsets = temp;
+				temp = new long[numKnown*2];
+				System.arraycopy(knownStarts, 0, temp, 0, numKnown);
+				knownStarts = temp;
+			}
+			knownOffsets[numKnown] = offset;
+			knownStarts[numKnown] = knownEnd;
+			numKnown++;
+			knownEnd += isize;
+			nextUnknownOffset = offset + totalSize;
+		}
+	}
+	/*.................................................................................................................*/
+	int findKnownOffset(long offset){
+		int lo = 0, hi = numKnown - 1;
+		while (lo <= hi){
+			int mid = (lo + hi) >>> 1;
+			if (knownOffsets[mid] < offset)
+				lo = mid + 1;
+			else if (knownOffsets[mid] > offset)
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+	/*.................................................................................................................*/
+	/**Positions the reader at the given virtual offset.*/
+	public void seekVirtual(long virtualOffset) throws IOException {
+		long offset = virtualOffset >>> 16;
+		int within = (int)(virtualOffset & 0xFFFF);
+		if (!loadBlock(offset))
+			throw new IOException("Virtual offset beyond end of file");
+		blockPos = Math.min(within, blockLength);
+	}
+	/*.................................................................................................................*/
+	/**Returns the virtual offset of the given offset in the uncompressed text, reading forward through the file as needed to
+	 * find the block that contains it.*/
+	public long toVirtualOffset(long uncompressedOffset) throws IOException {
+		extendKnownBlocks(-1, uncompressedOffset);
+		int lo = 0, hi = numKnown - 1, found = -1;
+		while (lo <= hi){  //last block starting at or before the offset (skipping any empty blocks before it)
+			int mid = (lo + hi) >>> 1;
+			if (knownStarts[mid] <= uncompressedOffset){
+				found = mid;
+				lo = mid + 1;
+			}
+			else
+				hi = mid - 1;
+		}
+		if (found < 0)
+			throw new IOException("Offset " + uncompressedOffset + " not found in BGZF file");
+		return (knownOffsets[found] << 16) | (uncompressedOffset - knownStarts[found]);
+	}
+	/*.................................................................................................................*/
+	/**Positions the reader at the given offset in the uncompressed text.*/
+	public void seekUncompressed(long uncompressedOffset) throws IOException {
+		seekVirtual(toVirtualOffset(uncompressedOffset));
+		while (blockPos >= blockLength && nextBlockOffset < fileLength)  //offset at the end of a block; continue in the next
+			loadBlock(nextBlockOffset);
+	}
+	/*.................................................................................................................*/
+	/**Returns the offset in the uncompressed text at which the reader is positioned.*/
+	public long getUncompressedPosition(){
+		return blockStart + blockPos;
+	}
+	/*.................................................................................................................*/
+	public int read() throws IOException {
+		byte[] one = new byte[1];
+		if (read(one, 0, 1) <= 0)
+			return -1;
+		return one[0] & 0xFF;
+	}
+	/*.................................................................................................................*/
+	public int read(byte[] buffer, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (blockOffset < 0 && !loadBlock(0))
+			return -1;
+		while (blockPos >= blockLength){
+			if (!loadBlock(nextBlockOffset))
+				return -1;
+		}
+		int n = Math.min(len, blockLength - blockPos);
+		System.arraycopy(block, blockPos, buffer, off, n);
+		blockPos += n;
+		return n;
+	}
+	/*.................................................................................................................*/
+	/**Reads exactly length bytes into buffer; throws an exception if the end of the file is reached first.*/
+	public void readFully(byte[] buffer, int off, int length) throws IOException {
+		while (length > 0){
+			int n = read(buffer, off, length);
+			if (n < 0)
+				throw new IOException("Unexpected end of BGZF file");
+			off += n;
+			length -= n;
+		}
+	}
+	/*.................................................................................................................*/
+	public void close() throws IOException {
+		inflater.end();
+		raf.close();
+	}
+}
@@ -0,0 +1,528 @@
+package mesquite.augist.lib;
+
+import java.util.Arrays;
+
+import mesquite.lib.*;
+
+/**Counts the bipartitions (splits) of trees, for consensus, in place of a BipartitionVector.  Each bipartition is held as the words of a bit set
+ * of taxa, in an open-addressing hash table whose columns (the words, the summed weights and the numbers of trees) are parallel primitive arrays,
+ * so that finding a bipartition takes the same time however many are held.  Bipartitions are numbered in the order in which they were first found,
+ * and keep their numbers until the table is reset, even if trees are removed so that no tree counted has them.  Weights are held in fixed point, as whole
+ * numbers of units of 2^-32 (each tree's weight rounded to the nearest unit), so that their sums are exact: they do not depend on the order in which trees are
+ * added, or on how the trees were divided among tables later merged, and removing a tree takes away exactly what adding it added.  The summed weights of the
+ * trees counted must therefore be less than 2^31.
+ *
+ * For rooted trees, the bipartitions are the clades of the internal nodes other than the root.  For unrooted trees, a bipartition is held as the side
+ * of the split not including the first taxon of the trees, so that both sides are counted as one; splits of single taxa are not counted.
+ * ASSUMES TREES HAVE ALL THE SAME TAXA.*/
+public class BipartitionTable {
+	static final int EMPTY = -1;
+	static final int INITIALCAPACITY = 64;
+	static final double WEIGHTSCALE = 4294967296.0;  //2^32 units of weight per unit
+
+	Taxa taxa;
+	int numTaxa;
+	int numWords;
+	boolean rooted = true;
+	boolean useWeights = false;
+	/*Columns, by number of bipartition*/
+	long[] words;
+	long[] weights;  //in units of 1/WEIGHTSCALE
+	int[] counts;
+	int[] lastTree;  //the tree (by treeSerial) in which each bipartition was last counted, so that it is counted once in each tree
+	int numBipartitions = 0;
+	/*Hash slots, each holding the number of a bipartition, or EMPTY*/
+	int[] slots;
+	/*Trees counted*/
+	int numTrees = 0;
+	long totalWeight = 0;  //in units of 1/WEIGHTSCALE
+	boolean weightOverflow = false;  //whether a weight or sum of weights has been too large to hold in units of 1/WEIGHTSCALE
+	long[] taxaInTrees;
+	/*Scratch for addTree*/
+	long[] nodeWords = new long[0];
+	long[] key;
+	int treeSerial = 0;  //number of trees added or removed
+	int[] treeSplits = new int[64];  //the bipartitions of the tree last added, removed or looked up
+	int numTreeSplits = 0;
+	boolean splitsMissing = false;  //whether a bipartition of the tree last looked up is not in the table
+
+	/*.................................................................................................................*/
+	public BipartitionTable(Taxa taxa){
+		reset(taxa);
+	}
+	/*.................................................................................................................*/
+	/**Removes all bipartitions and trees counted, and sets the taxa of the trees to be counted.*/
+	public void reset(Taxa taxa){
+		this.taxa = taxa;
+		numTaxa = taxa == null ? 0 : taxa.getNumTaxa();
+		numWords = Math.max(1, (numTaxa + 63)/64);
+		words = new long[INITIALCAPACITY*numWords];
+		weights = new long[INITIALCAPACITY];
+		counts = new int[INITIALCAPACITY];
+		lastTree = new int[INITIALCAPACITY];
+		slots = new int[INITIALCAPACITY*2];
+		Arrays.fill(slots, EMPTY);
+		numBipartitions = 0;
+		numTrees = 0;
+		treeSerial = 0;
+		totalWeight = 0;
+		weightOverflow = false;
+		taxaInTrees = new long[numWords];
+		key = new long[numWords];
+	}
+	/*.................................................................................................................*/
+	public Taxa getTaxa(){
+		return taxa;
+	}
+	/*.................................................................................................................*/
+	public void setRooted(boolean rooted){
+		this.rooted = rooted;
+	}
+	public boolean getRooted(){
+		return rooted;
+	}
+	/*.................................................................................................................*/
+	/**Sets whether frequencies are the summed weights of the trees with a bipartition, as a fraction of the summed weights of all trees, rather than numbers of trees.*/
+	public void setUseWeights(boolean useWeights){
+		this.useWeights = useWeights;
+	}
+	public boolean getUseWeights(){
+		return useWeights;
+	}
+	/*.................................................................................................................*/
+	public int getNumBipartitions(){
+		return numBipartitions;
+	}
+	/*.................................................................................................................*/
+	public int getNumTrees(){
+		return numTrees;
+	}
+	/*.................................................................................................................*/
+	public double getTotalWeight(){
+		return totalWeight/WEIGHTSCALE;
+	}
+	/*.................................................................................................................*/
+	/**Returns whether a weight, or a sum of weights, has been too large to be counted exactly (about 2^31), in which case weighted frequencies
+	 * cannot be calculated.*/
+	public boolean getWeightOverflow(){
+		return weightOverflow;
+	}
+	/*.................................................................................................................*/
+	/**Returns the number of trees with bipartition id.*/
+	public int getCount(int id){
+		return counts[id];
+	}
+	/*.................................................................................................................*/
+	/**Returns the summed weights of the trees with bipartition id.*/
+	public double getWeight(int id){
+		return weights[id]/WEIGHTSCALE;
+	}
+	/*.................................................................................................................*/
+	/**Returns the frequency of bipartition id among the trees counted.*/
+	public double getFrequency(int id){
+		if (useWeights) {
+			if (weightOverflow)
+				return Double.NaN;
+			return totalWeight > 0 ? ((double)weights[id])/totalWeight : 0;
+		}
+		return numTrees > 0 ? ((double)counts[id])/numTrees : 0;
+	}
+	/*.................................................................................................................*/
+	/**Returns the number of taxa in bipartition id.*/
+	public int getSize(int id){
+		int size = 0;
+		for (int w = 0; w < numWords; w++)
+			size += Long.bitCount(words[id*numWords + w]);
+		return size;
+	}
+	/*.................................................................................................................*/
+	/**Returns the taxa in bipartition id.*/
+	public Bits getBits(int id){
+		Bits bits = new Bits(numTaxa);
+		for (int it = 0; it < numTaxa; it++)
+			if ((words[id*numWords + (it >>> 6)] & (1L << (it & 63))) != 0)
+				bits.setBit(it);
+		return bits;
+	}
+	/*.................................................................................................................*/
+	/**Returns the number of the bipartition in this table that is bipartition id of other, or -1 if it is not in this table.  The tables must be of the same taxa.*/
+	public int indexOf(BipartitionTable other, int id){
+		if (other.numWords != numWords)
+			return -1;
+		return find(other.words, id*numWords);
+	}
+	/*.................................................................................................................*/
+	/**Returns a copy of the table.*/
+	public BipartitionTable cloneTable(){
+		BipartitionTable copy = new BipartitionTable(taxa);
+		copy.rooted = rooted;
+		copy.useWeights = useWeights;
+		copy.words = (long[])words.clone();
+		copy.weights = (long[])weights.clone();
+		copy.counts = (int[])counts.clone();
+		copy.lastTree = (int[])lastTree.clone();
+		copy.slots = (int[])slots.clone();
+		copy.numBipartitions = numBipartitions;
+		copy.numTrees = numTrees;
+		copy.treeSerial = treeSerial;
+		copy.totalWeight = totalWeight;
+		copy.weightOverflow = weightOverflow;
+		copy.taxaInTrees = (long[])taxaInTrees.clone();
+		return copy;
+	}
+
+	/*.................................................................................................................*/
+	static int hash(long[] source, int offset, int numWords){
+		long h = 0;
+		for (int w = 0; w < numWords; w++)
+			h = RandomStreams.mix64(h ^ source[offset + w]);
+		return (int)(h ^ (h >>> 32));
+	}
+	/*.................................................................................................................*/
+	boolean wordsEqual(int id, long[] source, int offset){
+		int base = id*numWords;
+		for (int w = 0; w < numWords; w++)
+			if (words[base + w] != source[offset + w])
+				return false;
+		return true;
+	}
+	/*.................................................................................................................*/
+	/**Returns the number of the bipartition whose words are those of source from offset, or -1 if it is not in the table.*/
+	int find(long[] source, int offset){
+		int mask = slots.length - 1;
+		for (int slot = hash(source, offset, numWords) & mask; ; slot = (slot + 1) & mask){
+			int id = slots[slot];
+			if (id == EMPTY)
+				return -1;
+			if (wordsEqual(id, source, offset))
+				return id;
+		}
+	}
+	/*.................................................................................................................*/
+	/**Returns the number of the bipartition held in key, adding it if it is not in the table.*/
+	int findOrAdd(long[] key){
+		int mask = slots.length - 1;
+		int slot = hash(key, 0, numWords) & mask;
+		for (; ; slot = (slot + 1) & mask){
+			int id = slots[slot];
+			if (id == EMPTY)
+				break;
+			if (wordsEqual(id, key, 0))
+				return id;
+		}
+		if (numBipartitions == counts.length)
+			growColumns();
+		int id = numBipartitions++;
+		System.arraycopy(key, 0, words, id*numWords, numWords);
+		weights[id] = 0;
+		counts[id] = 0;
+		lastTree[id] = 0;
+		if (numBipartitions*2 > slots.length)  //keep the table no more than half full
+			rehash(slots.length*2);
+		else
+			slots[slot] = id;
+		return id;
+	}
+	/*.................................................................................................................*/
+	void growColumns(){
+		int capacity = counts.length*2;
+		long[] newWords = new long[capacity*numWords];
+		System.arraycopy(words, 0, newWords, 0, words.length);
+		words = newWords;
+		long[] newWeights = new long[capacity];
+		System.arraycopy(weights, 0, newWeights, 0, weights.length);
+		weights = newWeights;
+		int[] newCounts = new int[capacity];
+		System.arraycopy(counts, 0, newCounts, 0, counts.length);
+		counts = newCounts;
+		int[] newLastTree = new int[capacity];
+		System.arraycopy(lastTree, 0, newLastTree, 0, lastTree.length);
+		lastTree = newLastTree;
+	}
+	/*.................................................................................................................*/
+	void rehash(int numSlots){
+		slots = new int[numSlots];
+		Arrays.fill(slots, EMPTY);
+		int mask = numSlots - 1;
+		for (int id = 0; id < numBipartitions; id++){
+			int slot = hash(words, id*numWords, numWords) & mask;
+			while (slots[slot] != EMPTY)
+				slot = (slot + 1) & mask;
+			slots[slot] = id;
+		}
+	}
+
+	/*.................................................................................................................*/
+	/**Returns the weight in units of 1/WEIGHTSCALE, rounded to the nearest unit (0 if it is not a number).  A weight too large to hold in units is noted in weightOverflow.*/
+	long toUnits(double weight){
+		if (Double.isNaN(weight) || Double.isInfinite(weight))
+			return 0;
+		double units = weight*WEIGHTSCALE;
+		if (units >= Long.MAX_VALUE || units <= -Long.MAX_VALUE){
+			weightOverflow = true;
+			return 0;
+		}
+		return Math.round(units);
+	}
+	/*.................................................................................................................*/
+	/**Returns a + b, noting in weightOverflow if the sum is too large to hold.*/
+	long addUnits(long a, long b){
+		long sum = a + b;
+		if (((a ^ sum) & (b ^ sum)) < 0)
+			weightOverflow = true;
+		return sum;
+	}
+	/*.................................................................................................................*/
+	/**Adds the bipartitions and trees counted by other, a table of the same taxa, to this table.  Bipartitions new to this table are numbered in the order
+	 * of their numbers in other, so that tables counting consecutive runs of trees, merged in order, number the bipartitions as would a single table
+	 * counting all the trees.*/
+	public void merge(BipartitionTable other){
+		if (other.numWords != numWords)
+			return;
+		for (int otherID = 0; otherID < other.numBipartitions; otherID++){
+			System.arraycopy(other.words, otherID*numWords, key, 0, numWords);
+			int id = findOrAdd(key);
+			weights[id] = addUnits(weights[id], other.weights[otherID]);
+			counts[id] += other.counts[otherID];
+		}
+		numTrees += other.numTrees;
+		treeSerial++;
+		totalWeight = addUnits(totalWeight, other.totalWeight);
+		weightOverflow |= other.weightOverflow;
+		for (int w = 0; w < numWords; w++)
+			taxaInTrees[w] |= other.taxaInTrees[w];
+	}
+	/*.................................................................................................................*/
+	/**Counts the bipartitions of the tree, with the given weight.*/
+	public void addTree(Tree tree, double weight){
+		countTree(tree, weight, 1);
+	}
+	/*.................................................................................................................*/
+	/**Counts the bipartitions of the tree, with the given weight, and returns their numbers (e.g., for removeSplits), or null if the tree could not be counted.*/
+	public int[] addTreeAndGetSplits(Tree tree, double weight){
+		if (!countTree(tree, weight, 1))
+			return null;
+		int[] splits = new int[numTreeSplits];
+		System.arraycopy(treeSplits, 0, splits, 0, numTreeSplits);
+		return splits;
+	}
+	/*.................................................................................................................*/
+	/**Removes the tree, counted earlier with the given weight, from the counts of its bipartitions.  Bipartitions no longer in any tree counted keep their numbers.*/
+	public void removeTree(Tree tree, double weight){
+		countTree(tree, weight, -1);
+	}
+	/*.................................................................................................................*/
+	/**Returns the numbers of the bipartitions of the tree, without counting it, or null if the tree could not be examined or has a bipartition not in the table
+	 * (and so cannot be among the trees counted).*/
+	public int[] findSplits(Tree tree){
+		if (!countTree(tree, 0, 0) || splitsMissing)
+			return null;
+		int[] splits = new int[numTreeSplits];
+		System.arraycopy(treeSplits, 0, splits, 0, numTreeSplits);
+		return splits;
+	}
+	/*.................................................................................................................*/
+	/**Removes a tree, counted earlier with the given weight, whose bipartitions had the numbers in splits (as returned by addTreeAndGetSplits), without
+	 * examining the tree again.*/
+	public void removeSplits(int[] splits, double weight){
+		if (splits == null)
+			return;
+		long units = toUnits(weight);
+		numTrees--;
+		treeSerial++;
+		totalWeight = addUnits(totalWeight, -units);
+		for (int i = 0; i < splits.length; i++){
+			weights[splits[i]] = addUnits(weights[splits[i]], -units);
+			counts[splits[i]]--;
+		}
+	}
+	/*.................................................................................................................*/
+	/**Adds the tree to the counts of its bipartitions (change 1), removes it (change -1), or only looks up its bipartitions (change 0); returns false if the tree
+	 * could not be counted.  The numbers of its bipartitions are left in treeSplits.*/
+	boolean countTree(Tree tree, double weight, int change){
+		if (tree == null)
+			return false;
+		int root = tree.getRoot();
+		if (!tree.nodeExists(root))
+			return false;
+		treeSerial++;
+		numTreeSplits = 0;
+		splitsMissing = false;
+		long units = change*toUnits(weight);
+		numTrees += change;
+		totalWeight = addUnits(totalWeight, units);
+		int needed = tree.getNumNodeSpaces()*numWords;
+		if (nodeWords.length < needed)
+			nodeWords = new long[needed];
+		fillNodeWords(tree, root);
+		int rootBase = root*numWords;
+		int numInTree = 0;
+		int firstTaxon = -1;
+		for (int w = 0; w < numWords; w++){
+			long rootWord = nodeWords[rootBase + w];
+			if (change > 0)
+				taxaInTrees[w] |= rootWord;
+			numInTree += Long.bitCount(rootWord);
+			if (firstTaxon < 0 && rootWord != 0)
+				firstTaxon = w*64 + Long.numberOfTrailingZeros(rootWord);
+		}
+		countSplits(tree, root, root, numInTree, firstTaxon, units, change);
+		return true;
+	}
+	/*.................................................................................................................*/
+	/**Sets the words of node to the taxa in its clade.*/
+	void fillNodeWords(Tree tree, int node){
+		int base = node*numWords;
+		for (int w = 0; w < numWords; w++)
+			nodeWords[base + w] = 0;
+		if (tree.nodeIsTerminal(node)){
+			int it = tree.taxonNumberOfNode(node);
+			if (it >= 0 && it < numTaxa)
+				nodeWords[base + (it >>> 6)] |= 1L << (it & 63);
+			return;
+		}
+		for (int d = tree.firstDaughterOfNode(node); tree.nodeExists(d); d = tree.nextSisterOfNode(d)){
+			fillNodeWords(tree, d);
+			int dBase = d*numWords;
+			for (int w = 0; w < numWords; w++)
+				nodeWords[base + w] |= nodeWords[dBase + w];
+		}
+	}
+	/*.................................................................................................................*/
+	void countSplits(Tree tree, int node, int root, int numInTree, int firstTaxon, long units, int change){
+		if (tree.nodeIsTerminal(node))
+			return;
+		if (node != root){
+			int base = node*numWords;
+			boolean complement = !rooted && firstTaxon >= 0 && (nodeWords[base + (firstTaxon >>> 6)] & (1L << (firstTaxon & 63))) != 0;
+			int rootBase = root*numWords;
+			int size = 0;
+			for (int w = 0; w < numWords; w++){
+				key[w] = complement ? nodeWords[rootBase + w] & ~nodeWords[base + w] : nodeWords[base + w];
+				size += Long.bitCount(key[w]);
+			}
+			boolean informative = rooted ? (size >= 2 && size < numInTree) : (size >= 2 && size <= numInTree - 2);
+			if (informative){
+				int id = change > 0 ? findOrAdd(key) : find(key, 0);
+				if (id < 0)
+					splitsMissing = true;
+				else if (lastTree[id] != treeSerial){  //e.g., the two sides of the root of an unrooted tree
+					lastTree[id] = treeSerial;
+					weights[id] = addUnits(weights[id], units);
+					counts[id] += change;
+					if (numTreeSplits == treeSplits.length){
+						int[] newSplits = new int[treeSplits.length*2];
+						System.arraycopy(treeSplits, 0, newSplits, 0, numTreeSplits);
+						treeSplits = newSplits;
+					}
+					treeSplits[numTreeSplits++] = id;
+				}
+			}
+		}
+		for (int d = tree.firstDaughterOfNode(node); tree.nodeExists(d); d = tree.nextSisterOfNode(d))
+			countSplits(tree, d, root, numInTree, firstTaxon, units, change);
+	}
+
+	/*.................................................................................................................*/
+	/**Returns whether bipartition id is frequent enough to be in the consensus tree: more frequent than frequencyLimit, or, if frequencyLimit is 1, in all trees.*/
+	boolean inConsensus(int id, double frequencyLimit){
+		if (counts[id] <= 0)
+			return false;
+		double frequency = getFrequency(id);
+		if (frequencyLimit >= 1.0)
+			return frequency >= 1.0 - 1e-12;
+		return frequency > frequencyLimit;
+	}
+	/*.................................................................................................................*/
+	/**Returns the consensus tree of the bipartitions more frequent than frequencyLimit (0.5 for the majority rules consensus), as BipartitionVector.makeTree
+	 * does.  Bipartitions are added from the largest, and any that conflict with those already added (possible only if frequencyLimit is below 0.5) are skipped.
+	 * Returns null if weights are used and have been too large to count exactly (see getWeightOverflow).*/
+	public MesquiteTree makeTree(double frequencyLimit){
+		if (taxa == null || numTrees == 0 || (useWeights && weightOverflow))
+			return null;
+		int numAccepted = 0;
+		long[] order = new long[numBipartitions];
+		for (int id = 0; id < numBipartitions; id++)
+			if (inConsensus(id, frequencyLimit))
+				order[numAccepted++] = (((long)(numTaxa - getSize(id))) << 32) | id;  //largest first
+		Arrays.sort(order, 0, numAccepted);
+		int[] innermost = new int[numTaxa];  //the smallest clade added that holds each taxon, or -1 for the root
+		Arrays.fill(innermost, -1);
+		int[] cladeParent = new int[numAccepted];
+		int[] cladeOf = new int[numAccepted];
+		int numClades = 0;
+		for (int j = 0; j < numAccepted; j++){
+			int id = (int)(order[j] & 0xFFFFFFFFL);
+			int parent = -2;
+			boolean compatible = true;
+			for (int it = 0; it < numTaxa && compatible; it++){
+				if ((words[id*numWords + (it >>> 6)] & (1L << (it & 63))) == 0)
+					continue;
+				if (parent == -2)
+					parent = innermost[it];
+				else if (innermost[it] != parent)
+					compatible = false;
+			}
+			if (!compatible || parent == -2)
+				continue;
+			for (int it = 0; it < numTaxa; it++)
+				if ((words[id*numWords + (it >>> 6)] & (1L << (it & 63))) != 0)
+					innermost[it] = numClades;
+			cladeParent[numClades] = parent;
+			cladeOf[numClades] = id;
+			numClades++;
+		}
+		StringBuffer description = new StringBuffer();
+		writeClade(description, -1, innermost, cladeParent, numClades);
+		description.append(';');
+		MesquiteTree tree = new MesquiteTree(taxa);
+		if (!tree.readTree(description.toString()))
+			return null;
+		tree.setRooted(rooted, false);
+		return tree;
+	}
+	/*.................................................................................................................*/
+	/**Writes the Newick description of clade (or of the root, if clade is -1), with taxa by name.*/
+	void writeClade(StringBuffer description, int clade, int[] innermost, int[] cladeParent, int numClades){
+		description.append('(');
+		boolean first = true;
+		for (int c = 0; c < numClades; c++){
+			if (cladeParent[c] != clade)
+				continue;
+			if (!first)
+				description.append(',');
+			writeClade(description, c, innermost, cladeParent, numClades);
+			first = false;
+		}
+		for (int it = 0; it < numTaxa; it++){
+			if (innermost[it] != clade || (taxaInTrees[it >>> 6] & (1L << (it & 63))) == 0)
+				continue;
+			if (!first)
+				description.append(',');
+			description.append(StringUtil.tokenize(taxa.getTaxonName(it)));
+			first = false;
+		}
+		description.append(')');
+	}
+	/*.................................................................................................................*/
+	/**Returns a table of the bipartitions, those in most trees first, each with its taxa marked by * and its frequency, as BipartitionVector.dump does.*/
+	public String getFrequencyTable(){
+		long[] order = new long[numBipartitions];
+		for (int id = 0; id < numBipartitions; id++)
+			order[id] = (((long)(numTrees - counts[id])) << 32) | id;
+		Arrays.sort(order);
+		StringBuffer table = new StringBuffer();
+		for (int j = 0; j < numBipartitions; j++){
+			int id = (int)(order[j] & 0xFFFFFFFFL);
+			if (counts[id] <= 0)  //only in trees removed
+				continue;
+			for (int it = 0; it < numTaxa; it++){
+				if ((taxaInTrees[it >>> 6] & (1L << (it & 63))) == 0)
+					continue;
+				table.append((words[id*numWords + (it >>> 6)] & (1L << (it & 63))) != 0 ? '*' : '.');
+			}
+			table.append("   " + MesquiteDouble.toString(getFrequency(id)) + StringUtil.lineEnding());
+		}
+		return table.toString();
+	}
+}
@@ -1,5 +1,7 @@
 package mesquite.augist.lib;
 
+import java.util.concurrent.*;
+
 import mesquite.consensus.lib.*;
 import mesquite.lib.*;
 import mesquite.lib.duties.*;
@@ -15,13 +17,19 @@ public abstract class CmdTreeConsenser extends IncrementalConsenser {
 	protected static final int UNROOTED=2;
 	protected int rooting = ASIS;   // controls and preferences and snapshot should be in subclass
 
-	protected BipartitionVector bipartitions=null;
+	protected BipartitionTable bipartitions=null;
 	protected int treeNumber = 0;
 	boolean preferencesSet = false;
+	/**Number of threads among which the trees are divided by consense, if the subclass counts bipartitions only (see canConsenseInParallel)*/
+	protected int numConsenseThreads = Runtime.getRuntime().availableProcessors();
+	/**Whether numConsenseThreads was set, rather than taken from the number of processors of this computer; only then is it saved in snapshots and preferences*/
+	protected boolean consenseThreadsChosen = false;
+	/**Fewest trees given to each thread; smaller lists of trees are divided among fewer threads*/
+	static final int MINTREESPERTHREAD = 256;
 
 	/*.................................................................................................................*/
 	public boolean startJob(String arguments, Object condition, boolean hiredByName) {
-		bipartitions = new BipartitionVector();
+		bipartitions = new BipartitionTable(null);
 		loadPreferences();
 //		if (!MesquiteThread.isScripting()) 
 //			if (!queryOptions())
@@ -43,54 +51,161 @@ public abstract class CmdTreeConsenser extends IncrementalConsenser {
 	/*.................................................................................................................*/
   	public void reset(Taxa taxa){
   		if (bipartitions==null)
-  			bipartitions = new BipartitionVector();
+  			bipartitions = new BipartitionTable(taxa);
   		else
-  			bipartitions.removeAllElements();		// clean bipartition table
-		bipartitions.setTaxa(taxa);
-		bipartitions.zeroFrequencies();
+  			bipartitions.reset(taxa);		// clean bipartition table
 		initialize();
 	}
   	public abstract void addTree(Tree t);
+	/*.................................................................................................................*/
+	/**Removes tree t, counted earlier by addTree, from the counts of its bipartitions.*/
+  	public void removeTree(Tree t){
+  		if (t != null && bipartitions != null)
+  			bipartitions.removeTree(t, getTreeWeight(t));
+  	}
+	/*.................................................................................................................*/
+	/**Returns the weight with which tree t is counted.*/
+ 	protected double getTreeWeight(Tree t){
+ 		return 1.0;
+ 	}
+	/*.................................................................................................................*/
+	/**Returns true if addTree does nothing but count the bipartitions of the tree, with the weight given by getTreeWeight, so that consense may
+	 * count the trees in separate tables on several threads and merge the tables.*/
+ 	protected boolean canConsenseInParallel(){
+ 		return false;
+ 	}
+	/*.................................................................................................................*/
+	/**Sets the number of threads among which consense divides the trees (1 to count them in sequence).*/
+	public void setConsenseThreads(int numThreads){
+		if (numThreads >= 1){
+			numConsenseThreads = numThreads;
+			consenseThreadsChosen = true;
+		}
+	}
+	public int getConsenseThreads(){
+		return numConsenseThreads;
+	}
  	public abstract Tree getConsensus();
 	/*.................................................................................................................*/
  	public void initialize() {
  	}
 	/*.................................................................................................................*/
+	/**Sets whether bipartitions are counted as rooted, following the rooting preference, or the first tree if the trees are taken as is.*/
+	void setTableRooting(Tree firstTree){
+		switch (rooting) {
+		case ASIS: 
+			bipartitions.setRooted(firstTree.getRooted());
+			break;
+		case ROOTED: 
+			bipartitions.setRooted(true);
+			break;
+		case UNROOTED: 
+			bipartitions.setRooted(false);
+			break;
+		}
+	}
+	/*.................................................................................................................*/
 	//ASSUMES TREES HAVE ALL THE SAME TAXA
 	/*.................................................................................................................*/
 	public Tree consense(Trees list){
-		Taxa taxa = list.getTaxa();
+		return consense(ConsensusTreeStream.fromList(list));
+	}
+	/*.................................................................................................................*/
+	/**Returns the consensus of the trees of the file read by reader, skipping the first burnIn trees and taking every stride-th tree after.  Each tree
+	 * is read, counted and dropped, so the trees are never all in memory.*/
+	public Tree consense(TreeFileReader reader, TreeFileReaderPool pool, Taxa taxa, int burnIn, int stride){
+		return consense(ConsensusTreeStream.fromFile(reader, pool, taxa, burnIn, stride));
+	}
+	/*.................................................................................................................*/
+	/**Returns the consensus of the trees of the source, skipping the first burnIn trees and taking every stride-th tree after.  Each tree
+	 * is obtained, counted and dropped, so the trees are never all in memory.*/
+	public Tree consense(TreeSource source, Taxa taxa, int burnIn, int stride){
+		return consense(ConsensusTreeStream.fromSource(source, taxa, burnIn, stride));
+	}
+	/*.................................................................................................................*/
+	public Tree consense(ConsensusTreeStream stream){
+		Taxa taxa = stream.getTaxa();
 		
 		reset(taxa);
 		MesquiteTimer timer = new MesquiteTimer();
 		timer.start();
 		logln("");
-		for (treeNumber = 0; treeNumber < list.size(); treeNumber++){
-			if (treeNumber==0) {
-				switch (rooting) {
-				case ASIS: 
-					bipartitions.setRooted(list.getTree(0).getRooted());
-					break;
-				case ROOTED: 
-					bipartitions.setRooted(true);
-					break;
-				case UNROOTED: 
-					bipartitions.setRooted(false);
-					break;
-				}
+		int numTrees = stream.getNumTrees();
+		int numThreads = Math.min(numConsenseThreads, numTrees/MINTREESPERTHREAD);
+		if (numThreads > 1 && canConsenseInParallel() && stream.forThread() != null && consenseInParallel(stream, numThreads))
+			treeNumber = numTrees;
+		else {
+			boolean first = true;
+			for (treeNumber = 0; treeNumber < numTrees; treeNumber++){
+				Tree tree = stream.getTree(treeNumber);
+				if (tree == null)
+					continue;
+				if (first)
+					setTableRooting(tree);
+				first = false;
+				addTree(tree);
+				if (treeNumber%100==0)
+					log(".");
 			}
-			addTree(list.getTree(treeNumber));
-			if (treeNumber%100==0)
-				log(".");
 		}
 		Tree t = getConsensus();
 		double time = 1.0*timer.timeSinceLast()/1000.0;
 		timer = null;
 		
-		logln("\n" + list.size() + " trees processed in " + time + " seconds");
+		logln("\n" + numTrees + " trees processed in " + time + " seconds");
 		return t;
 	}
 
+	/*.................................................................................................................*/
+	/**Divides the stream of trees into numThreads consecutive runs, counts the bipartitions of each run in its own table on its own thread, and merges the tables,
+	 * in order, into bipartitions.  The counts, and the numbering of the bipartitions, are those that counting the trees in sequence would give.  Returns false
+	 * if counting failed on some thread.*/
+	boolean consenseInParallel(ConsensusTreeStream stream, int numThreads){
+		int numTrees = stream.getNumTrees();
+		Tree firstTree = stream.getTree(0);
+		if (firstTree == null)
+			return false;
+		setTableRooting(firstTree);
+		BipartitionTable[] tables = new BipartitionTable[numThreads];
+		Future[] results = new Future[numThreads];
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		for (int c = 0; c < numThreads; c++){
+			final int from = (int)(((long)c)*numTrees/numThreads);
+			final int to = (int)(((long)(c+1))*numTrees/numThreads);
+			final ConsensusTreeStream threadStream = stream.forThread();
+			final BipartitionTable table = new BipartitionTable(stream.getTaxa());
+			table.setRooted(bipartitions.getRooted());
+			table.setUseWeights(bipartitions.getUseWeights());
+			tables[c] = table;
+			results[c] = pool.submit(new Callable(){
+				public Object call(){
+					for (int i = from; i < to; i++){
+						Tree t = threadStream.getTree(i);
+						if (t != null)
+							table.addTree(t, getTreeWeight(t));
+					}
+					return null;
+				}
+			});
+		}
+		pool.shutdown();
+		for (int c = 0; c < numThreads; c++){
+			try {
+				results[c].get();
+			}
+			catch (Exception e){
+				logln(getName() + ": counting of bipartitions on " + numThreads + " threads failed (" + e + "); trees will be counted in sequence.");
+				pool.shutdownNow();
+				return false;
+			}
+		}
+		for (int c = 0; c < numThreads; c++){
+			bipartitions.merge(tables[c]);
+			tables[c] = null;
+		}
+		return true;
+	}
+
 	/*.................................................................................................................*/
 	/*  ====  For use with/by XMLUtil  ====  */
 	public void processMorePreferences (String tag, String content) {
@@ -99,6 +214,8 @@ public abstract class CmdTreeConsenser extends IncrementalConsenser {
 	public void processSingleXMLPreference (String tag, String content) {
 		if ("rooting".equalsIgnoreCase(tag))
 			rooting = MesquiteInteger.fromString(content);
+		else if ("consenseThreads".equalsIgnoreCase(tag))
+			setConsenseThreads(MesquiteInteger.fromString(content));
 		processMorePreferences(tag, content);
 		preferencesSet = true;
 	}
@@ -110,6 +227,8 @@ public abstract class CmdTreeConsenser extends IncrementalConsenser {
 	public String preparePreferencesForXML () {
 		StringBuffer buffer = new StringBuffer(200);
 		StringUtil.appendXMLTag(buffer, 2, "rooting", rooting);  
+		if (consenseThreadsChosen)
+			StringUtil.appendXMLTag(buffer, 2, "consenseThreads", numConsenseThreads);  
 		buffer.append(prepareMorePreferencesForXML());
 		preferencesSet = true;
 		return buffer.toString();
@@ -0,0 +1,120 @@
+package mesquite.augist.lib;
+
+import mesquite.lib.*;
+import mesquite.lib.duties.*;
+
+/**The trees to be counted by CmdTreeConsenser.consense, supplied one at a time by number.  A stream over a tree file or a source of trees builds each tree
+ * only when asked for it, and keeps no trees, so that the memory used by consense depends on the number of bipartitions, not the number of trees.  A stream
+ * may skip a burn-in (the first trees, e.g. of an MCMC run) and take only every stride-th tree after it.*/
+public abstract class ConsensusTreeStream {
+	Taxa taxa;
+	int burnIn = 0;
+	int stride = 1;
+
+	/*.................................................................................................................*/
+	ConsensusTreeStream(Taxa taxa, int burnIn, int stride){
+		this.taxa = taxa;
+		this.burnIn = Math.max(0, burnIn);
+		this.stride = Math.max(1, stride);
+	}
+	/*.................................................................................................................*/
+	/**Returns a stream over the trees of the list.*/
+	public static ConsensusTreeStream fromList(Trees list){
+		return new ListStream(list);
+	}
+	/*.................................................................................................................*/
+	/**Returns a stream over the trees of the file read by reader, for the given taxa, skipping the first burnIn trees and taking every stride-th tree after.
+	 * The trees read are not added to the ParsedTreeCache.*/
+	public static ConsensusTreeStream fromFile(TreeFileReader reader, TreeFileReaderPool pool, Taxa taxa, int burnIn, int stride){
+		return new FileStream(reader, pool, taxa, burnIn, stride);
+	}
+	/*.................................................................................................................*/
+	/**Returns a stream over the trees of the source (e.g., SampleOneTreeFromFile), for the given taxa, skipping the first burnIn trees and taking every
+	 * stride-th tree after.  Trees are taken from the source in order, on one thread.*/
+	public static ConsensusTreeStream fromSource(TreeSource source, Taxa taxa, int burnIn, int stride){
+		return new SourceStream(source, taxa, burnIn, stride);
+	}
+	/*.................................................................................................................*/
+	public Taxa getTaxa(){
+		return taxa;
+	}
+	/*.................................................................................................................*/
+	/**Returns the number of trees in the stream (after burn-in and stride).*/
+	public abstract int getNumTrees();
+	/*.................................................................................................................*/
+	/**Returns tree i of the stream, or null if it could not be obtained.*/
+	public abstract Tree getTree(int i);
+	/*.................................................................................................................*/
+	/**Returns the number, in the list, file or source, of tree i of the stream.*/
+	int getSourceIndex(int i){
+		return burnIn + i*stride;
+	}
+	/*.................................................................................................................*/
+	/**Returns the number of trees in the stream, given the number in the list, file or source.*/
+	int getNumTrees(int numInSource){
+		if (!MesquiteInteger.isCombinable(numInSource) || numInSource <= burnIn)
+			return 0;
+		return (numInSource - burnIn + stride - 1)/stride;
+	}
+	/*.................................................................................................................*/
+	/**Returns a stream over the same trees that may be used on another thread at the same time as this one, or null if the trees must be taken in order on one thread.*/
+	public abstract ConsensusTreeStream forThread();
+
+	/* ======================================================================== */
+	static class ListStream extends ConsensusTreeStream {
+		Trees list;
+		ListStream(Trees list){
+			super(list.getTaxa(), 0, 1);
+			this.list = list;
+		}
+		public int getNumTrees(){
+			return list.size();
+		}
+		public Tree getTree(int i){
+			return list.getTree(i);
+		}
+		public ConsensusTreeStream forThread(){
+			/*only a plain TreeVector is known to hand out trees it already holds; others (e.g., a FileBackedTreeVector) read or make them as asked*/
+			if (list.getClass() == TreeVector.class)
+				return this;
+			return null;
+		}
+	}
+	/* ======================================================================== */
+	static class FileStream extends ConsensusTreeStream {
+		TreeFileReader reader;
+		TreeFileReaderPool pool;
+		FileStream(TreeFileReader reader, TreeFileReaderPool pool, Taxa taxa, int burnIn, int stride){
+			super(taxa, burnIn, stride);
+			this.reader = reader;
+			this.pool = pool;
+		}
+		public int getNumTrees(){
+			return getNumTrees(reader.getNumTrees());
+		}
+		public Tree getTree(int i){
+			return reader.readTree(taxa, getSourceIndex(i), pool, false);
+		}
+		public ConsensusTreeStream forThread(){
+			/*a reader of its own, so that its trees are decoded by a decoder of its own, rather than waiting on this reader's*/
+			return new FileStream(new TreeFileReader(reader.getPath(), reader.getNumTrees(), reader.getSignature()), pool, taxa, burnIn, stride);
+		}
+	}
+	/* ======================================================================== */
+	static class SourceStream extends ConsensusTreeStream {
+		TreeSource source;
+		SourceStream(TreeSource source, Taxa taxa, int burnIn, int stride){
+			super(taxa, burnIn, stride);
+			this.source = source;
+		}
+		public int getNumTrees(){
+			return getNumTrees(source.getNumberOfTrees(taxa));
+		}
+		public Tree getTree(int i){
+			return source.getTree(taxa, getSourceIndex(i));
+		}
+		public ConsensusTreeStream forThread(){
+			return null;
+		}
+	}
+}
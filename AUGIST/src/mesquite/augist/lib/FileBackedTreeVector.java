@@ -0,0 +1,46 @@
+package mesquite.augist.lib;
+
+import mesquite.lib.*;
+
+/**A block of trees held in a tree file rather than in memory, as written by a TreeBlockFileWriter.  The vector itself holds no trees: getTree and elementAt
+ * read the tree asked for from the file, through a TreeFileReader (recently read trees are kept by the ParsedTreeCache), and getNumberOfTrees and size
+ * are the number of trees in the file, so that code using the vector as a list of trees, or as a Vector, sees the trees of the file.*/
+public class FileBackedTreeVector extends TreeVector {
+	TreeFileReader reader;
+	TreeFileReaderPool pool;
+
+	/*.................................................................................................................*/
+	public FileBackedTreeVector(Taxa taxa, TreeFileReader reader, TreeFileReaderPool pool){
+		super(taxa);
+		this.reader = reader;
+		this.pool = pool;
+	}
+	/*.................................................................................................................*/
+	/**Returns the path of the file holding the trees.*/
+	public String getPath(){
+		return reader.getPath();
+	}
+	/*.................................................................................................................*/
+	public int getNumberOfTrees(){
+		return reader.getNumTrees();
+	}
+	/*.................................................................................................................*/
+	/**Returns tree i, read from the file, or null if it could not be read.*/
+	public Tree getTree(int i){
+		return reader.readTree(getTaxa(), i, pool);
+	}
+	/*.................................................................................................................*/
+	public int size(){
+		return getNumberOfTrees();
+	}
+	/*.................................................................................................................*/
+	/**Returns tree i, read from the file, or null if it could not be read.*/
+	public Listable elementAt(int i){
+		return (Listable)getTree(i);
+	}
+	/*.................................................................................................................*/
+	public void dispose(){
+		pool.release(reader);
+		super.dispose();
+	}
+}
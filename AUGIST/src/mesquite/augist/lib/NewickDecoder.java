@@ -0,0 +1,522 @@
+package mesquite.augist.lib;
+
+import java.nio.ByteBuffer;
+import java.util.Vector;
+
+import mesquite.lib.*;
+
+/**Reads a TREE statement directly from the bytes of a tree file and builds the MesquiteTree it describes, without first making
+ * Strings of the command and description.  Terminal labels are turned into taxon numbers through a table built once from the
+ * TRANSLATE table (or the taxon names, if there is no translation table); branch lengths and the weight in a [&W ...] comment are
+ * read from the bytes.
+ *
+ * Only plain Newick descriptions are decoded: if a statement contains anything else (internal node labels, comments within the
+ * description, labels not found in the table), decode returns false and the caller should read the tree the usual way.*/
+public class NewickDecoder {
+	ByteLabelMap labels;
+	int numTaxa;
+	/*The decoded tree, in preorder*/
+	int numNodes = 0;
+	int[] parent = new int[64];
+	int[] taxon = new int[64];
+	double[] length = new double[64];
+	int[] numChildren = new int[64];
+	int[] treeNodes = new int[64];
+	/*Information from the statement*/
+	String name = null;
+	double weight = MesquiteDouble.unassigned;
+	boolean unrooted = false;
+	boolean rootingSpecified = false;
+	byte[] scratch = new byte[256];
+	ByteBuffer buffer;
+	int pos;
+	int end;
+
+	/*.................................................................................................................*/
+	/**Creates a decoder for trees of the given taxa.  translationTable holds Strings each with a (tokenized) taxon name followed
+	 * by its (tokenized) label, as stored by TreeFileIndex; if it is null or empty, terminals are labelled by taxon name or number.*/
+	public NewickDecoder(Taxa taxa, Vector translationTable){
+		numTaxa = taxa.getNumTaxa();
+		labels = new ByteLabelMap(numTaxa*2 + 16);
+		if (translationTable != null && translationTable.size() > 0){
+			Parser entryParser = new Parser();
+			for (int i = 0; i < translationTable.size(); i++){
+				String taxonName = entryParser.getFirstToken((String)translationTable.elementAt(i));
+				String label = entryParser.getNextToken();
+				int it = taxa.whichTaxonNumber(taxonName);
+				if (label != null && it >= 0)
+					labels.put(label.getBytes(), it);
+			}
+		}
+		else {
+			for (int it = 0; it < numTaxa; it++){
+				labels.put(taxa.getTaxonName(it).getBytes(), it);
+				labels.putIfAbsent(Integer.toString(it+1).getBytes(), it);
+			}
+		}
+	}
+	/*.................................................................................................................*/
+	/**Decodes the statement in the bytes of buffer from index start to index end.  Returns false if the statement is not a TREE, UTREE or RTREE
+	 * command holding a tree description that this decoder can read.*/
+	public boolean decode(ByteBuffer buffer, int start, int end){
+		this.buffer = buffer;
+		this.pos = start;
+		this.end = end;
+		name = null;
+		weight = MesquiteDouble.unassigned;
+		unrooted = false;
+		rootingSpecified = false;
+		numNodes = 0;
+		skipWhitespaceAndComments();
+		int wordLength = readWord(false);
+		if (wordLength < 0)
+			return false;
+		if (wordMatches(wordLength, "UTREE")) {
+			unrooted = true;
+			rootingSpecified = true;
+		}
+		else if (!wordMatches(wordLength, "TREE") && !wordMatches(wordLength, "RTREE"))
+			return false;
+		skipWhitespaceAndComments();
+		if (pos < end && buffer.get(pos) == '*'){
+			pos++;
+			skipWhitespaceAndComments();
+		}
+		wordLength = readWord(true);
+		if (wordLength < 0)
+			return false;
+		name = new String(scratch, 0, wordLength);
+		skipWhitespaceAndComments();
+		if (pos >= end || buffer.get(pos) != '=')
+			return false;
+		pos++;
+		if (!readLeadingComments())
+			return false;
+		return readDescription();
+	}
+	/*.................................................................................................................*/
+	/**Reads the comments between the = and the description; returns false if one of these is not understood.*/
+	boolean readLeadingComments(){
+		while (pos < end){
+			byte b = buffer.get(pos);
+			if (isWhitespace(b))
+				pos++;
+			else if (b == '[') {
+				if (pos + 2 < end && buffer.get(pos+1) == '&') {
+					byte c = buffer.get(pos+2);
+					if (c == 'W' || c == 'w') {
+						pos += 3;
+						if (!readWeight())
+							return false;
+						continue;
+					}
+					if ((c == 'U' || c == 'u' || c == 'R' || c == 'r') && pos + 3 < end && buffer.get(pos+3) == ']') {
+						unrooted = (c == 'U' || c == 'u');
+						rootingSpecified = true;
+						pos += 4;
+						continue;
+					}
+				}
+				return false;  //annotations and other comments are left for MesquiteTree to read
+			}
+			else
+				return true;
+		}
+		return true;
+	}
+	/*.................................................................................................................*/
+	/**Reads the weight of a [&W number] or [&W numerator/denominator] comment, positioned after the W.*/
+	boolean readWeight(){
+		skipWhitespace();
+		double num = readNumber();
+		if (!MesquiteDouble.isCombinable(num))
+			return false;
+		skipWhitespace();
+		if (pos < end && buffer.get(pos) == '/'){
+			pos++;
+			skipWhitespace();
+			double denom = readNumber();
+			if (!MesquiteDouble.isCombinable(denom) || denom == 0)
+				return false;
+			num = num/denom;
+			skipWhitespace();
+		}
+		if (pos >= end || buffer.get(pos) != ']')
+			return false;
+		pos++;
+		weight = num;
+		return true;
+	}
+	/*.................................................................................................................*/
+	/**Reads the Newick description into the node arrays.*/
+	boolean readDescription(){
+		int current = -1;
+		boolean closed = false;  //whether the current node was closed with a parenthesis (i.e., is internal)
+		while (pos < end){
+			byte b = buffer.get(pos);
+			if (isWhitespace(b)) {
+				pos++;
+			}
+			else if (b == '(') {
+				if (current >= 0 && (closed || taxon[current] >= 0))
+					return false;
+				if (current < 0)
+					current = newNode(-1);
+				current = newNode(current);
+				closed = false;
+				pos++;
+			}
+			else if (b == ',') {
+				if (current <= 0 || (!closed && taxon[current] < 0))
+					return false;
+				current = newNode(parent[current]);
+				closed = false;
+				pos++;
+			}
+			else if (b == ')') {
+				if (current <= 0 || (!closed && taxon[current] < 0))
+					return false;
+				current = parent[current];
+				closed = true;
+				pos++;
+			}
+			else if (b == ':') {
+				if (current < 0)
+					return false;
+				pos++;
+				skipWhitespace();
+				double len = readNumber();
+				if (!MesquiteDouble.isCombinable(len))
+					return false;
+				length[current] = len;
+			}
+			else if (b == ';') {
+				pos++;
+				return current == 0 && closed && numChildren[0] >= 2;
+			}
+			else if (b == '[') {
+				return false;  //node annotations are left for MesquiteTree to read
+			}
+			else {
+				if (current < 0 || closed || taxon[current] >= 0)  //internal node labels are left for MesquiteTree to read
+					return false;
+				int wordLength = readWord(true);
+				if (wordLength <= 0)
+					return false;
+				int it = labels.get(scratch, wordLength);
+				if (it < 0 || it >= numTaxa)
+					return false;
+				taxon[current] = it;
+			}
+		}
+		return false;
+	}
+	/*.................................................................................................................*/
+	int newNode(int parentNode){
+		if (numNodes == parent.length){
+			int newLength = parent.length*2;
+			parent = grow(parent, newLength);
+			taxon = grow(taxon, newLength);
+			numChildren = grow(numChildren, newLength);
+			double[] temp = new double[newLength];
+			System.arraycopy(length, 0, temp, 0, numNodes);
+			length = temp;
+		}
+		parent[numNodes] = parentNode;
+		taxon[numNodes] = -1;
+		numChildren[numNodes] = 0;
+		length[numNodes] = MesquiteDouble.unassigned;
+		if (parentNode >= 0)
+			numChildren[parentNode]++;
+		return numNodes++;
+	}
+	/*.................................................................................................................*/
+	static int[] grow(int[] array, int newLength){
+		int[] temp = new int[newLength];
+		System.arraycopy(array, 0, temp, 0, array.length);
+		return temp;
+	}
+	/*.................................................................................................................*/
+	/**Builds the decoded tree in tree, replacing whatever tree was there.*/
+	public void fillTree(MesquiteTree tree){
+		if (treeNodes.length < numNodes)
+			treeNodes = new int[parent.length];
+		tree.setToDefaultBush(2, false);
+		int root = tree.getRoot();
+		int firstDefault = tree.firstDaughterOfNode(root);
+		int secondDefault = tree.nextSisterOfNode(firstDefault);
+		treeNodes[0] = root;
+		for (int node = 1; node < numNodes; node++)  //nodes are in preorder, so each parent is sprouted before its daughters
+			treeNodes[node] = tree.sproutDaughter(treeNodes[parent[node]], false);
+		tree.snipClade(firstDefault, false);
+		tree.snipClade(secondDefault, false);
+		for (int node = 0; node < numNodes; node++){
+			if (taxon[node] >= 0)
+				tree.setTaxonNumber(treeNodes[node], taxon[node], false);
+			if (MesquiteDouble.isCombinable(length[node]))
+				tree.setBranchLength(treeNodes[node], length[node], false);
+		}
+		if (rootingSpecified)
+			tree.setRooted(!unrooted, false);
+		tree.setName(name);
+	}
+	/*.................................................................................................................*/
+	/**Returns the name of the tree decoded.*/
+	public String getName(){
+		return name;
+	}
+	/*.................................................................................................................*/
+	/**Returns the weight of the tree decoded, or MesquiteDouble.unassigned if it had none.*/
+	public double getWeight(){
+		return weight;
+	}
+	/*.................................................................................................................*/
+	/**Returns whether the tree decoded was declared unrooted (by a UTREE command or [&U] comment).*/
+	public boolean isUnrooted(){
+		return unrooted;
+	}
+	/*.................................................................................................................*/
+	/**Returns the number of nodes in the tree decoded.*/
+	public int getNumNodes(){
+		return numNodes;
+	}
+	/*.................................................................................................................*/
+	void skipWhitespace(){
+		while (pos < end && isWhitespace(buffer.get(pos)))
+			pos++;
+	}
+	/*.................................................................................................................*/
+	void skipWhitespaceAndComments(){
+		while (pos < end){
+			byte b = buffer.get(pos);
+			if (isWhitespace(b))
+				pos++;
+			else if (b == '['){
+				int depth = 0;
+				do {
+					b = buffer.get(pos++);
+					if (b == '[')
+						depth++;
+					else if (b == ']')
+						depth--;
+				} while (depth > 0 && pos < end);
+			}
+			else
+				return;
+		}
+	}
+	/*.................................................................................................................*/
+	/**Reads a word (a quoted token, or a run of characters other than white space and punctuation) into scratch, as the
+	 * Mesquite parser would return it: quotes are removed, '' in a quoted token becomes ', and _ in an unquoted token becomes a blank.
+	 * Returns the length of the word, or -1 if there is none.*/
+	int readWord(boolean underscoresToBlanks){
+		int length = 0;
+		if (pos < end && buffer.get(pos) == '\''){
+			pos++;
+			while (pos < end){
+				byte b = buffer.get(pos++);
+				if (b == '\''){
+					if (pos < end && buffer.get(pos) == '\'')
+						pos++;
+					else
+						return length;
+				}
+				length = addToScratch(length, b);
+			}
+			return -1;
+		}
+		while (pos < end){
+			byte b = buffer.get(pos);
+			if (isWhitespace(b) || isPunctuation(b))
+				break;
+			if (underscoresToBlanks && b == '_')
+				b = ' ';
+			length = addToScratch(length, b);
+			pos++;
+		}
+		if (length == 0)
+			return -1;
+		return length;
+	}
+	/*.................................................................................................................*/
+	int addToScratch(int length, byte b){
+		if (length == scratch.length){
+			byte[] temp = new byte[scratch.length*2];
+			System.arraycopy(scratch, 0, temp, 0, length);
+			scratch = temp;
+		}
+		scratch[length] = b;
+		return length + 1;
+	}
+	/*.................................................................................................................*/
+	boolean wordMatches(int wordLength, String word){
+		if (word.length() != wordLength)
+			return false;
+		for (int i = 0; i < wordLength; i++){
+			int c = scratch[i];
+			if (c >= 'a' && c <= 'z')
+				c = c - 'a' + 'A';
+			if (c != word.charAt(i))
+				return false;
+		}
+		return true;
+	}
+	/*.................................................................................................................*/
+	/**Reads a decimal number.  Numbers with at most 15 significant digits and small exponents are converted exactly without
+	 * building a String; others are passed to Double.parseDouble.  Returns MesquiteDouble.unassigned if there is no number.*/
+	double readNumber(){
+		int start = pos;
+		boolean negative = false;
+		if (pos < end && (buffer.get(pos) == '-' || buffer.get(pos) == '+')){
+			negative = buffer.get(pos) == '-';
+			pos++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int decimalExponent = 0;
+		boolean anyDigits = false;
+		boolean afterPoint = false;
+		boolean slowPath = false;
+		while (pos < end){
+			byte b = buffer.get(pos);
+			if (b >= '0' && b <= '9'){
+				anyDigits = true;
+				if (digits > 0 || b != '0'){
+					if (digits < 15){
+						mantissa = mantissa*10 + (b - '0');
+						digits++;
+						if (afterPoint)
+							decimalExponent--;
+					}
+					else {
+						slowPath = true;
+						if (!afterPoint)
+							decimalExponent++;
+					}
+				}
+				else if (afterPoint)
+					decimalExponent--;
+				pos++;
+			}
+			else if (b == '.' && !afterPoint){
+				afterPoint = true;
+				pos++;
+			}
+			else
+				break;
+		}
+		if (!anyDigits)
+			return MesquiteDouble.unassigned;
+		if (pos < end && (buffer.get(pos) == 'e' || buffer.get(pos) == 'E')){
+			pos++;
+			boolean negativeExponent = false;
+			if (pos < end && (buffer.get(pos) == '-' || buffer.get(pos) == '+')){
+				negativeExponent = buffer.get(pos) == '-';
+				pos++;
+			}
+			int exponent = 0;
+			boolean exponentDigits = false;
+			while (pos < end && buffer.get(pos) >= '0' && buffer.get(pos) <= '9'){
+				if (exponent < 10000)
+					exponent = exponent*10 + (buffer.get(pos) - '0');
+				exponentDigits = true;
+				pos++;
+			}
+			if (!exponentDigits)
+				return MesquiteDouble.unassigned;
+			decimalExponent += negativeExponent ? -exponent : exponent;
+		}
+		if (slowPath || decimalExponent < -22 || decimalExponent > 22){
+			byte[] numberBytes = new byte[pos - start];
+			for (int i = start; i < pos; i++)
+				numberBytes[i - start] = buffer.get(i);
+			try {
+				return Double.parseDouble(new String(numberBytes));
+			}
+			catch (NumberFormatException e){
+				return MesquiteDouble.unassigned;
+			}
+		}
+		double value = mantissa;
+		if (decimalExponent < 0)
+			value = value / POWERS_OF_TEN[-decimalExponent];
+		else if (decimalExponent > 0)
+			value = value * POWERS_OF_TEN[decimalExponent];
+		return negative ? -value : value;
+	}
+	static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+	/*.................................................................................................................*/
+	static boolean isWhitespace(byte b){
+		return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f';
+	}
+	/*.................................................................................................................*/
+	static boolean isPunctuation(byte b){
+		return b == '(' || b == ')' || b == ',' || b == ':' || b == ';' || b == '=' || b == '[' || b == ']' || b == '\'';
+	}
+
+	/* ======================================================================== */
+	/**A hash table from labels (as bytes) to taxon numbers, searched without making a String of the label.*/
+	static class ByteLabelMap {
+		byte[][] keys;
+		int[] values;
+		int size = 0;
+		ByteLabelMap(int expected){
+			int capacity = 16;
+			while (capacity < expected*2)
+				capacity *= 2;
+			keys = new byte[capacity][];
+			values = new int[capacity];
+		}
+		static int hash(byte[] bytes, int length){
+			int h = 0;
+			for (int i = 0; i < length; i++)
+				h = 31*h + bytes[i];
+			return h ^ (h >>> 16);
+		}
+		static boolean sameBytes(byte[] key, byte[] bytes, int length){
+			if (key.length != length)
+				return false;
+			for (int i = 0; i < length; i++)
+				if (key[i] != bytes[i])
+					return false;
+			return true;
+		}
+		int slotOf(byte[] bytes, int length){
+			int mask = keys.length - 1;
+			int slot = hash(bytes, length) & mask;
+			while (keys[slot] != null && !sameBytes(keys[slot], bytes, length))
+				slot = (slot + 1) & mask;
+			return slot;
+		}
+		void put(byte[] key, int value){
+			if ((size + 1)*2 > keys.length)
+				rehash();
+			int slot = slotOf(key, key.length);
+			if (keys[slot] == null)
+				size++;
+			keys[slot] = key;
+			values[slot] = value;
+		}
+		void putIfAbsent(byte[] key, int value){
+			if (get(key, key.length) < 0)
+				put(key, value);
+		}
+		int get(byte[] bytes, int length){
+			int slot = slotOf(bytes, length);
+			if (keys[slot] == null)
+				return -1;
+			return values[slot];
+		}
+		void rehash(){
+			byte[][] oldKeys = keys;
+			int[] oldValues = values;
+			keys = new byte[oldKeys.length*2][];
+			values = new int[oldKeys.length*2];
+			size = 0;
+			for (int i = 0; i < oldKeys.length; i++)
+				if (oldKeys[i] != null)
+					put(oldKeys[i], oldValues[i]);
+		}
+	}
+}
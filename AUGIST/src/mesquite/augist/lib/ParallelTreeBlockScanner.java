@@ -0,0 +1,139 @@
+package mesquite.augist.lib;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**Scans a large TREES block with several threads.  The bytes to be scanned are divided into ranges, and each range except the first is
+ * scanned speculatively by its own TreeBlockScanner, which assumes that the range begins outside any quoted token or comment and
+ * takes the first semicolon it finds as the end of a statement.  The statements found in each range are then passed to the receiver in
+ * file order.  Before the statements of a range are used, the bytes up to its first semicolon are scanned again by a scanner carrying the true
+ * state from the ranges before; if that scanner also ends a statement at that semicolon, the two scanners are in the same state and the
+ * speculative results are correct.  Otherwise (e.g., the range began within a quoted tree name or a comment) the range is scanned again
+ * in order.*/
+public class ParallelTreeBlockScanner {
+	/**Ranges are not made smaller than this, so that small files are scanned in a single pass.*/
+	static final long MINRANGE = 16L*1024L*1024L;
+	static final int RANGESPERTHREAD = 4;
+
+	/*.................................................................................................................*/
+	/**Scans the file from offset from (which should be the start of a statement) up to offset to, using up to numThreads threads.  The receiver is
+	 * called in file order, from the calling thread, just as it would be by TreeBlockScanner.scanFile.  Returns the scanner holding the state at the end of the scan.*/
+	public static TreeBlockScanner scanFile(FileChannel channel, long from, long to, int numThreads, TreeBlockScanner.Receiver receiver) throws IOException {
+		long length = to - from;
+		if (numThreads <= 1 || length < 2*MINRANGE)
+			return TreeBlockScanner.scanFile(channel, from, to, receiver);
+		int numRanges = (int)Math.min(numThreads*RANGESPERTHREAD, length/MINRANGE);
+		long rangeLength = length/numRanges;
+		long[] starts = new long[numRanges+1];
+		for (int r = 0; r < numRanges; r++)
+			starts[r] = from + r*rangeLength;
+		starts[numRanges] = to;
+
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		try {
+			Future[] results = new Future[numRanges];
+			for (int r = 1; r < numRanges; r++)
+				results[r] = pool.submit(new RangeScan(channel, starts[r], starts[r+1]));
+
+			TreeBlockScanner scanner = new TreeBlockScanner(from);
+			if (!scanner.scanChannel(channel, from, starts[1], receiver))
+				return scanner;
+			for (int r = 1; r < numRanges; r++){
+				RangeScan range = (RangeScan)getResult(results[r]);
+				long sync = range.scanner.getSyncOffset();
+				if (sync < 0) {  //no statement ends in this range
+					if (!scanner.scanChannel(channel, starts[r], starts[r+1], receiver))
+						return scanner;
+					continue;
+				}
+				if (!scanner.scanChannel(channel, starts[r], sync, receiver))
+					return scanner;
+				if (scanner.getStatementStart() == sync) {  //synchronized: the speculative scan is correct from here
+					if (!range.replay(receiver)) {
+						scanner.stopped = true;
+						return scanner;
+					}
+					scanner.copyStateFrom(range.scanner);
+					if (scanner.isEndReached())
+						return scanner;
+				}
+				else if (!scanner.scanChannel(channel, sync, starts[r+1], receiver))
+					return scanner;
+			}
+			return scanner;
+		}
+		finally {
+			pool.shutdownNow();
+		}
+	}
+	/*.................................................................................................................*/
+	static Object getResult(Future future) throws IOException {
+		try {
+			return future.get();
+		}
+		catch (InterruptedException e){
+			throw new IOException("Scan of tree file interrupted");
+		}
+		catch (ExecutionException e){
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new IOException("Scan of tree file failed: " + e.getCause());
+		}
+	}
+
+	/* ======================================================================== */
+	/**The speculative scan of one range, recording the statements ended after the first semicolon.*/
+	static class RangeScan implements Callable, TreeBlockScanner.Receiver {
+		FileChannel channel;
+		long from, to;
+		TreeBlockScanner scanner;
+		int numStatements = 0;
+		byte[] kinds = new byte[1024];
+		long[] starts = new long[1024];
+		long[] ends = new long[1024];
+
+		RangeScan(FileChannel channel, long from, long to){
+			this.channel = channel;
+			this.from = from;
+			this.to = to;
+		}
+		public Object call() throws IOException {
+			scanner = new TreeBlockScanner(from);
+			scanner.scanChannel(channel, from, to, this);
+			return this;
+		}
+		public boolean statementEnded(int kind, long start, long end){
+			if (end == scanner.getSyncOffset())  //the first statement may have begun before the range, and is not known
+				return !Thread.currentThread().isInterrupted();
+			if (numStatements == kinds.length){
+				int newLength = kinds.length*2;
+				byte[] newKinds = new byte[newLength];
+				System.arraycopy(kinds, 0, newKinds, 0, numStatements);
+				kinds = newKinds;
+				long[] newStarts = new long[newLength];
+				System.arraycopy(starts, 0, newStarts, 0, numStatements);
+				starts = newStarts;
+				long[] newEnds = new long[newLength];
+				System.arraycopy(ends, 0, newEnds, 0, numStatements);
+				ends = newEnds;
+			}
+			kinds[numStatements] = (byte)kind;
+			starts[numStatements] = start;
+			ends[numStatements] = end;
+			numStatements++;
+			return !Thread.currentThread().isInterrupted();
+		}
+		/**Passes the statements recorded to receiver; returns false if the receiver asked that scanning stop.*/
+		boolean replay(TreeBlockScanner.Receiver receiver){
+			for (int i = 0; i < numStatements; i++)
+				if (!receiver.statementEnded(kinds[i], starts[i], ends[i]))
+					return false;
+			return true;
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package mesquite.augist.lib;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import mesquite.lib.*;
+
+/**A cache of trees already read and parsed from tree files, so that trees requested repeatedly (e.g., by employers that
+ * fill tree blocks again and again from the same file) need not be read and parsed again.  Trees are keyed by the path and modification
+ * date of the file and the index of the tree in the file.  The least recently used trees are discarded when either the number of trees or
+ * their estimated size exceeds the limits.  The cache holds its own copies of trees, and hands out clones, so those who receive trees are free to
+ * modify them.*/
+public class ParsedTreeCache {
+	static ParsedTreeCache sharedCache = null;
+
+	int maxEntries = 2000;
+	long maxBytes = 64L*1024L*1024L;
+	long bytes = 0;
+	long hits = 0;
+	long misses = 0;
+	LinkedHashMap entries = new LinkedHashMap(256, 0.75f, true);
+
+	/*.................................................................................................................*/
+	/**Returns the cache shared by all modules reading trees from files.*/
+	public static synchronized ParsedTreeCache getSharedCache(){
+		if (sharedCache == null)
+			sharedCache = new ParsedTreeCache();
+		return sharedCache;
+	}
+	/*.................................................................................................................*/
+	/**Sets the maximum number of trees, and the maximum estimated number of bytes, held by the cache.*/
+	public synchronized void setLimits(int maxEntries, long maxBytes){
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		trim();
+	}
+	public synchronized int getMaxEntries(){
+		return maxEntries;
+	}
+	public synchronized long getMaxBytes(){
+		return maxBytes;
+	}
+	/*.................................................................................................................*/
+	/**Returns a clone of the cached tree with index treeIndex from the file at path with the given modification date, or null if that tree is
+	 * not in the cache or belongs to other taxa.*/
+	public synchronized MesquiteTree get(String path, long modified, int treeIndex, Taxa taxa){
+		Key key = new Key(path, modified, treeIndex);
+		Entry entry = (Entry)entries.get(key);
+		if (entry == null || entry.tree.getTaxa() != taxa) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.tree.cloneTree();
+	}
+	/*.................................................................................................................*/
+	/**Stores a copy of tree as the tree with index treeIndex from the file at path with the given modification date.*/
+	public synchronized void put(String path, long modified, int treeIndex, MesquiteTree tree){
+		if (tree == null || maxEntries <= 0)
+			return;
+		Key key = new Key(path, modified, treeIndex);
+		Entry entry = new Entry(tree.cloneTree());
+		Entry old = (Entry)entries.put(key, entry);
+		if (old != null)
+			bytes -= old.bytes;
+		bytes += entry.bytes;
+		trim();
+	}
+	/*.................................................................................................................*/
+	/**Removes all trees from the file at path.*/
+	public synchronized void removeFile(String path){
+		for (Iterator it = entries.entrySet().iterator(); it.hasNext();){
+			Map.Entry mapEntry = (Map.Entry)it.next();
+			if (((Key)mapEntry.getKey()).path.equals(path)) {
+				bytes -= ((Entry)mapEntry.getValue()).bytes;
+				it.remove();
+			}
+		}
+	}
+	/*.................................................................................................................*/
+	/**Removes all trees.*/
+	public synchronized void clear(){
+		entries.clear();
+		bytes = 0;
+	}
+	/*.................................................................................................................*/
+	/**Discards least recently used trees until the cache is within its limits.*/
+	void trim(){
+		Iterator it = entries.values().iterator();
+		while ((entries.size() > maxEntries || bytes > maxBytes) && it.hasNext()){
+			Entry entry = (Entry)it.next();
+			bytes -= entry.bytes;
+			it.remove();
+		}
+	}
+	/*.................................................................................................................*/
+	public synchronized long getHits(){
+		return hits;
+	}
+	public synchronized long getMisses(){
+		return misses;
+	}
+	public synchronized int getNumEntries(){
+		return entries.size();
+	}
+	public synchronized long getEstimatedBytes(){
+		return bytes;
+	}
+	/*.................................................................................................................*/
+	public synchronized String getReport(){
+		return "Parsed tree cache: " + entries.size() + " trees (about " + (bytes/1024) + " KB), " + hits + " hits, " + misses + " misses";
+	}
+
+	/* ======================================================================== */
+	static class Key {
+		String path;
+		long modified;
+		int treeIndex;
+		Key(String path, long modified, int treeIndex){
+			this.path = path;
+			this.modified = modified;
+			this.treeIndex = treeIndex;
+		}
+		public boolean equals(Object obj){
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key)obj;
+			return treeIndex == other.treeIndex && modified == other.modified && path.equals(other.path);
+		}
+		public int hashCode(){
+			return path.hashCode()*31 + treeIndex*17 + (int)(modified ^ (modified >>> 32));
+		}
+	}
+	/* ======================================================================== */
+	static class Entry {
+		MesquiteTree tree;
+		long bytes;
+		Entry(MesquiteTree tree){
+			this.tree = tree;
+			bytes = 256 + 64L*tree.getNumNodeSpaces();  //rough size of the node arrays of a MesquiteTree
+		}
+	}
+}
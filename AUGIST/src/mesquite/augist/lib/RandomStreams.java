@@ -0,0 +1,57 @@
+package mesquite.augist.lib;
+
+import java.util.Random;
+
+/**A random number generator (SplitMix64) from which independent numbered streams can be derived.  Stream i of a generator depends only on
+ * the seed the generator was made with and on i, not on how many numbers have been drawn, so work divided into numbered pieces (e.g., blocks of
+ * trees, and the sources within each block) can be given a stream per piece and done in any order, or in parallel, with the same results as
+ * when done in sequence.  Being a java.util.Random, a stream can be passed wherever a Random is expected.*/
+public class RandomStreams extends Random {
+	static final long GOLDEN = 0x9E3779B97F4A7C15L;
+
+	long baseSeed;
+	long state;
+
+	/*.................................................................................................................*/
+	public RandomStreams(long seed){
+		super(0);
+		baseSeed = seed;
+		state = seed;
+	}
+	/*.................................................................................................................*/
+	/**Scrambles the bits of z (the output function of SplitMix64).*/
+	public static long mix64(long z){
+		z = (z ^ (z >>> 30))*0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27))*0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+	/*.................................................................................................................*/
+	/**Returns the seed of stream number index of a generator made with seed.*/
+	public static long deriveSeed(long seed, long index){
+		return mix64(seed + (index + 1)*GOLDEN);
+	}
+	/*.................................................................................................................*/
+	/**Returns stream number index of this generator.*/
+	public RandomStreams stream(long index){
+		return new RandomStreams(deriveSeed(baseSeed, index));
+	}
+	/*.................................................................................................................*/
+	/**Returns the seed with which this generator was made.*/
+	public long getSeed(){
+		return baseSeed;
+	}
+	/*.................................................................................................................*/
+	public synchronized void setSeed(long seed){
+		baseSeed = seed;
+		state = seed;
+	}
+	/*.................................................................................................................*/
+	public synchronized long nextLong(){
+		state += GOLDEN;
+		return mix64(state);
+	}
+	/*.................................................................................................................*/
+	protected int next(int bits){
+		return (int)(nextLong() >>> (64 - bits));
+	}
+}
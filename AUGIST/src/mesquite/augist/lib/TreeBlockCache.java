@@ -0,0 +1,114 @@
+package mesquite.augist.lib;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import mesquite.lib.*;
+
+/**Blocks of trees already made by a TreeBlockSource, keyed by the index of the block, the taxa, and a string describing the parameters with which
+ * the block was made, so that a block requested again need not be made again.  The least recently used blocks are discarded when their estimated
+ * size exceeds the limit, though the most recent block is always kept.  Blocks are handed out as they are stored, as TreeBlockSources do with their
+ * current block.*/
+public class TreeBlockCache {
+	long maxBytes;
+	long bytes = 0;
+	LinkedHashMap entries = new LinkedHashMap(16, 0.75f, true);
+
+	/*.................................................................................................................*/
+	public TreeBlockCache(long maxBytes){
+		this.maxBytes = maxBytes;
+	}
+	/*.................................................................................................................*/
+	/**Sets the maximum estimated number of bytes held by the cache; if zero, no blocks are kept.*/
+	public synchronized void setMaxBytes(long maxBytes){
+		this.maxBytes = maxBytes;
+		trim();
+	}
+	public synchronized long getMaxBytes(){
+		return maxBytes;
+	}
+	/*.................................................................................................................*/
+	/**Returns the block with the given index, made for taxa with the given parameters, or null if it is not in the cache.*/
+	public synchronized TreeVector get(int blockIndex, Taxa taxa, String parameters){
+		Entry entry = (Entry)entries.get(new Key(blockIndex, taxa, parameters));
+		if (entry == null)
+			return null;
+		return entry.block;
+	}
+	/*.................................................................................................................*/
+	/**Stores the block with the given index, made for taxa with the given parameters.*/
+	public synchronized void put(int blockIndex, Taxa taxa, String parameters, TreeVector block){
+		if (block == null || maxBytes <= 0)
+			return;
+		Entry entry = new Entry(block);
+		Entry old = (Entry)entries.put(new Key(blockIndex, taxa, parameters), entry);
+		if (old != null)
+			bytes -= old.bytes;
+		bytes += entry.bytes;
+		trim();
+	}
+	/*.................................................................................................................*/
+	/**Removes all blocks.*/
+	public synchronized void clear(){
+		entries.clear();
+		bytes = 0;
+	}
+	/*.................................................................................................................*/
+	public synchronized int getNumBlocks(){
+		return entries.size();
+	}
+	public synchronized long getEstimatedBytes(){
+		return bytes;
+	}
+	/*.................................................................................................................*/
+	/**Discards least recently used blocks, other than the most recent, until the cache is within its limit.*/
+	void trim(){
+		if (maxBytes <= 0) {
+			clear();
+			return;
+		}
+		Iterator it = entries.values().iterator();
+		while (bytes > maxBytes && entries.size() > 1 && it.hasNext()){
+			Entry entry = (Entry)it.next();
+			bytes -= entry.bytes;
+			it.remove();
+		}
+	}
+
+	/* ======================================================================== */
+	static class Key {
+		int blockIndex;
+		Taxa taxa;
+		String parameters;
+		Key(int blockIndex, Taxa taxa, String parameters){
+			this.blockIndex = blockIndex;
+			this.taxa = taxa;
+			this.parameters = parameters;
+		}
+		public boolean equals(Object obj){
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key)obj;
+			return blockIndex == other.blockIndex && taxa == other.taxa && (parameters == null ? other.parameters == null : parameters.equals(other.parameters));
+		}
+		public int hashCode(){
+			return blockIndex*31 + System.identityHashCode(taxa)*17 + (parameters == null ? 0 : parameters.hashCode());
+		}
+	}
+	/* ======================================================================== */
+	static class Entry {
+		TreeVector block;
+		long bytes;
+		Entry(TreeVector block){
+			this.block = block;
+			bytes = 256;
+			if (block instanceof FileBackedTreeVector)  //its trees are in its file
+				return;
+			for (int i = 0; i < block.getNumberOfTrees(); i++){
+				Tree tree = block.getTree(i);
+				if (tree != null)
+					bytes += 256 + 64L*tree.getNumNodeSpaces();  //rough size of the node arrays of a MesquiteTree, as in ParsedTreeCache
+			}
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package mesquite.augist.lib;
+
+import java.io.*;
+
+import mesquite.lib.*;
+
+/**A directory in which the sub-blocks of a long run of tree searches (e.g., by TreeBlockCombiner) are kept as each is finished, so that after the
+ * run is cancelled, or the program stops, the run can be resumed without repeating the searches already finished.  Each sub-block is written as a NEXUS
+ * trees file with an index (see TreeBlockFileWriter); as the index is written last, a sub-block counts as finished only if its index is present and
+ * matches its file.  The directory also holds a record of the seed and the settings of the run most recently started, from which the run can be resumed.
+ * The files of a sub-block are named after the run (its seed and settings), the block and the search, so runs with other seeds or settings do not
+ * use or replace each other's sub-blocks.*/
+public class TreeBlockCheckpoint {
+	public static final String FILENAME = ".augist-checkpoint";
+	static final int MAGIC = 0x41474350; //"AGCP"
+	static final int VERSION = 1;
+
+	File directory;
+	long masterSeed;
+	String settings;
+	TreeFileReaderPool pool = new TreeFileReaderPool();
+
+	/*.................................................................................................................*/
+	/**Creates a checkpoint in directory for the run with the given seed and settings.*/
+	public TreeBlockCheckpoint(File directory, long masterSeed, String settings){
+		this.directory = directory;
+		this.masterSeed = masterSeed;
+		this.settings = settings;
+		pool.setMaxOpenFiles(4);
+	}
+	/*.................................................................................................................*/
+	public long getMasterSeed(){
+		return masterSeed;
+	}
+	/*.................................................................................................................*/
+	public String getSettings(){
+		return settings;
+	}
+	/*.................................................................................................................*/
+	/**Returns the path of the record of the run most recently started in the directory.*/
+	public static String getRecordPath(File directory){
+		return new File(directory, FILENAME).getPath();
+	}
+	/*.................................................................................................................*/
+	/**Reads the record of the run most recently started in the directory; returns null if there is none or if it could not be read.*/
+	public static TreeBlockCheckpoint read(File directory){
+		File recordFile = new File(getRecordPath(directory));
+		if (!recordFile.exists())
+			return null;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(recordFile)));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				return null;
+			long seed = in.readLong();
+			String settings = in.readUTF();
+			return new TreeBlockCheckpoint(directory, seed, settings);
+		}
+		catch (IOException e){
+			return null;
+		}
+		finally {
+			if (in != null){
+				try {
+					in.close();
+				}
+				catch (IOException e){
+				}
+			}
+		}
+	}
+	/*.................................................................................................................*/
+	/**Records this run as the one most recently started in the directory (creating the directory if needed); returns false if it could not be recorded.*/
+	public boolean write(){
+		if (!directory.exists() && !directory.mkdirs())
+			return false;
+		File recordFile = new File(getRecordPath(directory));
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(recordFile)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(masterSeed);
+			out.writeUTF(settings);
+		}
+		catch (IOException e){
+			if (out != null){
+				try {
+					out.close();
+				}
+				catch (IOException e2){
+				}
+				out = null;
+			}
+			recordFile.delete();
+			return false;
+		}
+		finally {
+			if (out != null){
+				try {
+					out.close();
+				}
+				catch (IOException e){
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+	/*.................................................................................................................*/
+	/**Returns the path of the file for search number search (from 0) of block number blockIndex (from 0) of this run.*/
+	public String getSubBlockPath(int blockIndex, int search){
+		String run = Long.toHexString(RandomStreams.mix64(masterSeed ^ RandomStreams.mix64(settings.hashCode())));
+		return new File(directory, "run" + run + "-block" + (blockIndex+1) + "-search" + (search+1) + ".nex").getPath();
+	}
+	/*.................................................................................................................*/
+	/**Returns true if the sub-block has been finished and kept.*/
+	public boolean isFinished(int blockIndex, int search){
+		String path = getSubBlockPath(blockIndex, search);
+		TreeFileIndex index = TreeFileIndex.read(TreeFileIndex.getIndexPath(path));
+		return index != null && index.matchesSizeAndDate(new File(path));
+	}
+	/*.................................................................................................................*/
+	/**Returns the trees of the finished sub-block, for the given taxa, or null if it has not been finished or could not be read.  The trees are
+	 * as they were when written, without the names and weights later given to them.*/
+	public TreeVector readSubBlock(Taxa taxa, int blockIndex, int search){
+		String path = getSubBlockPath(blockIndex, search);
+		TreeFileIndex index = TreeFileIndex.read(TreeFileIndex.getIndexPath(path));
+		if (index == null || !index.matchesSizeAndDate(new File(path)))
+			return null;
+		TreeFileReader reader = new TreeFileReader(path, index.getNumTrees(), null);
+		TreeVector subBlock = new TreeVector(taxa);
+		try {
+			for (int i = 0; i < reader.getNumTrees(); i++){
+				MesquiteTree tree = reader.readTree(taxa, i, pool);
+				if (tree == null)
+					return null;
+				subBlock.addElement(tree.cloneTree(), false);  //the tree read may be shared through the ParsedTreeCache, and will be renamed
+			}
+		}
+		finally {
+			pool.release(reader);
+		}
+		return subBlock;
+	}
+	/*.................................................................................................................*/
+	/**Keeps the trees of the sub-block just finished; returns false if they could not be written.*/
+	public boolean writeSubBlock(TreeVector subBlock, Taxa taxa, int blockIndex, int search){
+		TreeBlockFileWriter writer = new TreeBlockFileWriter(getSubBlockPath(blockIndex, search), taxa, null);
+		for (int i = 0; i < subBlock.getNumberOfTrees(); i++){
+			Tree tree = subBlock.getTree(i);
+			if (!writer.writeTree(tree, tree.getName(), null)){
+				writer.abandon();
+				return false;
+			}
+		}
+		return writer.finish() != null;
+	}
+	/*.................................................................................................................*/
+	/**Closes any files held open for reading sub-blocks.*/
+	public void close(){
+		pool.closeAll();
+	}
+}
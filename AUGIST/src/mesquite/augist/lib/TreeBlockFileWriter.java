@@ -0,0 +1,149 @@
+package mesquite.augist.lib;
+
+import java.io.*;
+import java.util.Vector;
+
+import mesquite.lib.*;
+
+/**Writes trees to a NEXUS trees file as they are made, so that a large block of trees need not be held in memory.  The TRANSLATE table (with
+ * taxon numbers as labels) is written once, at the start of the TREES block; each tree is then written with its name and, if given, its weight
+ * in a [&W ...] comment.  The position of each tree is recorded as it is written, and when the file is finished an index (see TreeFileIndex) is
+ * written beside it, so that the trees can be read back one at a time by a TreeFileReader.*/
+public class TreeBlockFileWriter {
+	String path;
+	OutputStream out = null;
+	long offset = 0;
+	int numTrees = 0;
+	TreeOffsetIndex positions = new TreeOffsetIndex();
+	TreeFileIndex index = new TreeFileIndex();
+	IOException error = null;
+
+	/*.................................................................................................................*/
+	/**Creates a writer for a file at path (replacing any file there) holding trees of the given taxa, in a TREES block with the given title.*/
+	public TreeBlockFileWriter(String path, Taxa taxa, String blockTitle){
+		this.path = path;
+		Vector table = new Vector();
+		StringBuffer header = new StringBuffer();
+		header.append("#NEXUS\n\nBEGIN TREES;\n");
+		if (blockTitle != null)
+			header.append("\tTITLE " + StringUtil.tokenize(blockTitle) + ";\n");
+		header.append("\tLINK TAXA = " + StringUtil.tokenize(taxa.getName()) + ";\n");
+		header.append("\tTRANSLATE\n");
+		for (int it = 0; it < taxa.getNumTaxa(); it++){
+			String label = Integer.toString(it+1);
+			String name = StringUtil.tokenize(taxa.getTaxonName(it));
+			header.append("\t\t" + label + " " + name);
+			if (it < taxa.getNumTaxa()-1)
+				header.append(",\n");
+			table.addElement(name + " " + label);
+		}
+		header.append(";");
+		index.setBlockTitle(blockTitle);
+		index.setLinkedTaxaTitle(taxa.getName());
+		index.setStandardizedNames(false);
+		index.setTranslationTable(table);
+		try {
+			out = new BufferedOutputStream(new FileOutputStream(path), 65536);
+			write(header.toString());
+			positions.add(offset-1);  //positions are recorded less one, as in a survey
+		}
+		catch (IOException e){
+			fail(e);
+		}
+	}
+	/*.................................................................................................................*/
+	public String getPath(){
+		return path;
+	}
+	/*.................................................................................................................*/
+	public int getNumTrees(){
+		return numTrees;
+	}
+	/*.................................................................................................................*/
+	/**Returns the error that stopped writing, or null if there has been none.*/
+	public IOException getError(){
+		return error;
+	}
+	/*.................................................................................................................*/
+	void write(String s) throws IOException {
+		byte[] bytes = s.getBytes();
+		out.write(bytes);
+		offset += bytes.length;
+	}
+	/*.................................................................................................................*/
+	void fail(IOException e){
+		error = e;
+		if (out != null){
+			try {
+				out.close();
+			}
+			catch (IOException e2){
+			}
+			out = null;
+		}
+	}
+	/*.................................................................................................................*/
+	/**Writes the tree under the given name, with the weight (e.g., "1/30"), if it is not null.  Returns false if the tree could not be written.*/
+	public boolean writeTree(Tree tree, String name, String weight){
+		if (out == null)
+			return false;
+		String description = tree.writeTree(Tree.BY_NUMBERS);
+		if (description == null)
+			return false;
+		description = description.trim();
+		if (description.endsWith(";"))
+			description = description.substring(0, description.length()-1);
+		StringBuffer statement = new StringBuffer();
+		if (tree.getRooted())
+			statement.append("\n\tTREE ");
+		else
+			statement.append("\n\tUTREE ");
+		statement.append(StringUtil.tokenize(name) + " = ");
+		if (weight != null)
+			statement.append("[&W " + weight + "] ");
+		statement.append(description + ";");
+		try {
+			write(statement.toString());
+		}
+		catch (IOException e){
+			fail(e);
+			return false;
+		}
+		positions.add(offset-1);
+		numTrees++;
+		return true;
+	}
+	/*.................................................................................................................*/
+	/**Ends the TREES block, closes the file and writes its index.  Returns a reader for the trees written, or null if the file or its index could not be written.*/
+	public TreeFileReader finish(){
+		if (out == null)
+			return null;
+		try {
+			write("\nEND;\n\n");
+			out.close();
+			out = null;
+		}
+		catch (IOException e){
+			fail(e);
+			return null;
+		}
+		File treeFile = new File(path);
+		index.setNumTrees(numTrees);
+		index.setPositions(positions);
+		if (!index.setSource(treeFile) || !index.write(TreeFileIndex.getIndexPath(path)))
+			return null;
+		return new TreeFileReader(path, numTrees, null);
+	}
+	/*.................................................................................................................*/
+	/**Closes the file without finishing it, e.g. because filling was cancelled.*/
+	public void abandon(){
+		if (out != null){
+			try {
+				out.close();
+			}
+			catch (IOException e){
+			}
+			out = null;
+		}
+	}
+}
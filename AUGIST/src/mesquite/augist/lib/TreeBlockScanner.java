@@ -0,0 +1,260 @@
+package mesquite.augist.lib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**Finds the boundaries of statements in a NEXUS TREES block by walking the bytes of the file directly, without
+ * building a String for each command.  Only the first word of each statement is examined, to tell TREE, UTREE and RTREE
+ * statements and the END (or ENDBLOCK) statement apart from all others.  Single-quoted tokens (with '' as an embedded quote) and
+ * [...] comments (which may be nested) are skipped, so semicolons within them do not end statements.
+ *
+ * The scanner keeps its state between calls to scan, so a file may be passed through it in consecutive pieces (e.g., windows of
+ * a memory-mapped file).*/
+public class TreeBlockScanner {
+	/*Kinds of statements reported to the Receiver*/
+	public static final int OTHER = 0;
+	public static final int TREE = 1;
+	public static final int END = 2;
+
+	/*Lexical modes*/
+	static final int NORMAL = 0;
+	static final int QUOTED = 1;
+	static final int COMMENT = 2;
+
+	/**Size of the windows in which a file is mapped by scanFile.*/
+	static final long WINDOW = 64L*1024L*1024L;
+	static final int MAXKEYWORD = 8;
+
+	/**Receives the statements found by the scanner.*/
+	public interface Receiver {
+		/**Called for each statement ended by a semicolon.  The statement occupies the bytes from start (the first byte after the previous statement) to end (just past the
+		 * semicolon).  Returns false if scanning should stop.*/
+		public boolean statementEnded(int kind, long start, long end);
+	}
+
+	int mode = NORMAL;
+	int commentDepth = 0;
+	boolean quoteMayClose = false;
+	boolean atStatementStart = true;
+	boolean inKeyword = false;
+	byte[] keyword = new byte[MAXKEYWORD];
+	int keywordLength = 0;
+	int kind = OTHER;
+	long statementStart = 0;
+	long position = 0;
+	boolean endReached = false;
+	long endOffset = -1;
+	boolean stopped = false;
+	long syncOffset = -1;
+
+	/*.................................................................................................................*/
+	/**Creates a scanner for bytes starting at the beginning of a statement at file offset start.*/
+	public TreeBlockScanner(long start){
+		statementStart = start;
+		position = start;
+	}
+	/*.................................................................................................................*/
+	/**Scans the bytes of buffer from index from (inclusive) to index to (exclusive).  baseOffset is the file offset of index 0 of the buffer.
+	 * Returns false if scanning should not continue, either because the END statement was found or the receiver asked to stop.*/
+	public boolean scan(ByteBuffer buffer, int from, int to, long baseOffset, Receiver receiver){
+		if (endReached || stopped)
+			return false;
+		for (int i = from; i < to; i++){
+			byte b = buffer.get(i);
+			switch (mode) {
+			case QUOTED:
+				if (quoteMayClose){
+					quoteMayClose = false;
+					if (b == '\'')  // '' is a quote within the quoted token
+						continue;
+					mode = NORMAL;
+					break;  //b is handled below as a NORMAL byte
+				}
+				if (b == '\'')
+					quoteMayClose = true;
+				continue;
+			case COMMENT:
+				if (b == '[')
+					commentDepth++;
+				else if (b == ']') {
+					commentDepth--;
+					if (commentDepth == 0)
+						mode = NORMAL;
+				}
+				continue;
+			}
+			if (inKeyword){
+				if (isLetter(b)){
+					if (keywordLength < MAXKEYWORD)
+						keyword[keywordLength] = b;
+					keywordLength++;
+					continue;
+				}
+				inKeyword = false;
+				kind = classifyKeyword();
+			}
+			if (b == '[') {
+				mode = COMMENT;
+				commentDepth = 1;
+			}
+			else if (b == '\'') {
+				mode = QUOTED;
+				if (atStatementStart){
+					atStatementStart = false;
+					kind = OTHER;
+				}
+			}
+			else if (b == ';') {
+				long end = baseOffset + i + 1;
+				if (syncOffset < 0)
+					syncOffset = end;
+				if (!atStatementStart){
+					if (kind == END){
+						endReached = true;
+						endOffset = end;
+					}
+					if (!receiver.statementEnded(kind, statementStart, end))
+						stopped = true;
+				}
+				atStatementStart = true;
+				kind = OTHER;
+				statementStart = end;
+				if (endReached || stopped){
+					position = end;
+					return false;
+				}
+			}
+			else if (atStatementStart && !isWhitespace(b)) {
+				atStatementStart = false;
+				if (isLetter(b)){
+					inKeyword = true;
+					keyword[0] = b;
+					keywordLength = 1;
+				}
+				else
+					kind = OTHER;
+			}
+		}
+		position = baseOffset + to;
+		return true;
+	}
+	/*.................................................................................................................*/
+	int classifyKeyword(){
+		if (keywordLength > MAXKEYWORD)
+			return OTHER;
+		if (keywordMatches("TREE") || keywordMatches("UTREE") || keywordMatches("RTREE"))
+			return TREE;
+		if (keywordMatches("END") || keywordMatches("ENDBLOCK"))
+			return END;
+		return OTHER;
+	}
+	/*.................................................................................................................*/
+	boolean keywordMatches(String word){
+		if (word.length() != keywordLength)
+			return false;
+		for (int i = 0; i < keywordLength; i++){
+			int c = keyword[i];
+			if (c >= 'a' && c <= 'z')
+				c = c - 'a' + 'A';
+			if (c != word.charAt(i))
+				return false;
+		}
+		return true;
+	}
+	/*.................................................................................................................*/
+	static boolean isLetter(byte b){
+		return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+	}
+	/*.................................................................................................................*/
+	static boolean isWhitespace(byte b){
+		return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f';
+	}
+	/*.................................................................................................................*/
+	/**Returns true if the END statement of the block has been found.*/
+	public boolean isEndReached(){
+		return endReached;
+	}
+	/*.................................................................................................................*/
+	/**Returns the offset just past the semicolon of the END statement, or -1 if it has not been found.*/
+	public long getEndOffset(){
+		return endOffset;
+	}
+	/*.................................................................................................................*/
+	/**Returns true if the receiver asked that scanning stop.*/
+	public boolean isStopped(){
+		return stopped;
+	}
+	/*.................................................................................................................*/
+	/**Returns the offset of the first byte not yet scanned.*/
+	public long getPosition(){
+		return position;
+	}
+	/*.................................................................................................................*/
+	/**Returns the offset at which the statement currently being scanned began.*/
+	public long getStatementStart(){
+		return statementStart;
+	}
+	/*.................................................................................................................*/
+	/**Returns the offset just past the first semicolon that this scanner took to end a statement, or -1 if there has been none.  For a scanner
+	 * started at an arbitrary offset (rather than the start of a statement), this is the first point at which it might be synchronized with the statements of the file.*/
+	public long getSyncOffset(){
+		return syncOffset;
+	}
+	/*.................................................................................................................*/
+	/**Sets the state of this scanner to that of other, as if this scanner had scanned the bytes other has scanned.*/
+	public void copyStateFrom(TreeBlockScanner other){
+		mode = other.mode;
+		commentDepth = other.commentDepth;
+		quoteMayClose = other.quoteMayClose;
+		atStatementStart = other.atStatementStart;
+		inKeyword = other.inKeyword;
+		System.arraycopy(other.keyword, 0, keyword, 0, MAXKEYWORD);
+		keywordLength = other.keywordLength;
+		kind = other.kind;
+		statementStart = other.statementStart;
+		position = other.position;
+		endReached = other.endReached;
+		endOffset = other.endOffset;
+	}
+	/*.................................................................................................................*/
+	/**Scans the file, from offset from up to offset to, mapping it into memory a window at a time.  Returns the scanner, whose state tells
+	 * whether the END statement was reached.*/
+	public static TreeBlockScanner scanFile(FileChannel channel, long from, long to, Receiver receiver) throws IOException {
+		TreeBlockScanner scanner = new TreeBlockScanner(from);
+		scanner.scanChannel(channel, from, to, receiver);
+		return scanner;
+	}
+	/*.................................................................................................................*/
+	/**Scans the bytes of stream, whose first byte is at offset from, to the end of the stream (e.g., for files that can only be read in sequence,
+	 * such as compressed files).  Returns the scanner, whose state tells whether the END statement was reached.*/
+	public static TreeBlockScanner scanStream(InputStream stream, long from, Receiver receiver) throws IOException {
+		TreeBlockScanner scanner = new TreeBlockScanner(from);
+		byte[] chunk = new byte[1024*1024];
+		ByteBuffer buffer = ByteBuffer.wrap(chunk);
+		long base = from;
+		int read;
+		while ((read = stream.read(chunk, 0, chunk.length)) > 0){
+			if (!scanner.scan(buffer, 0, read, base, receiver))
+				break;
+			base += read;
+		}
+		return scanner;
+	}
+	/*.................................................................................................................*/
+	/**Continues scanning the file from offset from up to offset to, mapping it into memory a window at a time.  Returns false if scanning stopped
+	 * before offset to was reached.*/
+	public boolean scanChannel(FileChannel channel, long from, long to, Receiver receiver) throws IOException {
+		long windowStart = from;
+		while (windowStart < to){
+			long length = Math.min(WINDOW, to - windowStart);
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, length);
+			if (!scan(buffer, 0, (int)length, windowStart, receiver))
+				return false;
+			windowStart += length;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,184 @@
+package mesquite.augist.lib;
+
+import java.io.*;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**A record, kept in a directory of tree files, of what was learned about each file when it was last surveyed: its size, modification
+ * date, number of trees, a signature of its taxa link and translation table, and where its index file is.  When the directory is opened
+ * again, files whose size and date are unchanged can be read using their index files without being surveyed again.*/
+public class TreeDirectoryManifest {
+	public static final String FILENAME = ".augist-manifest";
+	static final int MAGIC = 0x4147444D; //"AGDM"
+	static final int VERSION = 1;
+
+	Hashtable entries = new Hashtable();
+	boolean changed = false;
+
+	/*.................................................................................................................*/
+	/**Returns the path of the manifest for the directory.*/
+	public static String getManifestPath(File directory){
+		return new File(directory, FILENAME).getPath();
+	}
+	/*.................................................................................................................*/
+	/**Returns the entry for the file with the given name, or null if there is none.*/
+	public Entry getEntry(String fileName){
+		return (Entry)entries.get(fileName);
+	}
+	/*.................................................................................................................*/
+	/**Returns the entry for the file with the given name if the size and modification date of treeFile are still those recorded, and its index file
+	 * still exists; otherwise null.*/
+	public Entry getCurrentEntry(File treeFile){
+		Entry entry = getEntry(treeFile.getName());
+		if (entry == null || entry.indexPath == null)
+			return null;
+		if (treeFile.length() != entry.fileLength || treeFile.lastModified() != entry.lastModified)
+			return null;
+		if (!new File(entry.indexPath).exists())
+			return null;
+		return entry;
+	}
+	/*.................................................................................................................*/
+	/**Records what was learned about treeFile.*/
+	public void setEntry(File treeFile, int numTrees, String signature, String indexPath){
+		Entry entry = new Entry();
+		entry.fileName = treeFile.getName();
+		entry.fileLength = treeFile.length();
+		entry.lastModified = treeFile.lastModified();
+		entry.numTrees = numTrees;
+		entry.signature = signature;
+		entry.indexPath = indexPath;
+		entries.put(entry.fileName, entry);
+		changed = true;
+	}
+	/*.................................................................................................................*/
+	/**Removes the entry for the file with the given name.*/
+	public void removeEntry(String fileName){
+		if (entries.remove(fileName) != null)
+			changed = true;
+	}
+	/*.................................................................................................................*/
+	/**Removes the entries of files whose names are not among fileNames.*/
+	public void retainOnly(Vector fileNames){
+		Vector toRemove = new Vector();
+		for (Enumeration e = entries.keys(); e.hasMoreElements();){
+			Object name = e.nextElement();
+			if (!fileNames.contains(name))
+				toRemove.addElement(name);
+		}
+		for (int i = 0; i < toRemove.size(); i++)
+			removeEntry((String)toRemove.elementAt(i));
+	}
+	/*.................................................................................................................*/
+	public int getNumEntries(){
+		return entries.size();
+	}
+	/*.................................................................................................................*/
+	/**Returns true if entries have been set or removed since the manifest was read.*/
+	public boolean isChanged(){
+		return changed;
+	}
+	/*.................................................................................................................*/
+	/**Reads the manifest of the directory; returns an empty manifest if there is none, or if it could not be read.*/
+	public static TreeDirectoryManifest read(File directory){
+		TreeDirectoryManifest manifest = new TreeDirectoryManifest();
+		File manifestFile = new File(getManifestPath(directory));
+		if (!manifestFile.exists())
+			return manifest;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(manifestFile)));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				return manifest;
+			int numEntries = in.readInt();
+			for (int i = 0; i < numEntries; i++){
+				Entry entry = new Entry();
+				entry.fileName = in.readUTF();
+				entry.fileLength = in.readLong();
+				entry.lastModified = in.readLong();
+				entry.numTrees = in.readInt();
+				entry.signature = TreeFileIndex.readNullableString(in);
+				entry.indexPath = TreeFileIndex.readNullableString(in);
+				manifest.entries.put(entry.fileName, entry);
+			}
+		}
+		catch (IOException e){
+			return new TreeDirectoryManifest();
+		}
+		finally {
+			if (in != null){
+				try {
+					in.close();
+				}
+				catch (IOException e){
+				}
+			}
+		}
+		return manifest;
+	}
+	/*.................................................................................................................*/
+	/**Writes the manifest into the directory; returns false if it could not be written (e.g., the directory is read-only).*/
+	public boolean write(File directory){
+		File manifestFile = new File(getManifestPath(directory));
+		DataOutputStream out = null;
+		boolean success = false;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(manifestFile)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(entries.size());
+			for (Enumeration e = entries.elements(); e.hasMoreElements();){
+				Entry entry = (Entry)e.nextElement();
+				out.writeUTF(entry.fileName);
+				out.writeLong(entry.fileLength);
+				out.writeLong(entry.lastModified);
+				out.writeInt(entry.numTrees);
+				TreeFileIndex.writeNullableString(out, entry.signature);
+				TreeFileIndex.writeNullableString(out, entry.indexPath);
+			}
+			success = true;
+		}
+		catch (IOException e){
+		}
+		finally {
+			if (out != null){
+				try {
+					out.close();
+				}
+				catch (IOException e){
+					success = false;
+				}
+			}
+		}
+		if (!success)
+			manifestFile.delete();
+		else
+			changed = false;
+		return success;
+	}
+
+	/* ======================================================================== */
+	/**What is recorded about one tree file.*/
+	public static class Entry {
+		String fileName;
+		long fileLength;
+		long lastModified;
+		int numTrees;
+		String signature;
+		String indexPath;
+
+		public String getFileName(){
+			return fileName;
+		}
+		public int getNumTrees(){
+			return numTrees;
+		}
+		public String getSignature(){
+			return signature;
+		}
+		public String getIndexPath(){
+			return indexPath;
+		}
+	}
+}
@@ -0,0 +1,255 @@
+package mesquite.augist.lib;
+
+import java.io.*;
+import java.util.Vector;
+import java.util.zip.CRC32;
+
+/**An on-disk index of a NEXUS tree file, stored next to the tree file, so the TREES block does not need to be
+ * surveyed every time the file is opened.  The index holds the number of trees in the block, the title, taxa link
+ * and translation table of the block, and the file position of each tree.  An index is only used if the size,
+ * modification date, and a hash of the first bytes of the tree file all match the values recorded when the index
+ * was written.*/
+public class TreeFileIndex {
+	public static final String SUFFIX = ".augidx";
+	static final int MAGIC = 0x41474958; //"AGIX"
+	static final int VERSION = 2;
+	/**Number of bytes at the start of the tree file included in the header hash*/
+	static final int HEADER_BYTES = 65536;
+
+	long fileLength = -1;
+	long lastModified = -1;
+	long headerHash = -1;
+	String blockTitle = null;
+	String linkedTaxaTitle = null;
+	boolean standardizedNames = false;
+	Vector translationTable = new Vector();
+	int numTrees = 0;
+	TreeOffsetIndex positions = new TreeOffsetIndex();
+
+	/*.................................................................................................................*/
+	/**Returns the path of the index file for the tree file at treePath.*/
+	public static String getIndexPath(String treePath){
+		return treePath + SUFFIX;
+	}
+	/*.................................................................................................................*/
+	/**Returns a CRC32 hash of the first HEADER_BYTES of the file.*/
+	public static long hashHeader(File treeFile) throws IOException {
+		CRC32 crc = new CRC32();
+		InputStream stream = new FileInputStream(treeFile);
+		try {
+			byte[] buffer = new byte[8192];
+			int total = 0;
+			int read;
+			while (total < HEADER_BYTES && (read = stream.read(buffer, 0, Math.min(buffer.length, HEADER_BYTES - total))) > 0){
+				crc.update(buffer, 0, read);
+				total += read;
+			}
+		}
+		finally {
+			stream.close();
+		}
+		return crc.getValue();
+	}
+	/*.................................................................................................................*/
+	/**Records the size, modification date and header hash of the tree file this index describes.*/
+	public boolean setSource(File treeFile){
+		try {
+			fileLength = treeFile.length();
+			lastModified = treeFile.lastModified();
+			headerHash = hashHeader(treeFile);
+		}
+		catch (IOException e){
+			return false;
+		}
+		return true;
+	}
+	/*.................................................................................................................*/
+	/**Returns true if this index was written for the current contents of treeFile.*/
+	public boolean isValidFor(File treeFile){
+		if (treeFile == null || !treeFile.exists())
+			return false;
+		if (treeFile.length() != fileLength || treeFile.lastModified() != lastModified)
+			return false;
+		try {
+			return hashHeader(treeFile) == headerHash;
+		}
+		catch (IOException e){
+			return false;
+		}
+	}
+	/*.................................................................................................................*/
+	/**Returns true if the size and modification date of treeFile are those recorded in this index.  Unlike isValidFor, the start of the file is not read.*/
+	public boolean matchesSizeAndDate(File treeFile){
+		return treeFile != null && treeFile.exists() && treeFile.length() == fileLength && treeFile.lastModified() == lastModified;
+	}
+	/*.................................................................................................................*/
+	/**Returns a short signature (a hash in hexadecimal) of a taxa link, naming convention and translation table, by which changes in them can be noticed.*/
+	public static String makeSignature(String linkedTaxaTitle, boolean standardizedNames, Vector translationTable){
+		StringBuffer sb = new StringBuffer();
+		sb.append(linkedTaxaTitle == null ? "" : linkedTaxaTitle);
+		sb.append(standardizedNames ? "\tS" : "\tN");
+		if (translationTable != null)
+			for (int i = 0; i < translationTable.size(); i++)
+				sb.append('\t').append((String)translationTable.elementAt(i));
+		CRC32 crc = new CRC32();
+		try {
+			crc.update(sb.toString().getBytes("UTF-8"));
+		}
+		catch (UnsupportedEncodingException e){
+			crc.update(sb.toString().getBytes());
+		}
+		return Long.toHexString(crc.getValue()) + ":" + (translationTable == null ? 0 : translationTable.size());
+	}
+	/*.................................................................................................................*/
+	/**Returns the signature of the taxa link and translation table in this index.*/
+	public String getSignature(){
+		return makeSignature(linkedTaxaTitle, standardizedNames, translationTable);
+	}
+	/*.................................................................................................................*/
+	public String getBlockTitle(){
+		return blockTitle;
+	}
+	public void setBlockTitle(String title){
+		blockTitle = title;
+	}
+	/*.................................................................................................................*/
+	public String getLinkedTaxaTitle(){
+		return linkedTaxaTitle;
+	}
+	public void setLinkedTaxaTitle(String title){
+		linkedTaxaTitle = title;
+	}
+	/*.................................................................................................................*/
+	public boolean getStandardizedNames(){
+		return standardizedNames;
+	}
+	public void setStandardizedNames(boolean standardized){
+		standardizedNames = standardized;
+	}
+	/*.................................................................................................................*/
+	/**Returns the translation table, as a Vector of Strings each holding a tokenized taxon name followed by its tokenized label.*/
+	public Vector getTranslationTable(){
+		return translationTable;
+	}
+	public void setTranslationTable(Vector table){
+		if (table == null)
+			translationTable = new Vector();
+		else
+			translationTable = table;
+	}
+	/*.................................................................................................................*/
+	public int getNumTrees(){
+		return numTrees;
+	}
+	public void setNumTrees(int numTrees){
+		this.numTrees = numTrees;
+	}
+	/*.................................................................................................................*/
+	/**Returns the file positions of the trees; position 0 is the start of the TREES block.*/
+	public TreeOffsetIndex getPositions(){
+		return positions;
+	}
+	public void setPositions(TreeOffsetIndex positions){
+		this.positions = positions;
+	}
+	public int getNumPositions(){
+		return positions.size();
+	}
+	/*.................................................................................................................*/
+	/**Reads the index at indexPath; returns null if no index is there or if it could not be read.*/
+	public static TreeFileIndex read(String indexPath){
+		File indexFile = new File(indexPath);
+		if (!indexFile.exists())
+			return null;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				return null;
+			TreeFileIndex index = new TreeFileIndex();
+			index.fileLength = in.readLong();
+			index.lastModified = in.readLong();
+			index.headerHash = in.readLong();
+			index.blockTitle = readNullableString(in);
+			index.linkedTaxaTitle = readNullableString(in);
+			index.standardizedNames = in.readBoolean();
+			int tableSize = in.readInt();
+			for (int i = 0; i < tableSize; i++)
+				index.translationTable.addElement(in.readUTF());
+			index.numTrees = in.readInt();
+			index.positions = TreeOffsetIndex.read(in);
+			return index;
+		}
+		catch (IOException e){
+			return null;
+		}
+		finally {
+			if (in != null){
+				try {
+					in.close();
+				}
+				catch (IOException e){
+				}
+			}
+		}
+	}
+	/*.................................................................................................................*/
+	/**Writes the index to indexPath; returns false if it could not be written (e.g., the directory is read-only).  The index is written to a temporary
+	 * file in the same directory, which is then renamed, so that another process reading the index never sees it half written.*/
+	public boolean write(String indexPath){
+		File indexFile = new File(indexPath);
+		File tempFile = null;
+		DataOutputStream out = null;
+		try {
+			tempFile = File.createTempFile(indexFile.getName(), ".tmp", indexFile.getAbsoluteFile().getParentFile());
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(fileLength);
+			out.writeLong(lastModified);
+			out.writeLong(headerHash);
+			writeNullableString(out, blockTitle);
+			writeNullableString(out, linkedTaxaTitle);
+			out.writeBoolean(standardizedNames);
+			out.writeInt(translationTable.size());
+			for (int i = 0; i < translationTable.size(); i++)
+				out.writeUTF((String)translationTable.elementAt(i));
+			out.writeInt(numTrees);
+			positions.write(out);
+			out.close();
+			out = null;
+		}
+		catch (IOException e){
+			if (out != null){
+				try {
+					out.close();
+				}
+				catch (IOException e2){
+				}
+			}
+			if (tempFile != null)
+				tempFile.delete();
+			return false;
+		}
+		if (!tempFile.renameTo(indexFile)){ //some platforms will not rename onto an existing file
+			indexFile.delete();
+			if (!tempFile.renameTo(indexFile)){
+				tempFile.delete();
+				return false;
+			}
+		}
+		return true;
+	}
+	/*.................................................................................................................*/
+	static String readNullableString(DataInputStream in) throws IOException {
+		if (in.readBoolean())
+			return in.readUTF();
+		return null;
+	}
+	/*.................................................................................................................*/
+	static void writeNullableString(DataOutputStream out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null)
+			out.writeUTF(s);
+	}
+}
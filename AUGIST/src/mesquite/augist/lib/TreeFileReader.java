@@ -0,0 +1,192 @@
+package mesquite.augist.lib;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.Vector;
+
+import mesquite.lib.*;
+import mesquite.lib.duties.TreesManager;
+
+/**Reads trees from a tree file that has been surveyed and has an index file (see TreeFileIndex), without a module for the file.  The reader
+ * holds only the path of the file, the size and date it had when surveyed, its number of trees and the signature of its translation table, so
+ * that many thousands of files can be read from at once.  The index, the decoder built from its translation table, and the open file are held
+ * by a TreeFileReaderPool, which keeps only those most recently used.*/
+public class TreeFileReader {
+	static final long MAXSTATEMENT = 16*1024*1024;
+
+	String path;
+	long fileLength;
+	long lastModified;
+	int numTrees;
+	String signature;
+
+	/*.................................................................................................................*/
+	/**Creates a reader for the file at path, which had numTrees trees and the given translation signature (see TreeFileIndex.makeSignature) when its index was written.*/
+	public TreeFileReader(String path, int numTrees, String signature){
+		this.path = path;
+		File treeFile = new File(path);
+		fileLength = treeFile.length();
+		lastModified = treeFile.lastModified();
+		this.numTrees = numTrees;
+		this.signature = signature;
+	}
+	/*.................................................................................................................*/
+	public String getPath(){
+		return path;
+	}
+	/*.................................................................................................................*/
+	public String getName(){
+		return new File(path).getName();
+	}
+	/*.................................................................................................................*/
+	public int getNumTrees(){
+		return numTrees;
+	}
+	/*.................................................................................................................*/
+	public String getSignature(){
+		return signature;
+	}
+	/*.................................................................................................................*/
+	/**Returns true if the index is the one this reader was made from.*/
+	public boolean matches(TreeFileIndex index){
+		return index.getNumTrees() == numTrees && index.getNumPositions() > numTrees && index.fileLength == fileLength && index.lastModified == lastModified
+				&& (signature == null || signature.equals(index.getSignature()));
+	}
+	/*.................................................................................................................*/
+	/**Chooses numToSample of the trees of the file at random, without replacement.*/
+	public TreeSamplingPlan sample(int numToSample, Random rng){
+		TreeSamplingPlan plan = new TreeSamplingPlan();
+		plan.sample(numToSample, 0, numTrees, rng);
+		return plan;
+	}
+	/*.................................................................................................................*/
+	/**Returns tree treeIndex of the file, for the given taxa, or null if it could not be read.*/
+	public MesquiteTree readTree(Taxa taxa, int treeIndex, TreeFileReaderPool pool){
+		return readTree(taxa, treeIndex, pool, true);
+	}
+	/*.................................................................................................................*/
+	/**Returns tree treeIndex of the file, for the given taxa, or null if it could not be read.  If cache, the tree read is kept in the ParsedTreeCache.*/
+	public MesquiteTree readTree(Taxa taxa, int treeIndex, TreeFileReaderPool pool, boolean cache){
+		if (taxa == null || treeIndex < 0 || treeIndex >= numTrees)
+			return null;
+		MesquiteTree cached = ParsedTreeCache.getSharedCache().get(path, lastModified, treeIndex, taxa);
+		if (cached != null)
+			return cached;
+		Loaded state = pool.getLoaded(this);
+		if (state == null)
+			return null;
+		TreeOffsetIndex positions = state.index.getPositions();
+		long start = positions.get(treeIndex)+1;
+		long end = positions.get(treeIndex+1)+1;
+		if (end <= start || end - start > MAXSTATEMENT)
+			return null;
+		int length = (int)(end - start);
+		ByteBuffer bytes = pool.readBytes(path, start, length);
+		if (bytes == null)
+			return null;
+		MesquiteTree tree = state.buildTree(taxa, bytes, length);
+		if (tree != null && cache)
+			ParsedTreeCache.getSharedCache().put(path, lastModified, treeIndex, tree);
+		return tree;
+	}
+
+	/* ======================================================================== */
+	/**What is held in memory for a reader while it is in use: its index, and the decoder and tree vector (holding the translation table) built for the taxa last read.*/
+	static class Loaded {
+		TreeFileIndex index;
+		NewickDecoder decoder = null;
+		TreeVector translation = null;
+		Taxa taxa = null;
+
+		Loaded(TreeFileIndex index){
+			this.index = index;
+		}
+		/*.................................................................................................................*/
+		void setTaxa(Taxa taxa){
+			if (taxa == this.taxa)
+				return;
+			this.taxa = taxa;
+			Vector table = index.getTranslationTable();
+			decoder = null;
+			if (table.size() > 0 || !index.getStandardizedNames())
+				decoder = new NewickDecoder(taxa, table);
+			translation = new TreeVector(taxa);
+			if (table.size() > 0){
+				Parser entryParser = new Parser();
+				for (int i = 0; i < table.size(); i++){
+					String taxonName = entryParser.getFirstToken((String)table.elementAt(i));
+					String label = entryParser.getNextToken();
+					translation.setTranslationLabel(label, taxonName, false);
+				}
+			}
+			else if (index.getStandardizedNames()) {
+				for (int it = 0; it<taxa.getNumTaxa(); it++)
+					translation.setTranslationLabel(Integer.toString(it+1), "t" + it, false);
+			}
+			translation.checkTranslationTable();
+		}
+		/*.................................................................................................................*/
+		/**Builds the tree from the bytes of its TREE statement, decoding them directly if possible, and otherwise parsing the description as SampleOneTreeFromFile does.*/
+		synchronized MesquiteTree buildTree(Taxa taxa, ByteBuffer bytes, int length){
+			setTaxa(taxa);
+			MesquiteTree tree = new MesquiteTree(taxa);
+			tree.setTreeVector(translation);
+			if (decoder != null && decoder.decode(bytes, 0, length)){
+				decoder.fillTree(tree);
+				attachWeight(tree, decoder.getWeight());
+				return tree;
+			}
+			StringBuffer comment = new StringBuffer();
+			String command = TreeReservoirSampler.cleanStatement(new String(bytes.array(), 0, length), comment);
+			Parser parser = new Parser();
+			String commandName = parser.getFirstToken(command);
+			if (commandName == null)
+				return null;
+			String treeName = parser.getNextToken();
+			if (treeName != null && treeName.equals("*"))
+				treeName = parser.getNextToken();
+			if (treeName == null)
+				return null;
+			parser.getNextToken(); //eat up "equals"
+			String description = command.substring(parser.getPosition(), command.length());
+			if (description.length()<=2)
+				return null;
+			String commentString = comment.toString();
+			if (commentString.length()>1 && commentString.charAt(0)=='!')
+				tree.setAnnotation(commentString.substring(1, commentString.length()), false);
+			else if (commentString.length()>1) {
+				int wpos = commentString.indexOf("&W");
+				if (wpos <0)
+					wpos = commentString.indexOf("&w");
+				if (wpos>=0) {
+					MesquiteInteger cPos = new MesquiteInteger(wpos+2);
+					String num = ParseUtil.getToken(commentString, cPos);
+					String slash = ParseUtil.getToken(commentString, cPos);
+					String denom = ParseUtil.getToken(commentString, cPos);
+					if (slash !=null && "/".equals(slash))
+						attachWeight(tree, 1.0*(MesquiteInteger.fromString(num))/(MesquiteInteger.fromString(denom)));
+					else
+						attachWeight(tree, MesquiteDouble.fromString(num));
+				}
+			}
+			translation.addElement(tree, false);
+			boolean success = tree.readTree(description);
+			translation.removeElement(tree, false);
+			if (!success)
+				return null;
+			tree.setName(treeName);
+			if (commandName.equalsIgnoreCase("UTREE"))
+				tree.setRooted(false, false);
+			return tree;
+		}
+		/*.................................................................................................................*/
+		static void attachWeight(MesquiteTree tree, double w){
+			if (MesquiteDouble.isCombinable(w)) {
+				MesquiteDouble d = new MesquiteDouble(w);
+				d.setName(TreesManager.WEIGHT);
+				tree.attachIfUniqueName(d);
+			}
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package mesquite.augist.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**Open files and loaded indices shared by many TreeFileReaders.  At most maxOpenFiles files are held open, and at most maxLoaded
+ * indices (with their decoders) are held in memory; in each case the least recently used is closed or dropped when the limit is reached,
+ * and is opened or read again when next needed.  A reader itself holds only what is needed to find its file and check its index.
+ * The pool may be used by several threads at once: files are read with positional reads, which do not move a shared file pointer.*/
+public class TreeFileReaderPool {
+	public static final int DEFAULTMAXOPENFILES = 64;
+	public static final int DEFAULTMAXLOADED = 256;
+
+	int maxOpenFiles = DEFAULTMAXOPENFILES;
+	int maxLoaded = DEFAULTMAXLOADED;
+	LinkedHashMap openFiles = new LinkedHashMap(16, 0.75f, true);  //path to RandomAccessFile, in order of use
+	LinkedHashMap loaded = new LinkedHashMap(16, 0.75f, true);  //reader to TreeFileReader.Loaded, in order of use
+
+	/*.................................................................................................................*/
+	public synchronized void setMaxOpenFiles(int max){
+		maxOpenFiles = Math.max(1, max);
+		trim(openFiles, maxOpenFiles, true);
+	}
+	public synchronized int getMaxOpenFiles(){
+		return maxOpenFiles;
+	}
+	/*.................................................................................................................*/
+	public synchronized void setMaxLoaded(int max){
+		maxLoaded = Math.max(1, max);
+		trim(loaded, maxLoaded, false);
+	}
+	public synchronized int getMaxLoaded(){
+		return maxLoaded;
+	}
+	/*.................................................................................................................*/
+	public synchronized int getNumOpenFiles(){
+		return openFiles.size();
+	}
+	/*.................................................................................................................*/
+	/**Removes the least recently used entries of map until it has no more than max; if close, the removed values are files to be closed.*/
+	void trim(LinkedHashMap map, int max, boolean close){
+		Iterator it = map.entrySet().iterator();
+		while (map.size() > max && it.hasNext()){
+			Map.Entry entry = (Map.Entry)it.next();
+			if (close)
+				closeQuietly((RandomAccessFile)entry.getValue());
+			it.remove();
+		}
+	}
+	/*.................................................................................................................*/
+	static void closeQuietly(RandomAccessFile file){
+		try {
+			file.close();
+		}
+		catch (IOException e){
+		}
+	}
+	/*.................................................................................................................*/
+	/**Returns the channel of the file at path, opening it (and closing the least recently used file, if too many are open) if needed.*/
+	synchronized FileChannel getChannel(String path) throws IOException {
+		RandomAccessFile file = (RandomAccessFile)openFiles.get(path);
+		if (file == null){
+			file = new RandomAccessFile(path, "r");
+			openFiles.put(path, file);
+			trim(openFiles, maxOpenFiles, true);
+		}
+		return file.getChannel();
+	}
+	/*.................................................................................................................*/
+	/**Reads length bytes of the file at path, starting at offset start, into a buffer.  Returns null if they could not be read.*/
+	public ByteBuffer readBytes(String path, long start, int length){
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		for (int attempt = 0; attempt < 2; attempt++){
+			buffer.clear();
+			FileChannel channel = null;
+			try {
+				channel = getChannel(path);
+				while (buffer.hasRemaining()){
+					if (channel.read(buffer, start + buffer.position()) < 0)
+						return null;
+				}
+				return buffer;
+			}
+			catch (ClosedByInterruptException e){  //closed because this thread was interrupted; a channel opened again would be closed the same way
+				dropClosed(path, channel);
+				return null;
+			}
+			catch (ClosedChannelException e){  //closed because other files were opened since, or by an interrupt on another thread; open it again
+				dropClosed(path, channel);
+			}
+			catch (IOException e){
+				return null;
+			}
+		}
+		return null;
+	}
+	/*.................................................................................................................*/
+	/**Forgets the file at path if it is still the one whose channel was found closed, so that it is opened again when next read, rather than being read, and failing, until it happens to be closed for being least recently used.*/
+	synchronized void dropClosed(String path, FileChannel channel){
+		RandomAccessFile file = (RandomAccessFile)openFiles.get(path);
+		if (file != null && channel != null && file.getChannel() == channel){
+			openFiles.remove(path);
+			closeQuietly(file);
+		}
+	}
+	/*.................................................................................................................*/
+	/**Returns the index and decoder of the reader, reading the index if it is not in memory.  Returns null if the index could not be read,
+	 * or no longer matches the tree file.*/
+	TreeFileReader.Loaded getLoaded(TreeFileReader reader){
+		synchronized (this){
+			TreeFileReader.Loaded state = (TreeFileReader.Loaded)loaded.get(reader);
+			if (state != null)
+				return state;
+		}
+		TreeFileIndex index = TreeFileIndex.read(TreeFileIndex.getIndexPath(reader.getPath()));  //read without holding the pool, so other readers may proceed
+		if (index == null || !index.matchesSizeAndDate(new File(reader.getPath())) || !reader.matches(index))
+			return null;
+		synchronized (this){
+			TreeFileReader.Loaded state = (TreeFileReader.Loaded)loaded.get(reader);
+			if (state != null)  //loaded by another thread meanwhile
+				return state;
+			state = new TreeFileReader.Loaded(index);
+			loaded.put(reader, state);
+			trim(loaded, maxLoaded, false);
+			return state;
+		}
+	}
+	/*.................................................................................................................*/
+	/**Drops anything held for the reader, and closes its file.*/
+	public synchronized void release(TreeFileReader reader){
+		loaded.remove(reader);
+		RandomAccessFile file = (RandomAccessFile)openFiles.remove(reader.getPath());
+		if (file != null)
+			closeQuietly(file);
+	}
+	/*.................................................................................................................*/
+	/**Drops anything held for any reader of the file at path, and closes the file, e.g. because the file is about to be written again.*/
+	public synchronized void releasePath(String path){
+		for (Iterator it = loaded.keySet().iterator(); it.hasNext();)
+			if (path.equals(((TreeFileReader)it.next()).getPath()))
+				it.remove();
+		RandomAccessFile file = (RandomAccessFile)openFiles.remove(path);
+		if (file != null)
+			closeQuietly(file);
+	}
+	/*.................................................................................................................*/
+	/**Closes all files and drops all indices.*/
+	public synchronized void closeAll(){
+		for (Iterator it = openFiles.values().iterator(); it.hasNext();)
+			closeQuietly((RandomAccessFile)it.next());
+		openFiles.clear();
+		loaded.clear();
+	}
+}
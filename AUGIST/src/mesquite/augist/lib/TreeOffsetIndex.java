@@ -0,0 +1,181 @@
+package mesquite.augist.lib;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**A growable list of file positions (e.g., of the trees in a tree file), stored compactly.  Positions are kept in blocks of BLOCKSIZE entries;
+ * the first position of each block is stored in full in a skip table, and the others as variable-length (zig-zag encoded) differences from
+ * the preceding position.  As positions in a file usually increase by a few hundred or thousand bytes from one tree to the next, most
+ * entries take one to three bytes.  Finding a position requires decoding at most BLOCKSIZE-1 differences.
+ *
+ * Positions are usually added in order at the end of the list, but an existing position may be replaced.*/
+public class TreeOffsetIndex {
+	public static final int BLOCKSIZE = 64;
+
+	long[] blockBase = new long[16];
+	int[] blockStart = new int[16];
+	byte[] data = new byte[1024];
+	int dataLength = 0;
+	int size = 0;
+	long last = 0;
+
+	/*.................................................................................................................*/
+	/**Returns the number of positions stored.*/
+	public int size(){
+		return size;
+	}
+	/*.................................................................................................................*/
+	/**Removes all positions.*/
+	public void clear(){
+		size = 0;
+		dataLength = 0;
+		last = 0;
+	}
+	/*.................................................................................................................*/
+	/**Returns the position stored at index i.*/
+	public long get(int i){
+		if (i < 0 || i >= size)
+			throw new IndexOutOfBoundsException("Index " + i + " of " + size);
+		int block = i / BLOCKSIZE;
+		long value = blockBase[block];
+		int p = blockStart[block];
+		for (int j = i % BLOCKSIZE; j > 0; j--){
+			long raw = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = data[p++];
+				raw |= ((long)(b & 0x7F)) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			value += (raw >>> 1) ^ -(raw & 1);
+		}
+		return value;
+	}
+	/*.................................................................................................................*/
+	/**Adds a position to the end of the list.*/
+	public void add(long value){
+		int block = size / BLOCKSIZE;
+		if (size % BLOCKSIZE == 0){
+			if (block == blockBase.length){
+				long[] tempBase = new long[block*2];
+				System.arraycopy(blockBase, 0, tempBase, 0, block);
+				blockBase = tempBase;
+				int[] tempStart = new int[block*2];
+				System.arraycopy(blockStart, 0, tempStart, 0, block);
+				blockStart = tempStart;
+			}
+			blockBase[block] = value;
+			blockStart[block] = dataLength;
+		}
+		else
+			writeDelta(value - last);
+		last = value;
+		size++;
+	}
+	/*.................................................................................................................*/
+	/**Sets the position at index i.  If i is the size of the list, the position is added to the end; returns false if i is beyond that.*/
+	public boolean set(int i, long value){
+		if (i < 0 || i > size)
+			return false;
+		if (i == size){
+			add(value);
+			return true;
+		}
+		if (get(i) == value)
+			return true;
+		replace(i, value);
+		return true;
+	}
+	/*.................................................................................................................*/
+	/**Replaces the position at index i by re-encoding the block that contains it.*/
+	void replace(int i, long value){
+		int block = i / BLOCKSIZE;
+		int first = block * BLOCKSIZE;
+		int num = Math.min(BLOCKSIZE, size - first);
+		long[] values = new long[num];
+		for (int j = 0; j < num; j++)
+			values[j] = get(first + j);
+		values[i - first] = value;
+		int oldStart = blockStart[block];
+		int oldEnd = (block + 1 < numBlocks()) ? blockStart[block + 1] : dataLength;
+		byte[] tail = new byte[dataLength - oldEnd];
+		System.arraycopy(data, oldEnd, tail, 0, tail.length);
+		dataLength = oldStart;
+		blockBase[block] = values[0];
+		for (int j = 1; j < num; j++)
+			writeDelta(values[j] - values[j-1]);
+		int shift = dataLength - oldEnd;
+		ensureCapacity(dataLength + tail.length);
+		System.arraycopy(tail, 0, data, dataLength, tail.length);
+		dataLength += tail.length;
+		for (int b = block + 1; b < numBlocks(); b++)
+			blockStart[b] += shift;
+		if (first + num == size)
+			last = values[num - 1];
+	}
+	/*.................................................................................................................*/
+	int numBlocks(){
+		return (size + BLOCKSIZE - 1) / BLOCKSIZE;
+	}
+	/*.................................................................................................................*/
+	void ensureCapacity(int needed){
+		if (needed > data.length){
+			byte[] temp = new byte[Math.max(needed, data.length*2)];
+			System.arraycopy(data, 0, temp, 0, dataLength);
+			data = temp;
+		}
+	}
+	/*.................................................................................................................*/
+	void writeDelta(long delta){
+		long raw = (delta << 1) ^ (delta >> 63);
+		ensureCapacity(dataLength + 10);
+		while ((raw & ~0x7FL) != 0){
+			data[dataLength++] = (byte)((raw & 0x7F) | 0x80);
+			raw >>>= 7;
+		}
+		data[dataLength++] = (byte)raw;
+	}
+	/*.................................................................................................................*/
+	/**Returns the approximate number of bytes used to store the positions.*/
+	public long getMemorySize(){
+		return data.length + blockBase.length*8L + blockStart.length*4L;
+	}
+	/*.................................................................................................................*/
+	/**Writes the positions to the stream.*/
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(size);
+		out.writeLong(last);
+		out.writeInt(dataLength);
+		out.write(data, 0, dataLength);
+		int blocks = numBlocks();
+		for (int b = 0; b < blocks; b++){
+			out.writeLong(blockBase[b]);
+			out.writeInt(blockStart[b]);
+		}
+	}
+	/*.................................................................................................................*/
+	/**Reads positions written by write.*/
+	public static TreeOffsetIndex read(DataInputStream in) throws IOException {
+		TreeOffsetIndex index = new TreeOffsetIndex();
+		int size = in.readInt();
+		long last = in.readLong();
+		int dataLength = in.readInt();
+		if (size < 0 || dataLength < 0)
+			throw new IOException("Corrupt offset index");
+		index.data = new byte[Math.max(dataLength, 16)];
+		in.readFully(index.data, 0, dataLength);
+		index.dataLength = dataLength;
+		index.size = size;
+		int blocks = index.numBlocks();
+		index.blockBase = new long[Math.max(blocks, 1)];
+		index.blockStart = new int[Math.max(blocks, 1)];
+		for (int b = 0; b < blocks; b++){
+			index.blockBase[b] = in.readLong();
+			index.blockStart[b] = in.readInt();
+		}
+		index.last = last;
+		return index;
+	}
+}
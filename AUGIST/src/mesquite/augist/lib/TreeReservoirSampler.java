@@ -0,0 +1,238 @@
+package mesquite.augist.lib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**Draws a random sample of tree statements from a TREES block in a single sequential read of the file, without first counting the
+ * trees.  Uses reservoir sampling (Li's Algorithm L), so only the text of the (at most) numToSample trees held in the reservoir is kept
+ * in memory, and random numbers are drawn only for the trees that enter the reservoir.  The first numToSkip trees (e.g., burnin) are
+ * never sampled.*/
+public class TreeReservoirSampler implements TreeBlockScanner.Receiver {
+	static final int CHUNK = 1024*1024;
+
+	int numToSample;
+	int numToSkip;
+	Random rng;
+	String[] statements;
+	int[] treeIndices;
+	int numInReservoir = 0;
+	int numTreesSeen = 0;
+	/*Algorithm L state*/
+	double w;
+	long nextToKeep;
+	/*Bytes of the statement now being read, from chunks already scanned*/
+	byte[] carry = new byte[4096];
+	int carryLength = 0;
+	boolean capturing = false;
+	byte[] chunk;
+	long chunkBase;
+	/*Progress and cancelling*/
+	volatile boolean stopRequested = false;
+	volatile long bytesRead = 0;
+	boolean endReached = false;
+
+	/*.................................................................................................................*/
+	public TreeReservoirSampler(int numToSample, int numToSkip, Random rng){
+		this.numToSample = Math.max(0, numToSample);
+		this.numToSkip = Math.max(0, numToSkip);
+		this.rng = rng;
+		statements = new String[this.numToSample];
+		treeIndices = new int[this.numToSample];
+		capturing = wouldKeep(0);
+	}
+	/*.................................................................................................................*/
+	/**Reads the trees in the stream, whose first byte is at file offset start (which should be the start of a statement).  Reading stops
+	 * at the END of the TREES block, at the end of the stream, or when stop is called.  Afterwards the reservoir is sorted in file order.*/
+	public void sampleStream(InputStream stream, long start) throws IOException {
+		TreeBlockScanner scanner = new TreeBlockScanner(start);
+		chunk = new byte[CHUNK];
+		ByteBuffer buffer = ByteBuffer.wrap(chunk);
+		chunkBase = start;
+		int read;
+		while (!stopRequested && (read = stream.read(chunk, 0, CHUNK)) > 0){
+			if (!scanner.scan(buffer, 0, read, chunkBase, this))
+				break;
+			if (capturing) {  //keep the part of the current statement that is in this chunk
+				int from = (int)Math.max(0, scanner.getStatementStart() - chunkBase);
+				appendToCarry(chunk, from, read - from);
+			}
+			chunkBase += read;
+			bytesRead = chunkBase - start;
+		}
+		endReached = scanner.isEndReached();
+		chunk = null;
+		carry = null;
+		sortReservoir();
+	}
+	/*.................................................................................................................*/
+	public boolean statementEnded(int kind, long start, long end){
+		if (kind == TreeBlockScanner.TREE) {
+			int treeIndex = numTreesSeen++;
+			if (capturing) {
+				int from = (int)Math.max(0, start - chunkBase);
+				appendToCarry(chunk, from, (int)(end - chunkBase) - from);
+				offer(treeIndex, new String(carry, 0, carryLength));
+			}
+			else
+				offer(treeIndex, null);
+		}
+		carryLength = 0;
+		capturing = wouldKeep(numTreesSeen);
+		return !stopRequested;
+	}
+	/*.................................................................................................................*/
+	/**Returns whether the tree with index treeIndex (counting from the start of the block) will enter the reservoir.*/
+	boolean wouldKeep(int treeIndex){
+		int i = treeIndex - numToSkip;
+		if (i < 0 || numToSample == 0)
+			return false;
+		if (i < numToSample)
+			return true;
+		return i == nextToKeep;
+	}
+	/*.................................................................................................................*/
+	void offer(int treeIndex, String statement){
+		int i = treeIndex - numToSkip;
+		if (i < 0 || numToSample == 0)
+			return;
+		if (i < numToSample) {
+			statements[i] = statement;
+			treeIndices[i] = treeIndex;
+			numInReservoir++;
+			if (numInReservoir == numToSample) {
+				w = Math.exp(Math.log(rng.nextDouble())/numToSample);
+				nextToKeep = i + skipLength() + 1;
+			}
+		}
+		else if (i == nextToKeep) {
+			int slot = rng.nextInt(numToSample);
+			statements[slot] = statement;
+			treeIndices[slot] = treeIndex;
+			w *= Math.exp(Math.log(rng.nextDouble())/numToSample);
+			nextToKeep = i + skipLength() + 1;
+		}
+	}
+	/*.................................................................................................................*/
+	long skipLength(){
+		double u = rng.nextDouble();
+		if (u == 0.0)
+			u = Double.MIN_VALUE;
+		double skip = Math.floor(Math.log(u)/Math.log(1.0 - w));
+		if (skip > Long.MAX_VALUE/2 || Double.isNaN(skip))
+			return Long.MAX_VALUE/2;
+		return (long)skip;
+	}
+	/*.................................................................................................................*/
+	void appendToCarry(byte[] source, int from, int length){
+		if (length <= 0)
+			return;
+		if (carryLength + length > carry.length){
+			byte[] temp = new byte[Math.max(carry.length*2, carryLength + length)];
+			System.arraycopy(carry, 0, temp, 0, carryLength);
+			carry = temp;
+		}
+		System.arraycopy(source, from, carry, carryLength, length);
+		carryLength += length;
+	}
+	/*.................................................................................................................*/
+	/**Sorts the reservoir so that trees are in the order in which they occur in the file.*/
+	void sortReservoir(){
+		for (int i = 1; i < numInReservoir; i++){
+			int index = treeIndices[i];
+			String statement = statements[i];
+			int j = i - 1;
+			while (j >= 0 && treeIndices[j] > index){
+				treeIndices[j+1] = treeIndices[j];
+				statements[j+1] = statements[j];
+				j--;
+			}
+			treeIndices[j+1] = index;
+			statements[j+1] = statement;
+		}
+	}
+	/*.................................................................................................................*/
+	/**Asks that reading stop (e.g., from another thread); the trees read so far remain sampled.*/
+	public void stop(){
+		stopRequested = true;
+	}
+	/*.................................................................................................................*/
+	/**Returns the number of bytes read so far.*/
+	public long getBytesRead(){
+		return bytesRead;
+	}
+	/*.................................................................................................................*/
+	/**Returns true if the END of the TREES block was read.*/
+	public boolean isEndReached(){
+		return endReached;
+	}
+	/*.................................................................................................................*/
+	/**Returns the number of trees read, including those skipped.*/
+	public int getNumTreesSeen(){
+		return numTreesSeen;
+	}
+	/*.................................................................................................................*/
+	/**Returns the number of trees sampled.*/
+	public int getNumSampled(){
+		return numInReservoir;
+	}
+	/*.................................................................................................................*/
+	/**Returns the indices (counting from the start of the block) of the sampled trees, in increasing order.*/
+	public int[] getTreeIndices(){
+		int[] indices = new int[numInReservoir];
+		System.arraycopy(treeIndices, 0, indices, 0, numInReservoir);
+		return indices;
+	}
+	/*.................................................................................................................*/
+	/**Returns the ith sampled tree statement, without any comments or white space preceding the TREE command.  The text of the first comment
+	 * that holds a weight ([&W ...]) or annotation ([! ...]) is placed in comment, as MesquiteFile.getNextCommand would do.*/
+	public String getStatement(int i, StringBuffer comment){
+		if (i < 0 || i >= numInReservoir || statements[i] == null)
+			return null;
+		return cleanStatement(statements[i], comment);
+	}
+	/*.................................................................................................................*/
+	/**Strips white space and comments preceding the command of a statement, and places the first weight or annotation comment of the statement in comment.*/
+	public static String cleanStatement(String statement, StringBuffer comment){
+		int start = 0;
+		int length = statement.length();
+		while (start < length) {
+			char c = statement.charAt(start);
+			if (c == '[') {
+				int depth = 1;
+				start++;
+				while (start < length && depth > 0){
+					c = statement.charAt(start++);
+					if (c == '[')
+						depth++;
+					else if (c == ']')
+						depth--;
+				}
+			}
+			else if (Character.isWhitespace(c))
+				start++;
+			else
+				break;
+		}
+		if (comment != null) {
+			boolean quoted = false;
+			for (int i = start; i < length; i++){
+				char c = statement.charAt(i);
+				if (c == '\'')
+					quoted = !quoted;
+				else if (c == '[' && !quoted && i+1 < length) {
+					char d = statement.charAt(i+1);
+					if (d == '!' || ((d == '&') && i+2 < length && (statement.charAt(i+2) == 'W' || statement.charAt(i+2) == 'w'))) {
+						int close = statement.indexOf(']', i);
+						if (close > i) {
+							comment.append(statement.substring(i+1, close));
+							break;
+						}
+					}
+				}
+			}
+		}
+		return statement.substring(start);
+	}
+}
@@ -0,0 +1,124 @@
+package mesquite.augist.lib;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+/**The indices of the trees chosen from a tree file, kept in increasing order.  A sample of k trees is drawn with
+ * Floyd's algorithm, which takes k random draws however large k is relative to the number of trees available.  The ith
+ * tree sampled, and the sampled tree following a given tree, are then found by array lookup and binary search.*/
+public class TreeSamplingPlan {
+	int[] sample = new int[0];
+
+	/*.................................................................................................................*/
+	/**Samples all trees from index first up to (but not including) index total.*/
+	public void sampleAll(int first, int total){
+		if (first < 0)
+			first = 0;
+		int num = Math.max(0, total - first);
+		sample = new int[num];
+		for (int i = 0; i < num; i++)
+			sample[i] = first + i;
+	}
+	/*.................................................................................................................*/
+	/**Samples numToSample trees at random, without replacement, from index first up to (but not including) index total.*/
+	public void sample(int numToSample, int first, int total, Random rng){
+		if (first < 0)
+			first = 0;
+		int available = total - first;
+		if (numToSample >= available){
+			sampleAll(first, total);
+			return;
+		}
+		if (numToSample <= 0){
+			sample = new int[0];
+			return;
+		}
+		HashSet chosen = new HashSet(numToSample*2);
+		int[] drawn = new int[numToSample];
+		int count = 0;
+		for (int j = available - numToSample; j < available; j++){
+			int candidate = rng.nextInt(j + 1);
+			Integer key = new Integer(candidate);
+			if (chosen.contains(key)){
+				candidate = j;
+				key = new Integer(j);
+			}
+			chosen.add(key);
+			drawn[count++] = first + candidate;
+		}
+		Arrays.sort(drawn);
+		sample = drawn;
+	}
+	/*.................................................................................................................*/
+	/**Extends a sample of trees from index first up to oldTotal to cover the trees appended up to newTotal, without disturbing
+	 * the choice among the earlier trees more than needed.  If numToSample is not yet reached, appended trees are added; afterwards each
+	 * appended tree replaces a randomly chosen sampled tree with probability numToSample/(number of trees available so far), so that the
+	 * sample remains a uniform sample of all the trees (reservoir sampling).  A negative numToSample means all trees are sampled.*/
+	public void extend(int numToSample, int first, int oldTotal, int newTotal, Random rng){
+		if (first < 0)
+			first = 0;
+		int from = Math.max(first, oldTotal);
+		if (newTotal <= from)
+			return;
+		if (numToSample < 0 || numToSample >= newTotal - first) {  //everything sampled
+			sampleAll(first, newTotal);
+			return;
+		}
+		int[] extended = new int[numToSample];
+		int count = Math.min(sample.length, numToSample);
+		System.arraycopy(sample, 0, extended, 0, count);
+		boolean replaced = false;
+		for (int i = from; i < newTotal; i++){
+			if (count < numToSample)
+				extended[count++] = i;
+			else {
+				int slot = rng.nextInt(i - first + 1);
+				if (slot < numToSample) {
+					extended[slot] = i;
+					replaced = true;
+				}
+			}
+		}
+		if (count < numToSample) {
+			int[] temp = new int[count];
+			System.arraycopy(extended, 0, temp, 0, count);
+			extended = temp;
+		}
+		if (replaced)
+			Arrays.sort(extended);
+		sample = extended;
+	}
+	/*.................................................................................................................*/
+	/**Sets the sample to the given tree indices, which must be in increasing order.*/
+	public void setSample(int[] indices){
+		sample = indices;
+	}
+	/*.................................................................................................................*/
+	/**Returns the number of trees sampled.*/
+	public int size(){
+		return sample.length;
+	}
+	/*.................................................................................................................*/
+	/**Returns the index of the ith tree sampled, or -1 if fewer than i+1 trees were sampled.*/
+	public int get(int i){
+		if (i < 0 || i >= sample.length)
+			return -1;
+		return sample[i];
+	}
+	/*.................................................................................................................*/
+	/**Returns the index of the first sampled tree after tree prevTree, or -1 if there is none.*/
+	public int next(int prevTree){
+		int pos = Arrays.binarySearch(sample, prevTree + 1);
+		if (pos < 0)
+			pos = -pos - 1;
+		if (pos < sample.length)
+			return sample[pos];
+		return -1;
+	}
+	/*.................................................................................................................*/
+	/**Returns whether the tree at index i is in the sample.*/
+	public boolean contains(int i){
+		return Arrays.binarySearch(sample, i) >= 0;
+	}
+}